@@ -0,0 +1,50 @@
+package info.skyblond.jna;
+
+import com.sun.jna.Memory;
+import info.skyblond.jna.wintun.AdapterIPAddress;
+import info.skyblond.jna.wintun.ForwardTable;
+import info.skyblond.jna.wintun.WintunAdapter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the route and address tables, over {@link SyntheticMibTables}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MibParseBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    public int rows;
+
+    private Memory forwardTable;
+    private Memory unicastAddressTable;
+
+    @Setup
+    public void setup() {
+        forwardTable = SyntheticMibTables.forwardTable(rows);
+        unicastAddressTable = SyntheticMibTables.unicastAddressTable(rows);
+        if (WintunAdapter.parseForwardTable(forwardTable).size() != rows) {
+            throw new IllegalStateException("Bad synthetic forward table");
+        }
+        if (WintunAdapter.parseUnicastAddressTable(unicastAddressTable, 0).size() != (rows + 3) / 4) {
+            throw new IllegalStateException("Bad synthetic address table");
+        }
+    }
+
+    @Benchmark
+    public List<ForwardTable> parseForwardTable() {
+        return WintunAdapter.parseForwardTable(forwardTable);
+    }
+
+    @Benchmark
+    public List<AdapterIPAddress> parseUnicastAddressTable() {
+        return WintunAdapter.parseUnicastAddressTable(unicastAddressTable, 0);
+    }
+}
@@ -0,0 +1,72 @@
+package info.skyblond.jna;
+
+import info.skyblond.jna.wintun.IoStatus;
+import info.skyblond.jna.wintun.PacketSink;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-packet cost of the session read and write calls over {@link StubWintunLib}.
+ * The batch benchmark reports the cost of 64 packets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionBenchmark {
+
+    @Param({"64", "1500"})
+    public int packetSize;
+
+    private StubWintunLib lib;
+    private WintunSession session;
+    private ByteBuffer buffer;
+    private byte[] packet;
+
+    @Setup
+    public void setup() {
+        lib = new StubWintunLib(packetSize);
+        session = new WintunSession(lib, lib.session, WintunLib.WINTUN_MIN_RING_CAPACITY);
+        buffer = ByteBuffer.allocateDirect(WintunLib.WINTUN_MAX_IP_PACKET_SIZE);
+        packet = new byte[packetSize];
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.close();
+    }
+
+    @Benchmark
+    public byte[] readPacketArray() throws Exception {
+        return session.readPacket(0);
+    }
+
+    @Benchmark
+    public IoStatus readPacketBuffer() throws Exception {
+        buffer.clear();
+        return session.readPacket(buffer, 0);
+    }
+
+    @Benchmark
+    public void writePacketArray() throws Exception {
+        session.writePacket(packet, 0, packet.length);
+    }
+
+    @Benchmark
+    public IoStatus writePacketBuffer() throws Exception {
+        buffer.clear().limit(packetSize);
+        return session.writePacket(buffer);
+    }
+
+    @Benchmark
+    public int receiveBatch64(Blackhole blackhole) throws Exception {
+        return session.receiveBatch(64, blackhole::consume, 0);
+    }
+}
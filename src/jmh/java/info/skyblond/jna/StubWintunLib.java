@@ -0,0 +1,43 @@
+package info.skyblond.jna;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import info.skyblond.jna.wintun.WintunDataPlane;
+import info.skyblond.jna.wintun.WintunLib;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A ring that always has a packet ready and always has room, so benchmarks
+ * measure the session code and not a simulated driver.
+ */
+public class StubWintunLib extends FakeWintunLib implements WintunDataPlane {
+
+    private final Memory slot = new Memory(WintunLib.WINTUN_MAX_IP_PACKET_SIZE);
+    private final int packetSize;
+
+    public StubWintunLib(int packetSize) {
+        this.packetSize = packetSize;
+        slot.clear();
+        slot.setByte(0, (byte) 0x45);
+    }
+
+    @Override
+    public long receivePacket(long session, @NotNull IntByReference packetSize) {
+        packetSize.setValue(this.packetSize);
+        return Pointer.nativeValue(slot);
+    }
+
+    @Override
+    public void releaseReceivePacket(long session, long packet) {
+    }
+
+    @Override
+    public long allocateSendPacket(long session, int packetSize) {
+        return Pointer.nativeValue(slot);
+    }
+
+    @Override
+    public void sendPacket(long session, long packet) {
+    }
+}
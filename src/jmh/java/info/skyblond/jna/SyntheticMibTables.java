@@ -0,0 +1,87 @@
+package info.skyblond.jna;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Structure;
+import info.skyblond.jna.iphlp.MIB_IPFORWARD_ROW2;
+import info.skyblond.jna.iphlp.MIB_IPFORWARD_TABLE2;
+import info.skyblond.jna.iphlp.MibUnicastIPAddressRow;
+import info.skyblond.jna.iphlp.MibUnicastIPAddressTable;
+import info.skyblond.jna.iphlp.SocketAddrIn;
+
+/**
+ * Builds MIB tables in native memory, laid out like the ones IP Helper returns,
+ * so the parsing code can run without Windows.
+ * IPv4 only, row {@code i} belongs to interface LUID {@code i % 4}.
+ */
+public final class SyntheticMibTables {
+
+    private static final short AF_INET = 2;
+
+    private SyntheticMibTables() {
+    }
+
+    public static Memory forwardTable(int rows) {
+        MIB_IPFORWARD_ROW2 row = new MIB_IPFORWARD_ROW2();
+        int offset = tableOffset(row, true);
+        Memory memory = table(offset, row.size(), rows);
+        for (int i = 0; i < rows; i++) {
+            row.InterfaceLuid = i % 4;
+            row.InterfaceIndex = i % 4;
+            row.DestinationPrefix.Prefix.setType(SocketAddrIn.class);
+            row.DestinationPrefix.Prefix.Ipv4.sin_family = AF_INET;
+            row.DestinationPrefix.Prefix.Ipv4.sin_addr = ipv4(i);
+            row.DestinationPrefix.PrefixLength = 24;
+            row.NextHop.setType(SocketAddrIn.class);
+            row.NextHop.Ipv4.sin_family = AF_INET;
+            row.NextHop.Ipv4.sin_addr = new byte[]{10, 0, 0, 1};
+            row.Metric = i;
+            copyRow(row, memory, offset, i);
+        }
+        return memory;
+    }
+
+    public static Memory unicastAddressTable(int rows) {
+        MibUnicastIPAddressRow row = new MibUnicastIPAddressRow();
+        int offset = tableOffset(row, false);
+        Memory memory = table(offset, row.size(), rows);
+        for (int i = 0; i < rows; i++) {
+            row.Address.setType(SocketAddrIn.class);
+            row.Address.Ipv4.sin_family = AF_INET;
+            row.Address.Ipv4.sin_addr = ipv4(i);
+            row.InterfaceLuid = i % 4;
+            row.OnLinkPrefixLength = 24;
+            row.ValidLifetime = -1;
+            row.PreferredLifetime = -1;
+            copyRow(row, memory, offset, i);
+        }
+        return memory;
+    }
+
+    /**
+     * Where the rows start, after the entry count and its padding.
+     */
+    private static int tableOffset(Structure row, boolean forward) {
+        Memory probe = new Memory(row.size() * 2L + 64);
+        probe.clear();
+        probe.setInt(0, 1);
+        Structure table = forward ? new MIB_IPFORWARD_TABLE2(probe) : new MibUnicastIPAddressTable(probe);
+        return table.size() - row.size();
+    }
+
+    private static Memory table(int offset, int rowSize, int rows) {
+        Memory memory = new Memory(offset + (long) rowSize * Math.max(rows, 1));
+        memory.clear();
+        memory.setInt(0, rows);
+        return memory;
+    }
+
+    private static void copyRow(Structure row, Memory memory, int offset, int index) {
+        row.write();
+        byte[] bytes = row.getPointer().getByteArray(0, row.size());
+        memory.write(offset + (long) row.size() * index, bytes, 0, bytes.length);
+    }
+
+    private static byte[] ipv4(int i) {
+        return new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+    }
+}
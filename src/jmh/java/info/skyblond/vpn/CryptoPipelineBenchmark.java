@@ -0,0 +1,82 @@
+package info.skyblond.vpn;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.KeyGenerator;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AES-GCM encryption of {@link EncryptingTransport} through an {@link OrderedPipeline},
+ * with more and more workers, against doing it on the calling thread. Throughput
+ * should grow with the workers up to the core count, the score is per packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoPipelineBenchmark {
+
+    private static final int PACKETS = 1024;
+
+    @Param({"1", "2", "4", "8"})
+    public int workers;
+
+    @Param({"1400"})
+    public int packetSize;
+
+    private ExecutorService pool;
+    private OrderedPipeline pipeline;
+    private EncryptingTransport.Encrypt encrypt;
+    private ByteBuffer packet;
+    private byte[] input;
+    private byte[] output;
+    private long sequence;
+    private long bytes;
+    private final TunnelTransport.FrameHandler results = encrypted -> bytes += encrypted.remaining();
+
+    @Setup
+    public void setup() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        encrypt = new EncryptingTransport.Encrypt(generator.generateKey(), 1);
+        pool = Executors.newFixedThreadPool(workers);
+        pipeline = new OrderedPipeline(pool, encrypt, 1024, 32, new LongAdder());
+        input = new byte[packetSize];
+        output = new byte[encrypt.outputSize(packetSize)];
+        packet = ByteBuffer.wrap(input);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public long pipeline() throws Exception {
+        for (int i = 0; i < PACKETS; i++) {
+            pipeline.submit(packet, results);
+        }
+        pipeline.drain(results);
+        return bytes;
+    }
+
+    /**
+     * One thread, what the pipeline has to beat.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public long callingThread() throws Exception {
+        long length = 0;
+        for (int i = 0; i < PACKETS; i++) {
+            length += encrypt.process(sequence++, input, packetSize, output);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,102 @@
+package info.skyblond.vpn;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The payload codec and the length-prefixed framing done by {@link WintunVpn}
+ * on every packet, against in-memory streams.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    @Param({"64", "1500", "9000"})
+    public int packetSize;
+
+    private final PayloadCodec codec = WintunVpn.DEFAULT_CODEC;
+    private byte[] packet;
+    private ByteBuffer heap;
+    private ByteBuffer direct;
+    private DataOutputStream output;
+    private ByteArrayInputStream frames;
+    private DataInputStream input;
+
+    @Setup
+    public void setup() throws IOException {
+        packet = new byte[packetSize];
+        for (int i = 0; i < packetSize; i++) {
+            packet[i] = (byte) i;
+        }
+        heap = ByteBuffer.wrap(packet);
+        direct = ByteBuffer.allocateDirect(packetSize);
+        direct.put(packet).clear();
+        output = new DataOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        ByteArrayOutputStream one = new ByteArrayOutputStream();
+        new DataOutputStream(one).writeShort(packetSize);
+        one.write(packet);
+        frames = new ByteArrayInputStream(one.toByteArray());
+        input = new DataInputStream(frames);
+    }
+
+    /**
+     * Byte by byte through a heap buffer, what a codec without array access costs.
+     */
+    @Benchmark
+    public ByteBuffer maskBytes() {
+        for (int i = 0; i < packetSize; i++) {
+            heap.put(i, (byte) (heap.get(i) ^ 0xe));
+        }
+        return heap;
+    }
+
+    @Benchmark
+    public byte[] maskArray() {
+        codec.encode(packet, 0, packetSize);
+        return packet;
+    }
+
+    @Benchmark
+    public ByteBuffer maskDirect() {
+        codec.encode(direct);
+        return direct;
+    }
+
+    /**
+     * Upstream: adapter packet to socket frame.
+     */
+    @Benchmark
+    public void writeFrame() throws IOException {
+        output.writeShort(packetSize);
+        codec.encode(packet, 0, packetSize);
+        output.write(packet, 0, packetSize);
+        output.flush();
+    }
+
+    /**
+     * Downstream: socket frame to adapter packet.
+     */
+    @Benchmark
+    public byte[] readFrame() throws IOException {
+        frames.reset();
+        int length = input.readUnsignedShort();
+        input.readFully(packet, 0, length);
+        codec.decode(packet, 0, length);
+        return packet;
+    }
+}
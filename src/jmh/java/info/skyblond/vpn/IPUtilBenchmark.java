@@ -0,0 +1,57 @@
+package info.skyblond.vpn;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The route computation done when the VPN connects: splitting ranges into CIDRs
+ * and sorting the excluded ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IPUtilBenchmark {
+
+    @Param({"100", "1000"})
+    public int cidrs;
+
+    private InetAddress start;
+    private InetAddress end;
+    private List<IPUtil.CIDR> unsorted;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        // an awkward range, so it splits into many blocks
+        start = InetAddress.getByName("0.0.0.1");
+        end = InetAddress.getByName("223.255.255.254");
+        Random random = new Random(42);
+        unsorted = new ArrayList<>(cidrs);
+        for (int i = 0; i < cidrs; i++) {
+            byte[] address = new byte[4];
+            random.nextBytes(address);
+            unsorted.add(new IPUtil.CIDR(InetAddress.getByAddress(address), 8 + random.nextInt(25)));
+        }
+    }
+
+    @Benchmark
+    public List<IPUtil.CIDR> toCIDR() throws UnknownHostException {
+        return IPUtil.toCIDR(start, end);
+    }
+
+    @Benchmark
+    public List<IPUtil.CIDR> sortCIDR() {
+        List<IPUtil.CIDR> list = new ArrayList<>(unsorted);
+        Collections.sort(list);
+        return list;
+    }
+}
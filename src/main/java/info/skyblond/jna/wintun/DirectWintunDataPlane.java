@@ -0,0 +1,67 @@
+package info.skyblond.jna.wintun;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Direct-mapped binding of the wintun data plane functions.
+ * Handles are passed as plain {@code long}, so no object is created per call.
+ */
+final class DirectWintunDataPlane implements WintunDataPlane {
+
+    private static NativeLibrary registered;
+    private static DirectWintunDataPlane instance;
+
+    /**
+     * Register the native methods against {@code library}, once per JVM.
+     *
+     * @return the binding, or null if the functions can't be registered,
+     * or were already registered against another library.
+     */
+    static synchronized WintunDataPlane bind(NativeLibrary library) {
+        if (registered == null) {
+            try {
+                Native.register(DirectWintunDataPlane.class, library);
+                instance = new DirectWintunDataPlane();
+            } catch (UnsatisfiedLinkError e) {
+                instance = null;
+            }
+            registered = library;
+        }
+        return registered == library ? instance : null;
+    }
+
+    private DirectWintunDataPlane() {
+    }
+
+    private static native long WintunReceivePacket(long session, long packetSize);
+
+    private static native void WintunReleaseReceivePacket(long session, long packet);
+
+    private static native long WintunAllocateSendPacket(long session, int packetSize);
+
+    private static native void WintunSendPacket(long session, long packet);
+
+    @Override
+    public long receivePacket(long session, @NotNull IntByReference packetSize) {
+        return WintunReceivePacket(session, Pointer.nativeValue(packetSize.getPointer()));
+    }
+
+    @Override
+    public void releaseReceivePacket(long session, long packet) {
+        WintunReleaseReceivePacket(session, packet);
+    }
+
+    @Override
+    public long allocateSendPacket(long session, int packetSize) {
+        return WintunAllocateSendPacket(session, packetSize);
+    }
+
+    @Override
+    public void sendPacket(long session, long packet) {
+        WintunSendPacket(session, packet);
+    }
+}
@@ -0,0 +1,399 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.IoStatus;
+import info.skyblond.jna.wintun.NativeException;
+import info.skyblond.jna.wintun.SendBackoff;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The tunnel over a {@link SocketChannel}, with direct buffers only.
+ * <p>
+ * Upstream, packets are read from the ring into one direct buffer, back to back,
+ * and their length headers into another. Pending frames then leave with a single
+ * gathering write, header and payload buffers interleaved, under the same flush
+ * rules as {@link FramedWriter}. Downstream, each read takes as much as the socket
+ * has, and every complete frame in it is decoded in place and handed over, or,
+ * with {@link #readFramesInto(WintunSession, int)}, copied into the send ring and
+ * decoded there.
+ * <p>
+ * In {@link Mode#NON_BLOCKING} mode, a read or write that can't make progress
+ * retries a few times before waiting on a selector, trading some CPU for latency.
+ * <p>
+ * The server closing or resetting the connection comes out as a {@link SocketException},
+ * like it does from the streams of a {@link java.net.Socket}, so callers tell it apart
+ * from a real failure the same way for every transport.
+ */
+public class ChannelTransport implements TunnelTransport {
+
+    public enum Mode {
+        /**
+         * Reads and writes block in the kernel.
+         */
+        BLOCKING,
+
+        /**
+         * Reads and writes spin, then wait on a selector.
+         */
+        NON_BLOCKING
+    }
+
+    private static final int HEADER_SIZE = 2;
+
+    /**
+     * Payload bytes gathered upstream before a write, and bytes taken downstream per read.
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Frames per gathering write, two buffers each, well under IOV_MAX.
+     */
+    private static final int MAX_FRAMES = 256;
+
+    /**
+     * How long an upstream frame may wait for others while the adapter keeps sending.
+     */
+    private static final long MAX_DELAY_MICROS = 200;
+
+    /**
+     * Attempts before waiting on the selector, in non-blocking mode.
+     */
+    private static final int SPINS = 100;
+
+    public static Factory factory(Mode mode) {
+        return (server, timeoutMs, codec, metrics) -> {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.socket().connect(server, timeoutMs);
+                // frames are already gathered, don't let Nagle hold a lone one back
+                channel.socket().setTcpNoDelay(true);
+                return new ChannelTransport(channel, mode, codec, metrics);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        };
+    }
+
+    private final SocketChannel channel;
+    private final PayloadCodec codec;
+    private final TunnelMetrics metrics;
+    private final long maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(MAX_DELAY_MICROS);
+
+    private final ByteBuffer payloads = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    /**
+     * Header of frame i at 2 * i, its payload at 2 * i + 1, all views made once.
+     */
+    private final ByteBuffer[] gather = new ByteBuffer[2 * MAX_FRAMES];
+    private int pendingFrames;
+    private long pendingBytes;
+    private long firstFrameNanos;
+
+    private final ByteBuffer input = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer frame = input.duplicate();
+    private final SendBackoff backoff = new SendBackoff();
+
+    private final Selector readSelector;
+    private final Selector writeSelector;
+
+    /**
+     * @param channel connected, closed with the transport
+     */
+    public ChannelTransport(SocketChannel channel, Mode mode, PayloadCodec codec, TunnelMetrics metrics) throws IOException {
+        this.channel = channel;
+        this.codec = codec;
+        this.metrics = metrics;
+        ByteBuffer headers = ByteBuffer.allocateDirect(HEADER_SIZE * MAX_FRAMES);
+        for (int i = 0; i < MAX_FRAMES; i++) {
+            ((Buffer) headers).limit(HEADER_SIZE * (i + 1)).position(HEADER_SIZE * i);
+            gather[2 * i] = headers.slice();
+            gather[2 * i + 1] = payloads.duplicate();
+        }
+        if (mode == Mode.NON_BLOCKING) {
+            channel.configureBlocking(false);
+            readSelector = Selector.open();
+            writeSelector = Selector.open();
+            channel.register(readSelector, SelectionKey.OP_READ);
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        } else {
+            channel.configureBlocking(true);
+            readSelector = null;
+            writeSelector = null;
+        }
+    }
+
+    @Override
+    public void writeRaw(byte[] bytes) throws IOException {
+        flush();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int spins = 0;
+        while (buffer.hasRemaining()) {
+            if (write(buffer) == 0) {
+                spins = awaitWritable(spins);
+            }
+        }
+    }
+
+    @Override
+    public IoStatus readFrame(WintunSession session, int awaitTimeMs) throws IOException, NativeException {
+        makeRoom();
+        int start = payloads.position();
+        IoStatus status = session.readPacket(payloads, awaitTimeMs);
+        if (status != IoStatus.OK) {
+            ((Buffer) payloads).position(start);
+            return status;
+        }
+        endFrame(start);
+        return IoStatus.OK;
+    }
+
+    @Override
+    public void writeFrame(ByteBuffer packet) throws IOException {
+        if (packet.remaining() > WintunLib.WINTUN_MAX_IP_PACKET_SIZE) {
+            throw new IllegalArgumentException("Packet too big: " + packet.remaining());
+        }
+        makeRoom();
+        int start = payloads.position();
+        int position = packet.position();
+        payloads.put(packet);
+        ((Buffer) packet).position(position);
+        endFrame(start);
+    }
+
+    private void makeRoom() throws IOException {
+        if (pendingFrames == MAX_FRAMES || payloads.remaining() < WintunLib.WINTUN_MAX_IP_PACKET_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Encode the payload from {@code start} to the position, and add it as a pending frame.
+     */
+    private void endFrame(int start) throws IOException {
+        int length = payloads.position() - start;
+        ByteBuffer payload = gather[2 * pendingFrames + 1];
+        ((Buffer) payload).clear();
+        ((Buffer) payload).limit(start + length).position(start);
+        codec.encode(payload);
+        ByteBuffer header = gather[2 * pendingFrames];
+        ((Buffer) header).clear();
+        header.putShort(0, (short) length);
+        pendingBytes += HEADER_SIZE + length;
+        metrics.recordUp(length);
+        long now = System.nanoTime();
+        if (pendingFrames++ == 0) {
+            firstFrameNanos = now;
+        }
+        if (now - firstFrameNanos >= maxDelayNanos) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (pendingFrames == 0) {
+            return;
+        }
+        int spins = 0;
+        while (pendingBytes > 0) {
+            long written = write(gather, 2 * pendingFrames);
+            if (written == 0) {
+                spins = awaitWritable(spins);
+            }
+            pendingBytes -= written;
+        }
+        metrics.flushes.increment();
+        metrics.framesPerFlush.record(pendingFrames);
+        ((Buffer) payloads).clear();
+        pendingFrames = 0;
+    }
+
+    @Override
+    public boolean readFrames(FrameHandler handler) throws IOException, NativeException, InterruptedException {
+        if (!fill()) {
+            return false;
+        }
+        while (input.remaining() >= HEADER_SIZE) {
+            int start = input.position();
+            int length = input.getShort(start) & 0xffff;
+            if (input.remaining() < HEADER_SIZE + length) {
+                break;
+            }
+            ((Buffer) frame).clear();
+            ((Buffer) frame).limit(start + HEADER_SIZE + length).position(start + HEADER_SIZE);
+            codec.decode(frame);
+            metrics.recordDown(length);
+            handler.onFrame(frame);
+            ((Buffer) input).position(start + HEADER_SIZE + length);
+        }
+        input.compact();
+        return true;
+    }
+
+    /**
+     * Each complete packet in the input buffer is copied into a slot reserved
+     * in the send ring, and decoded there. A packet is only reserved once all of
+     * it is buffered, so a slow server never holds a slot, and the ring, hostage.
+     */
+    @Override
+    public boolean readFramesInto(WintunSession session, int maxLength)
+            throws IOException, NativeException, InterruptedException {
+        if (!fill()) {
+            return false;
+        }
+        while (input.remaining() >= HEADER_SIZE) {
+            int start = input.position();
+            int length = input.getShort(start) & 0xffff;
+            if (length > maxLength) {
+                throw new IOException("Packet too long: " + length);
+            }
+            if (input.remaining() < HEADER_SIZE + length) {
+                // the buffer holds a maximum-size frame, the next fill brings the rest
+                break;
+            }
+            if (length > 0) {
+                ((Buffer) frame).clear();
+                ((Buffer) frame).limit(start + HEADER_SIZE + length).position(start + HEADER_SIZE);
+                sendCopy(session, frame);
+            }
+            ((Buffer) input).position(start + HEADER_SIZE + length);
+        }
+        input.compact();
+        return true;
+    }
+
+    private void sendCopy(WintunSession session, ByteBuffer packet)
+            throws IOException, NativeException, InterruptedException {
+        int length = packet.remaining();
+        ByteBuffer slot;
+        while ((slot = session.reserveSend(length)) == null) {
+            if (!channel.isOpen()) {
+                throw new ClosedChannelException();
+            }
+            backoff.pause();
+        }
+        backoff.reset();
+        boolean sent = false;
+        try {
+            int slotStart = slot.position();
+            slot.put(packet);
+            ((Buffer) slot).position(slotStart);
+            codec.decode(slot);
+            metrics.recordDown(length);
+            session.commitSend();
+            sent = true;
+        } finally {
+            if (!sent) {
+                session.commitSend(true);
+            }
+        }
+    }
+
+    /**
+     * Read what the socket has, waiting for at least a byte, and flip the input for parsing.
+     *
+     * @return false once the server closed the connection
+     */
+    private boolean fill() throws IOException {
+        int spins = 0;
+        int read;
+        while ((read = read(input)) == 0) {
+            spins = awaitReadable(spins);
+        }
+        if (read < 0) {
+            return false;
+        }
+        ((Buffer) input).flip();
+        return true;
+    }
+
+    private int read(ByteBuffer buffer) throws IOException {
+        try {
+            return channel.read(buffer);
+        } catch (IOException e) {
+            throw connectionLoss(e);
+        }
+    }
+
+    private int write(ByteBuffer buffer) throws IOException {
+        try {
+            return channel.write(buffer);
+        } catch (IOException e) {
+            throw connectionLoss(e);
+        }
+    }
+
+    private long write(ByteBuffer[] buffers, int length) throws IOException {
+        try {
+            return channel.write(buffers, 0, length);
+        } catch (IOException e) {
+            throw connectionLoss(e);
+        }
+    }
+
+    /**
+     * NIO reports a broken pipe or a reset as a plain {@link IOException},
+     * its subclasses, like {@link ClosedChannelException}, are left as they are.
+     */
+    private static IOException connectionLoss(IOException e) {
+        if (e.getClass() != IOException.class) {
+            return e;
+        }
+        SocketException loss = new SocketException(e.getMessage());
+        loss.initCause(e);
+        return loss;
+    }
+
+    /**
+     * @return the spins so far, to pass back on the next call
+     */
+    private int awaitReadable(int spins) throws IOException {
+        return await(readSelector, spins);
+    }
+
+    private int awaitWritable(int spins) throws IOException {
+        return await(writeSelector, spins);
+    }
+
+    private int await(Selector selector, int spins) throws IOException {
+        if (selector == null || spins < SPINS) {
+            return spins + 1;
+        }
+        if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        try {
+            selector.select();
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            // closed by another thread
+            throw new ClosedChannelException();
+        }
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            if (readSelector != null) {
+                readSelector.wakeup();
+                writeSelector.wakeup();
+                readSelector.close();
+                writeSelector.close();
+            }
+        }
+    }
+}
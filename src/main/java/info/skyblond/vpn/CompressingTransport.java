@@ -0,0 +1,331 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.IoStatus;
+import info.skyblond.jna.wintun.NativeException;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the packets of another transport with deflate at its fastest level,
+ * for links where bandwidth costs more than CPU.
+ * <p>
+ * A compressed payload is a {@value #COMPRESSED} byte, which no IP packet starts with,
+ * the dictionary slot of its flow, then a zlib stream. Each flow uses the start of its
+ * previous compressed packet as preset dictionary, so repeated headers cost next to
+ * nothing, and the zlib header names the dictionary, so the other end can tell when
+ * it doesn't have the same one and drop the packet. Every {@value #RESYNC_INTERVAL}th
+ * packet of a flow goes without, to get both ends back in step. Both ends must see
+ * the compressed packets of a connection in order: put this under a
+ * {@link StripedTransport} rather than over it, and not over UDP.
+ * <p>
+ * Packets that wouldn't shrink are sent as they are: small ones, ones to or from
+ * ports that carry encryption like TLS and QUIC, and ones whose sampled bytes are
+ * too varied to be anything but encrypted or compressed already.
+ * <p>
+ * The server must support it, it's asked for with {@value #HANDSHAKE_FLAG} in the handshake.
+ * Frames from the server are decompressed the same way, then handed over.
+ */
+public class CompressingTransport implements TunnelTransport {
+
+    /**
+     * Set in the OS type byte of the handshake.
+     */
+    public static final int HANDSHAKE_FLAG = 0x40;
+
+    /**
+     * Marks a compressed payload, IP packets start with version 4 or 6 in the high nibble.
+     */
+    static final byte COMPRESSED = 0x00;
+
+    /**
+     * The marker and the dictionary slot.
+     */
+    private static final int PREFIX_SIZE = 2;
+
+    /**
+     * Smaller packets are mostly headers, not worth the CPU.
+     */
+    private static final int MIN_SIZE = 128;
+
+    /**
+     * Compressed packets of a flow between two without dictionary.
+     */
+    static final int RESYNC_INTERVAL = 64;
+
+    /**
+     * Bytes sampled past the headers, and how many distinct values among them mean
+     * random data. 64 random bytes have about 56 distinct values, text about 25.
+     */
+    private static final int SAMPLES = 64;
+    private static final int MAX_DISTINCT = 50;
+    private static final int HEADERS_SIZE = 40;
+
+    /**
+     * TLS, QUIC, SSH and other ports whose payload is encrypted.
+     */
+    private static final int[] ENCRYPTED_PORTS = {22, 443, 465, 853, 993, 995, 8443};
+    private static final int TCP = 6;
+    private static final int UDP = 17;
+    private static final int ESP = 50;
+
+    public static Factory factory(Factory factory) {
+        return (server, timeoutMs, codec, metrics) ->
+                new CompressingTransport(factory.connect(server, timeoutMs, codec, metrics), metrics);
+    }
+
+    private final TunnelTransport transport;
+    private final TunnelMetrics metrics;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final FlowDictionaries upDictionaries = new FlowDictionaries();
+    private final int[] upCounts = new int[FlowDictionaries.FLOWS];
+    private final byte[] raw = new byte[WintunLib.WINTUN_MAX_IP_PACKET_SIZE];
+    private final byte[] compressed = new byte[WintunLib.WINTUN_MAX_IP_PACKET_SIZE];
+    private final ByteBuffer compressedBuffer = ByteBuffer.wrap(compressed);
+    private final long[] seen = new long[4];
+
+    private final Inflater inflater = new Inflater();
+    private final FlowDictionaries downDictionaries = new FlowDictionaries();
+    private final byte[] received = new byte[WintunLib.WINTUN_MAX_IP_PACKET_SIZE];
+    private final byte[] inflated = new byte[WintunLib.WINTUN_MAX_IP_PACKET_SIZE];
+    private final ByteBuffer inflatedBuffer = ByteBuffer.wrap(inflated);
+
+    /**
+     * Set before the deflater and inflater are ended, checked under their locks.
+     */
+    private volatile boolean ended;
+
+    /**
+     * @param transport closed with this one
+     */
+    public CompressingTransport(TunnelTransport transport, TunnelMetrics metrics) {
+        this.transport = transport;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public int handshakeFlags() {
+        return transport.handshakeFlags() | HANDSHAKE_FLAG;
+    }
+
+    @Override
+    public void writeRaw(byte[] bytes) throws IOException {
+        transport.writeRaw(bytes);
+    }
+
+    @Override
+    public IoStatus readFrame(WintunSession session, int awaitTimeMs) throws IOException, NativeException {
+        return LeasedFrames.readFrame(this, session, awaitTimeMs);
+    }
+
+    @Override
+    public void writeFrame(ByteBuffer packet) throws IOException {
+        long start = System.nanoTime();
+        int length;
+        synchronized (deflater) {
+            if (ended) {
+                throw new ClosedChannelException();
+            }
+            length = compress(packet);
+        }
+        if (length < 0) {
+            metrics.compressionSkipped.increment();
+            transport.writeFrame(packet);
+            return;
+        }
+        metrics.compressNanos.record(System.nanoTime() - start);
+        metrics.compressedUp.increment();
+        metrics.compressionBytesIn.add(packet.remaining());
+        metrics.compressionBytesOut.add(length);
+        ((Buffer) compressedBuffer).limit(length).position(0);
+        transport.writeFrame(compressedBuffer);
+    }
+
+    /**
+     * Compress the packet into {@link #compressed}, the packet itself is left untouched.
+     *
+     * @return the compressed length, or -1 to send the packet as it is
+     */
+    private int compress(ByteBuffer packet) {
+        int length = packet.remaining();
+        if (length < MIN_SIZE || isEncrypted(packet) || looksRandom(packet)) {
+            return -1;
+        }
+        // Deflater only takes arrays before Java 11
+        int position = packet.position();
+        packet.get(raw, 0, length);
+        ((Buffer) packet).position(position);
+
+        int slot = FlowDictionaries.slot(packet);
+        deflater.reset();
+        if (upCounts[slot]++ % RESYNC_INTERVAL != 0 && upDictionaries.length(slot) > 0) {
+            deflater.setDictionary(upDictionaries.get(slot), 0, upDictionaries.length(slot));
+        }
+        deflater.setInput(raw, 0, length);
+        deflater.finish();
+        compressed[0] = COMPRESSED;
+        compressed[1] = (byte) slot;
+        // no smaller than the packet, or it's not worth it
+        int size = PREFIX_SIZE + deflater.deflate(compressed, PREFIX_SIZE, length - PREFIX_SIZE);
+        if (!deflater.finished() || size >= length) {
+            return -1;
+        }
+        upDictionaries.update(slot, raw, 0, length);
+        return size;
+    }
+
+    private static boolean isEncrypted(ByteBuffer packet) {
+        int p = packet.position();
+        int length = packet.remaining();
+        int protocol;
+        int ports;
+        switch (packet.get(p) >>> 4 & 0xf) {
+            case 4:
+                protocol = packet.get(p + 9) & 0xff;
+                ports = p + (packet.get(p) & 0xf) * 4;
+                // later fragments carry no ports
+                if ((packet.getShort(p + 6) & 0x1fff) != 0) {
+                    return false;
+                }
+                break;
+            case 6:
+                protocol = packet.get(p + 6) & 0xff;
+                ports = p + 40;
+                break;
+            default:
+                return false;
+        }
+        if (protocol == ESP) {
+            return true;
+        }
+        if ((protocol != TCP && protocol != UDP) || ports + 4 > p + length) {
+            return false;
+        }
+        int source = packet.getShort(ports) & 0xffff;
+        int destination = packet.getShort(ports + 2) & 0xffff;
+        for (int port : ENCRYPTED_PORTS) {
+            if (source == port || destination == port) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Count the distinct values of bytes sampled evenly past the headers.
+     */
+    private boolean looksRandom(ByteBuffer packet) {
+        int from = packet.position() + HEADERS_SIZE;
+        int span = packet.limit() - from;
+        if (span < SAMPLES) {
+            return false;
+        }
+        int step = span / SAMPLES;
+        seen[0] = seen[1] = seen[2] = seen[3] = 0;
+        int distinct = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            int value = packet.get(from + i * step) & 0xff;
+            long bit = 1L << value;
+            if ((seen[value >>> 6] & bit) == 0) {
+                seen[value >>> 6] |= bit;
+                distinct++;
+            }
+        }
+        return distinct > MAX_DISTINCT;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        transport.flush();
+    }
+
+    @Override
+    public boolean readFrames(FrameHandler handler) throws IOException, NativeException, InterruptedException {
+        return transport.readFrames(packet -> {
+            if (!packet.hasRemaining() || packet.get(packet.position()) != COMPRESSED) {
+                handler.onFrame(packet);
+                return;
+            }
+            long start = System.nanoTime();
+            int length;
+            synchronized (inflater) {
+                if (ended) {
+                    throw new ClosedChannelException();
+                }
+                length = decompress(packet);
+            }
+            metrics.decompressNanos.record(System.nanoTime() - start);
+            if (length < 0) {
+                metrics.decompressFailures.increment();
+                return;
+            }
+            metrics.decompressedDown.increment();
+            ((Buffer) inflatedBuffer).limit(length).position(0);
+            handler.onFrame(inflatedBuffer);
+        });
+    }
+
+    /**
+     * Decompress the packet into {@link #inflated}.
+     *
+     * @return the decompressed length, or -1 to drop the packet
+     */
+    private int decompress(ByteBuffer packet) {
+        int length = packet.remaining() - PREFIX_SIZE;
+        if (length <= 0) {
+            return -1;
+        }
+        int slot = packet.get(packet.position() + 1) & (FlowDictionaries.FLOWS - 1);
+        ((Buffer) packet).position(packet.position() + PREFIX_SIZE);
+        // Inflater only takes arrays before Java 11
+        packet.get(received, 0, length);
+        inflater.reset();
+        inflater.setInput(received, 0, length);
+        try {
+            int size = inflater.inflate(inflated);
+            if (size == 0 && inflater.needsDictionary()) {
+                if (downDictionaries.length(slot) == 0) {
+                    return -1;
+                }
+                // throws if it's not the dictionary the other end used
+                inflater.setDictionary(downDictionaries.get(slot), 0, downDictionaries.length(slot));
+                size = inflater.inflate(inflated);
+            }
+            if (!inflater.finished()) {
+                return -1;
+            }
+            downDictionaries.update(slot, inflated, 0, size);
+            return size;
+        } catch (DataFormatException | IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Closes the inner transport, then frees the native memory of the deflater
+     * and inflater, once a forwarding thread still working on a packet is done with
+     * it. Packets after that fail with {@link ClosedChannelException}.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            transport.close();
+        } finally {
+            ended = true;
+            synchronized (deflater) {
+                deflater.end();
+            }
+            synchronized (inflater) {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.IoStatus;
+import info.skyblond.jna.wintun.NativeException;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The tunnel over UDP, so a lost packet only delays the inner flow it belongs to,
+ * instead of every flow behind it in a TCP stream.
+ * <p>
+ * Each datagram is a u32 sequence number followed by frames, the same u16 length
+ * and encoded payload as over TCP. Upstream, frames fill a datagram up to
+ * {@value #DATAGRAM_SIZE} bytes, under the same flush rules as {@link FramedWriter},
+ * a packet bigger than that goes alone and is left to IP fragmentation.
+ * A datagram without frames is a keepalive, sent when nothing else was for a while,
+ * to hold NAT bindings open. The handshake from {@link #writeRaw(byte[])} goes as
+ * a datagram of its own, the first one, and is sent again every
+ * {@value #HANDSHAKE_RETRY_MILLIS}ms until a datagram comes back, in case it was
+ * lost or the server wasn't up yet. The server must ignore a repeated handshake.
+ * <p>
+ * Downstream, each call takes every datagram that is waiting, up to {@value #BATCH},
+ * and the sequence numbers count loss and reordering in {@link TunnelMetrics}.
+ * Nothing is resent, the inner flows take care of that.
+ */
+public class DatagramTransport implements TunnelTransport {
+
+    private static final int SEQUENCE_SIZE = 4;
+    private static final int HEADER_SIZE = 2;
+
+    /**
+     * A 1500 bytes ethernet frame less the IPv4 and UDP headers.
+     */
+    private static final int DATAGRAM_SIZE = 1472;
+
+    /**
+     * The largest UDP payload over IPv4.
+     */
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+
+    /**
+     * Gathered upstream before starting over.
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Datagrams taken per {@link #readFrames(FrameHandler)}.
+     */
+    private static final int BATCH = 64;
+
+    /**
+     * How long an upstream frame may wait for others while the adapter keeps sending.
+     */
+    private static final long MAX_DELAY_MICROS = 200;
+
+    /**
+     * Attempts before waiting on the selector.
+     */
+    private static final int SPINS = 100;
+
+    /**
+     * Socket buffers, so bursts don't overflow the kernel queue.
+     */
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Idle time before a keepalive, well under the 30 seconds some NATs keep UDP bindings.
+     */
+    public static final long KEEPALIVE_MILLIS = 15_000;
+
+    /**
+     * How long to wait for the server to answer before sending the handshake again.
+     */
+    private static final long HANDSHAKE_RETRY_MILLIS = 1_000;
+    private static final long HANDSHAKE_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(HANDSHAKE_RETRY_MILLIS);
+
+    public static final Factory FACTORY = factory(KEEPALIVE_MILLIS);
+
+    public static Factory factory(long keepaliveMillis) {
+        return (server, timeoutMs, codec, metrics) -> {
+            // nothing to wait for, there is no connection
+            DatagramChannel channel = DatagramChannel.open();
+            try {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+                channel.connect(server);
+                return new DatagramTransport(channel, keepaliveMillis, codec, metrics);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        };
+    }
+
+    private final DatagramChannel channel;
+    private final PayloadCodec codec;
+    private final TunnelMetrics metrics;
+    private final long maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(MAX_DELAY_MICROS);
+    private final long keepaliveNanos;
+    private final AtomicInteger nextSequence = new AtomicInteger();
+    private volatile long lastSendNanos = System.nanoTime();
+    private volatile byte[] handshake;
+    private volatile long handshakeNanos;
+    /**
+     * Set by the downstream thread once the server sent anything.
+     */
+    private volatile boolean answered;
+
+    private final ByteBuffer output = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    /**
+     * The sequence number, then the frames of the datagram.
+     */
+    private final ByteBuffer[] datagram = {ByteBuffer.allocateDirect(SEQUENCE_SIZE), output.duplicate()};
+    private int datagramStart;
+    private int pendingFrames;
+    private long firstFrameNanos;
+
+    private final ByteBuffer keepalive = ByteBuffer.allocateDirect(SEQUENCE_SIZE);
+
+    private final ByteBuffer input = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private final ByteBuffer frame = input.duplicate();
+    private final SequenceTracker received;
+
+    private final Selector readSelector;
+    private final Selector writeSelector;
+
+    /**
+     * @param channel connected, closed with the transport
+     */
+    public DatagramTransport(DatagramChannel channel, long keepaliveMillis, PayloadCodec codec, TunnelMetrics metrics)
+            throws IOException {
+        this.channel = channel;
+        this.keepaliveNanos = TimeUnit.MILLISECONDS.toNanos(keepaliveMillis);
+        this.codec = codec;
+        this.metrics = metrics;
+        this.received = new SequenceTracker(metrics.datagramsLost, metrics.datagramsReordered);
+        channel.configureBlocking(false);
+        readSelector = Selector.open();
+        writeSelector = Selector.open();
+        channel.register(readSelector, SelectionKey.OP_READ);
+        channel.register(writeSelector, SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Sends {@code bytes} as a datagram, and again until the server answers.
+     */
+    @Override
+    public void writeRaw(byte[] bytes) throws IOException {
+        flush();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int spins = 0;
+        while (channel.write(buffer) == 0) {
+            spins = awaitWritable(spins);
+        }
+        lastSendNanos = handshakeNanos = System.nanoTime();
+        handshake = bytes.clone();
+    }
+
+    @Override
+    public IoStatus readFrame(WintunSession session, int awaitTimeMs) throws IOException, NativeException {
+        int start = makeRoom();
+        ((Buffer) output).position(start + HEADER_SIZE);
+        IoStatus status = session.readPacket(output, awaitTimeMs);
+        if (status != IoStatus.OK) {
+            ((Buffer) output).position(start);
+            return status;
+        }
+        endFrame(start);
+        return IoStatus.OK;
+    }
+
+    @Override
+    public void writeFrame(ByteBuffer packet) throws IOException {
+        int start = makeRoom();
+        ((Buffer) output).position(start + HEADER_SIZE);
+        int position = packet.position();
+        output.put(packet);
+        ((Buffer) packet).position(position);
+        endFrame(start);
+    }
+
+    /**
+     * @return where the next frame starts
+     */
+    private int makeRoom() throws IOException {
+        if (output.remaining() < HEADER_SIZE + WintunLib.WINTUN_MAX_IP_PACKET_SIZE) {
+            flush();
+        }
+        if (pendingFrames == 0) {
+            ((Buffer) output).clear();
+            datagramStart = 0;
+        }
+        return output.position();
+    }
+
+    /**
+     * Encode the frame from {@code start} to the position, and send what's due.
+     */
+    private void endFrame(int start) throws IOException {
+        int end = output.position();
+        int length = end - start - HEADER_SIZE;
+        output.putShort(start, (short) length);
+        ByteBuffer payload = datagram[1];
+        ((Buffer) payload).clear();
+        ((Buffer) payload).limit(end).position(start + HEADER_SIZE);
+        codec.encode(payload);
+        metrics.recordUp(length);
+        long now = System.nanoTime();
+        if (pendingFrames > 0 && SEQUENCE_SIZE + end - datagramStart > DATAGRAM_SIZE) {
+            // doesn't fit with the others, they go first
+            send(start);
+        }
+        if (pendingFrames++ == 0) {
+            firstFrameNanos = now;
+        }
+        if (SEQUENCE_SIZE + end - datagramStart >= DATAGRAM_SIZE || now - firstFrameNanos >= maxDelayNanos) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (pendingFrames > 0) {
+            send(output.position());
+        }
+    }
+
+    /**
+     * Send the pending frames before {@code end} as one datagram.
+     */
+    private void send(int end) throws IOException {
+        ByteBuffer sequence = datagram[0];
+        ((Buffer) sequence).clear();
+        sequence.putInt(0, nextSequence.getAndIncrement());
+        ByteBuffer frames = datagram[1];
+        ((Buffer) frames).clear();
+        ((Buffer) frames).limit(end).position(datagramStart);
+        int spins = 0;
+        while (channel.write(datagram) == 0) {
+            spins = awaitWritable(spins);
+        }
+        lastSendNanos = System.nanoTime();
+        metrics.flushes.increment();
+        metrics.framesPerFlush.record(pendingFrames);
+        datagramStart = end;
+        pendingFrames = 0;
+    }
+
+    /**
+     * Never returns false, there is no end to datagrams. Closing the transport
+     * makes it throw {@link ClosedChannelException} instead.
+     */
+    @Override
+    public boolean readFrames(FrameHandler handler) throws IOException, NativeException, InterruptedException {
+        int spins = 0;
+        int datagrams = 0;
+        while (datagrams < BATCH) {
+            ((Buffer) input).clear();
+            if (channel.read(input) == 0) {
+                if (datagrams > 0) {
+                    break;
+                }
+                spins = awaitReadable(spins);
+                continue;
+            }
+            datagrams++;
+            answered = true;
+            ((Buffer) input).flip();
+            readDatagram(handler);
+        }
+        keepAlive();
+        return true;
+    }
+
+    private void readDatagram(FrameHandler handler) throws IOException, NativeException, InterruptedException {
+        if (input.remaining() < SEQUENCE_SIZE) {
+            metrics.datagramsMalformed.increment();
+            return;
+        }
+        received.record(input.getInt());
+        while (input.hasRemaining()) {
+            int start = input.position();
+            if (input.remaining() < HEADER_SIZE || input.remaining() < HEADER_SIZE + (input.getShort(start) & 0xffff)) {
+                // what came before is fine, the rest can't be trusted
+                metrics.datagramsMalformed.increment();
+                return;
+            }
+            int length = input.getShort(start) & 0xffff;
+            ((Buffer) frame).clear();
+            ((Buffer) frame).limit(start + HEADER_SIZE + length).position(start + HEADER_SIZE);
+            codec.decode(frame);
+            metrics.recordDown(length);
+            handler.onFrame(frame);
+            ((Buffer) input).position(start + HEADER_SIZE + length);
+        }
+    }
+
+    /**
+     * Send the handshake again if the server hasn't answered it for a while, and
+     * a keepalive if nothing was sent for a while. Called by the downstream thread,
+     * so an idle upstream doesn't need to wake up for it.
+     */
+    private void keepAlive() throws IOException {
+        byte[] handshake = this.handshake;
+        if (handshake != null && !answered && System.nanoTime() - handshakeNanos >= HANDSHAKE_RETRY_NANOS) {
+            // a full send buffer is tried again next time
+            channel.write(ByteBuffer.wrap(handshake));
+            lastSendNanos = handshakeNanos = System.nanoTime();
+        }
+        if (System.nanoTime() - lastSendNanos < keepaliveNanos) {
+            return;
+        }
+        ((Buffer) keepalive).clear();
+        keepalive.putInt(0, nextSequence.getAndIncrement());
+        // a full send buffer already holds the binding open
+        if (channel.write(keepalive) > 0) {
+            metrics.keepalives.increment();
+        }
+        lastSendNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the spins so far, to pass back on the next call
+     */
+    private int awaitReadable(int spins) throws IOException {
+        if (spins < SPINS) {
+            return spins + 1;
+        }
+        keepAlive();
+        long waitNanos = keepaliveNanos - (System.nanoTime() - lastSendNanos);
+        if (handshake != null && !answered) {
+            waitNanos = Math.min(waitNanos, HANDSHAKE_RETRY_NANOS - (System.nanoTime() - handshakeNanos));
+        }
+        await(readSelector, Math.max(TimeUnit.NANOSECONDS.toMillis(waitNanos), 1));
+        return 0;
+    }
+
+    private int awaitWritable(int spins) throws IOException {
+        if (spins < SPINS) {
+            return spins + 1;
+        }
+        await(writeSelector, 0);
+        return 0;
+    }
+
+    private void await(Selector selector, long timeoutMillis) throws IOException {
+        if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        try {
+            selector.select(timeoutMillis);
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            // closed by another thread
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            readSelector.wakeup();
+            writeSelector.wakeup();
+            readSelector.close();
+            writeSelector.close();
+        }
+    }
+}
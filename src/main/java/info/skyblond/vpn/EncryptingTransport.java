@@ -0,0 +1,235 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.IoStatus;
+import info.skyblond.jna.wintun.NativeException;
+import info.skyblond.jna.wintun.WintunSession;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encrypts the packets of another transport with AES-GCM, spread over a pool of
+ * workers so one core doesn't cap the tunnel. The JCA provider of the JDK uses the
+ * AES and carry-less multiply instructions of the CPU where there are some.
+ * <p>
+ * An encrypted payload is the 12 bytes nonce, then the ciphertext and its 16 bytes
+ * tag. The nonce is a 64-bit prefix drawn at random for each transport, then the
+ * 32-bit number of the packet. So a transport sends at most {@value #MAX_PACKETS}
+ * packets, then fails with an {@link IOException}, and a new connection draws a new
+ * prefix. Two connections under the same key only reuse nonces if they draw the same
+ * prefix: after 2^20 connections the odds of that are about one in 30 million, and
+ * they grow with the square of the count, so change keys before that many.
+ * <p>
+ * Packets that fail to decrypt are dropped. Both ways, an {@link OrderedPipeline}
+ * puts the packets back in order before they go on, so flows see them as they were sent.
+ * <p>
+ * Keys are shared beforehand, the receive key of one end is the send key of the other,
+ * and the two must differ. The server must support it, it's asked for with
+ * {@value #HANDSHAKE_FLAG} in the handshake. There is no replay protection.
+ */
+public class EncryptingTransport implements TunnelTransport {
+
+    /**
+     * Set in the OS type byte of the handshake.
+     */
+    public static final int HANDSHAKE_FLAG = 0x20;
+
+    static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    static final int NONCE_SIZE = 12;
+    static final int TAG_SIZE = 16;
+
+    /**
+     * Packets sent by one transport, before the packet number of the nonce would wrap around.
+     */
+    static final long MAX_PACKETS = 1L << 32;
+
+    /**
+     * Packets in flight each way, and per task given to a worker.
+     */
+    private static final int CAPACITY = 1024;
+    private static final int BATCH_SIZE = 32;
+
+    public static Factory factory(Factory factory, SecretKey sendKey, SecretKey receiveKey, int workers) {
+        return (server, timeoutMs, codec, metrics) -> new EncryptingTransport(
+                factory.connect(server, timeoutMs, codec, metrics), sendKey, receiveKey, workers, metrics);
+    }
+
+    /**
+     * Encrypts with the nonce in front, see the class doc.
+     */
+    static final class Encrypt implements OrderedPipeline.Stage {
+        private final SecretKey key;
+        private final long prefix;
+        private final ThreadLocal<Cipher> cipher = ThreadLocal.withInitial(EncryptingTransport::newCipher);
+
+        Encrypt(SecretKey key, long prefix) {
+            this.key = key;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public int outputSize(int length) {
+            return NONCE_SIZE + length + TAG_SIZE;
+        }
+
+        @Override
+        public int process(long sequence, byte[] input, int length, byte[] output) throws Exception {
+            putInt(output, 0, (int) (prefix >>> 32));
+            putInt(output, 4, (int) prefix);
+            putInt(output, 8, (int) sequence);
+            Cipher cipher = this.cipher.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, output, 0, NONCE_SIZE));
+            return NONCE_SIZE + cipher.doFinal(input, 0, length, output, NONCE_SIZE);
+        }
+
+        private static void putInt(byte[] bytes, int offset, int value) {
+            bytes[offset] = (byte) (value >>> 24);
+            bytes[offset + 1] = (byte) (value >>> 16);
+            bytes[offset + 2] = (byte) (value >>> 8);
+            bytes[offset + 3] = (byte) value;
+        }
+    }
+
+    /**
+     * Decrypts with the nonce found in front, drops what doesn't authenticate.
+     */
+    static final class Decrypt implements OrderedPipeline.Stage {
+        private final SecretKey key;
+        private final ThreadLocal<Cipher> cipher = ThreadLocal.withInitial(EncryptingTransport::newCipher);
+
+        Decrypt(SecretKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public int outputSize(int length) {
+            return Math.max(length - NONCE_SIZE, 0);
+        }
+
+        @Override
+        public int process(long sequence, byte[] input, int length, byte[] output) throws Exception {
+            if (length < NONCE_SIZE + TAG_SIZE) {
+                return -1;
+            }
+            Cipher cipher = this.cipher.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, input, 0, NONCE_SIZE));
+            return cipher.doFinal(input, NONCE_SIZE, length - NONCE_SIZE, output, 0);
+        }
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (Exception e) {
+            throw new IllegalStateException(TRANSFORMATION + " not available", e);
+        }
+    }
+
+    private final TunnelTransport transport;
+    private final ExecutorService workers;
+    private final OrderedPipeline upstream;
+    private final OrderedPipeline downstream;
+    private final FrameHandler encrypted;
+    private long sent;
+
+    /**
+     * @param transport closed with this one
+     * @param workers   threads encrypting and decrypting, shared by both ways
+     */
+    public EncryptingTransport(TunnelTransport transport, SecretKey sendKey, SecretKey receiveKey,
+                               int workers, TunnelMetrics metrics) {
+        this.transport = transport;
+        AtomicInteger threads = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workers, task -> {
+            Thread thread = new Thread(task, "tunnel-crypto-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long prefix = new SecureRandom().nextLong();
+        this.upstream = new OrderedPipeline(this.workers, new Encrypt(sendKey, prefix), CAPACITY, BATCH_SIZE,
+                metrics.cryptoFailures);
+        this.downstream = new OrderedPipeline(this.workers, new Decrypt(receiveKey), CAPACITY, BATCH_SIZE,
+                metrics.cryptoFailures);
+        this.encrypted = transport::writeFrame;
+    }
+
+    @Override
+    public int handshakeFlags() {
+        return transport.handshakeFlags() | HANDSHAKE_FLAG;
+    }
+
+    @Override
+    public void writeRaw(byte[] bytes) throws IOException {
+        flush();
+        transport.writeRaw(bytes);
+    }
+
+    @Override
+    public IoStatus readFrame(WintunSession session, int awaitTimeMs) throws IOException, NativeException {
+        return LeasedFrames.readFrame(this, session, awaitTimeMs);
+    }
+
+    /**
+     * @throws IOException once {@value #MAX_PACKETS} packets were sent, reconnect for a new nonce prefix
+     */
+    @Override
+    public void writeFrame(ByteBuffer packet) throws IOException {
+        if (sent == MAX_PACKETS) {
+            throw new IOException("Nonces used up after " + MAX_PACKETS + " packets, reconnect");
+        }
+        sent++;
+        try {
+            upstream.submit(packet, encrypted);
+        } catch (NativeException e) {
+            // the results only go to the inner transport, which doesn't throw it
+            throw new IOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Waits for the packets being encrypted, then flushes them.
+     */
+    @Override
+    public void flush() throws IOException {
+        try {
+            upstream.drain(encrypted);
+        } catch (NativeException e) {
+            throw new IOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        transport.flush();
+    }
+
+    /**
+     * Decrypts what one read of the inner transport brings, in parallel, and waits
+     * for all of it before returning, so nothing is held back until the next frames.
+     */
+    @Override
+    public boolean readFrames(FrameHandler handler) throws IOException, NativeException, InterruptedException {
+        boolean more = transport.readFrames(packet -> downstream.submit(packet, handler));
+        downstream.drain(handler);
+        return more;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            transport.close();
+        } finally {
+            workers.shutdown();
+        }
+    }
+}
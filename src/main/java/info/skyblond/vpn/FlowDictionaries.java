@@ -0,0 +1,46 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.FlowHash;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The start of the last compressed packet of each flow, the preset dictionary for
+ * the next one. Flows share a slot when their {@link FlowHash} collide, which is fine
+ * as long as both ends see the compressed packets of a connection in the same order.
+ * <p>
+ * NOT thread-safe.
+ */
+final class FlowDictionaries {
+
+    static final int FLOWS = 256;
+
+    /**
+     * Headers and the start of the payload, where packets of a flow look alike.
+     */
+    static final int DICTIONARY_SIZE = 1024;
+
+    private final byte[][] dictionaries = new byte[FLOWS][DICTIONARY_SIZE];
+    private final int[] lengths = new int[FLOWS];
+
+    static int slot(ByteBuffer packet) {
+        return FlowHash.of(packet) & (FLOWS - 1);
+    }
+
+    byte[] get(int slot) {
+        return dictionaries[slot];
+    }
+
+    /**
+     * @return 0 if nothing was compressed in the slot yet
+     */
+    int length(int slot) {
+        return lengths[slot];
+    }
+
+    void update(int slot, byte[] packet, int offset, int length) {
+        int size = Math.min(length, DICTIONARY_SIZE);
+        System.arraycopy(packet, offset, dictionaries[slot], 0, size);
+        lengths[slot] = size;
+    }
+}
@@ -0,0 +1,161 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.IoStatus;
+import info.skyblond.jna.wintun.NativeException;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers length-prefixed frames for the server in one buffer and writes them
+ * with a single call, instead of two writes and a flush per packet.
+ * <p>
+ * Frames are flushed when the next packet might not fit, when the oldest
+ * pending frame is older than the delay given at construction, or when
+ * {@link #flush()} is called, which the upstream loop does as soon as the
+ * receive ring is drained. So a lone packet leaves right away, and a burst
+ * leaves in as few writes as the buffer allows.
+ * <p>
+ * Packets are read from the session straight into the buffer and encoded
+ * there, see {@link #readFrame(WintunSession, int)}.
+ * <p>
+ * NOT thread-safe.
+ */
+public class FramedWriter implements Flushable {
+
+    private static final int HEADER_SIZE = 2;
+
+    /**
+     * Room needed to read any packet, a shorter read would drop it.
+     */
+    private static final int FRAME_ROOM = HEADER_SIZE + WintunLib.WINTUN_MAX_IP_PACKET_SIZE;
+
+    private final OutputStream output;
+    private final PayloadCodec codec;
+    private final TunnelMetrics metrics;
+    private final long maxDelayNanos;
+    private final byte[] frames;
+    private final ByteBuffer buffer;
+
+    private int pendingFrames;
+    private long firstFrameNanos;
+
+    /**
+     * @param capacity       bytes gathered at most per write, at least enough for one maximum-size frame
+     * @param maxDelayMicros how long a frame may wait for others under load, 0 to write every frame on its own
+     */
+    public FramedWriter(OutputStream output, PayloadCodec codec, TunnelMetrics metrics, int capacity, long maxDelayMicros) {
+        if (capacity < FRAME_ROOM) {
+            throw new IllegalArgumentException("Capacity must be at least " + FRAME_ROOM + ", got " + capacity);
+        }
+        if (maxDelayMicros < 0) {
+            throw new IllegalArgumentException("Delay must not be negative");
+        }
+        this.output = output;
+        this.codec = codec;
+        this.metrics = metrics;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.frames = new byte[capacity];
+        this.buffer = ByteBuffer.wrap(frames);
+    }
+
+    /**
+     * Frames waiting for the next flush.
+     */
+    public int getPendingFrames() {
+        return pendingFrames;
+    }
+
+    /**
+     * Read the next packet of {@code session} as a frame, see {@link WintunSession#readPacket(ByteBuffer, int)}.
+     * Pending frames are flushed first if the buffer is too full to hold any packet.
+     *
+     * @return the status of the read, the frame is added only on {@link IoStatus#OK}
+     */
+    public IoStatus readFrame(WintunSession session, int awaitTimeMs) throws IOException, NativeException {
+        if (buffer.remaining() < FRAME_ROOM) {
+            flush();
+        }
+        int start = buffer.position();
+        ((Buffer) buffer).position(start + HEADER_SIZE);
+        IoStatus status = session.readPacket(buffer, awaitTimeMs);
+        if (status != IoStatus.OK) {
+            ((Buffer) buffer).position(start);
+            return status;
+        }
+        endFrame(start, buffer.position() - start - HEADER_SIZE);
+        return IoStatus.OK;
+    }
+
+    /**
+     * Add a packet as a frame, flushing first if it doesn't fit.
+     * The packet itself is left untouched.
+     */
+    public void write(byte[] packet, int offset, int length) throws IOException {
+        if (length > WintunLib.WINTUN_MAX_IP_PACKET_SIZE) {
+            throw new IllegalArgumentException("Packet too big: " + length);
+        }
+        if (buffer.remaining() < HEADER_SIZE + length) {
+            flush();
+        }
+        int start = buffer.position();
+        ((Buffer) buffer).position(start + HEADER_SIZE);
+        buffer.put(packet, offset, length);
+        endFrame(start, length);
+    }
+
+    /**
+     * Add the packet between position and limit as a frame, flushing first if it doesn't fit.
+     * The packet itself is left untouched.
+     */
+    public void write(ByteBuffer packet) throws IOException {
+        int length = packet.remaining();
+        if (length > WintunLib.WINTUN_MAX_IP_PACKET_SIZE) {
+            throw new IllegalArgumentException("Packet too big: " + length);
+        }
+        if (buffer.remaining() < HEADER_SIZE + length) {
+            flush();
+        }
+        int start = buffer.position();
+        ((Buffer) buffer).position(start + HEADER_SIZE);
+        int position = packet.position();
+        buffer.put(packet);
+        ((Buffer) packet).position(position);
+        endFrame(start, length);
+    }
+
+    private void endFrame(int start, int length) throws IOException {
+        buffer.putShort(start, (short) length);
+        codec.encode(frames, start + HEADER_SIZE, length);
+        metrics.recordUp(length);
+        long now = System.nanoTime();
+        if (pendingFrames++ == 0) {
+            firstFrameNanos = now;
+        }
+        if (now - firstFrameNanos >= maxDelayNanos) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the pending frames, if any.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (pendingFrames == 0) {
+            return;
+        }
+        output.write(frames, 0, buffer.position());
+        output.flush();
+        metrics.flushes.increment();
+        metrics.framesPerFlush.record(pendingFrames);
+        ((Buffer) buffer).clear();
+        pendingFrames = 0;
+    }
+}
@@ -0,0 +1,45 @@
+package info.skyblond.vpn;
+
+import com.sun.jna.platform.win32.WinError;
+import info.skyblond.jna.wintun.IoStatus;
+import info.skyblond.jna.wintun.NativeException;
+import info.skyblond.jna.wintun.PacketLease;
+import info.skyblond.jna.wintun.WintunSession;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * {@link TunnelTransport#readFrame(WintunSession, int)} for transports that need to
+ * look at a packet before it's framed: the packet is leased from the ring and passed
+ * to {@link TunnelTransport#writeFrame(java.nio.ByteBuffer)}, no copy on the way.
+ */
+final class LeasedFrames {
+
+    private LeasedFrames() {
+    }
+
+    static IoStatus readFrame(TunnelTransport transport, WintunSession session, int awaitTimeMs)
+            throws IOException, NativeException {
+        PacketLease lease;
+        try {
+            lease = session.receive(awaitTimeMs);
+        } catch (EOFException e) {
+            return IoStatus.EOF;
+        } catch (NativeException e) {
+            if (e.getErrorCode() == WinError.ERROR_INVALID_DATA) {
+                return IoStatus.INVALID_DATA;
+            }
+            throw e;
+        }
+        if (lease == null) {
+            return IoStatus.EMPTY;
+        }
+        try {
+            transport.writeFrame(lease.getBuffer());
+        } finally {
+            lease.close();
+        }
+        return IoStatus.OK;
+    }
+}
@@ -0,0 +1,198 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.NativeException;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a {@link Stage} on packets in a pool of workers, a batch per task, and hands
+ * the results over in the order the packets came in.
+ * <p>
+ * Packets are copied into a ring of jobs, numbered as they come. A result is handed
+ * over once every packet before it has been, so a slow batch holds the later ones
+ * back, and a full ring makes {@link #submit} wait for the oldest.
+ * <p>
+ * One thread submits, drains and gets the results, the workers only run the stage.
+ */
+final class OrderedPipeline {
+
+    /**
+     * The work done on each packet, on any worker thread.
+     */
+    interface Stage {
+        /**
+         * Room the output of {@code length} bytes of input needs.
+         */
+        int outputSize(int length);
+
+        /**
+         * @param sequence number of the packet in this pipeline, from 0
+         * @return the length written to {@code output}, or -1 to drop the packet
+         */
+        int process(long sequence, byte[] input, int length, byte[] output) throws Exception;
+    }
+
+    private static final class Job {
+        byte[] input = new byte[0];
+        int length;
+        byte[] output = new byte[0];
+        ByteBuffer outputBuffer = ByteBuffer.wrap(output);
+        int outputLength;
+        volatile boolean done;
+    }
+
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final Executor workers;
+    private final Stage stage;
+    private final int batchSize;
+    private final LongAdder dropped;
+    private final Job[] jobs;
+    private final int mask;
+
+    /**
+     * Next to be numbered, next to go to the workers, next to be handed over.
+     */
+    private long submitted;
+    private long dispatched;
+    private long emitted;
+    private volatile Thread waiter;
+
+    /**
+     * @param capacity jobs in flight, a power of two
+     * @param dropped  counts the packets the stage dropped
+     */
+    OrderedPipeline(Executor workers, Stage stage, int capacity, int batchSize, LongAdder dropped) {
+        if (Integer.bitCount(capacity) != 1 || batchSize > capacity) {
+            throw new IllegalArgumentException("capacity must be a power of two, at least batchSize");
+        }
+        this.workers = workers;
+        this.stage = stage;
+        this.batchSize = batchSize;
+        this.dropped = dropped;
+        this.jobs = new Job[capacity];
+        for (int i = 0; i < capacity; i++) {
+            jobs[i] = new Job();
+        }
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Take a copy of the packet between position and limit, which is left untouched,
+     * and hand over the results that are ready.
+     */
+    void submit(ByteBuffer packet, TunnelTransport.FrameHandler results)
+            throws IOException, NativeException, InterruptedException {
+        if (submitted - emitted == jobs.length) {
+            dispatch();
+            emit(results, emitted + 1);
+        }
+        Job job = jobs[(int) submitted & mask];
+        int length = packet.remaining();
+        if (job.input.length < length) {
+            job.input = new byte[length];
+        }
+        int outputSize = stage.outputSize(length);
+        if (job.output.length < outputSize) {
+            job.output = new byte[outputSize];
+            job.outputBuffer = ByteBuffer.wrap(job.output);
+        }
+        int position = packet.position();
+        packet.get(job.input, 0, length);
+        ((Buffer) packet).position(position);
+        job.length = length;
+        job.done = false;
+        submitted++;
+        if (submitted - dispatched >= batchSize) {
+            dispatch();
+        }
+        emit(results, emitted);
+    }
+
+    /**
+     * Wait for every packet submitted so far, and hand the results over.
+     */
+    void drain(TunnelTransport.FrameHandler results) throws IOException, NativeException, InterruptedException {
+        dispatch();
+        emit(results, submitted);
+    }
+
+    private void dispatch() throws ClosedChannelException {
+        if (dispatched == submitted) {
+            return;
+        }
+        long from = dispatched;
+        long to = submitted;
+        try {
+            workers.execute(() -> run(from, to));
+        } catch (RejectedExecutionException e) {
+            // the pool is shut down with the transport
+            throw new ClosedChannelException();
+        }
+        dispatched = to;
+    }
+
+    private void run(long from, long to) {
+        for (long sequence = from; sequence < to; sequence++) {
+            Job job = jobs[(int) sequence & mask];
+            int outputLength;
+            try {
+                outputLength = stage.process(sequence, job.input, job.length, job.output);
+            } catch (Exception e) {
+                outputLength = -1;
+            }
+            job.outputLength = outputLength;
+            job.done = true;
+        }
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Hand over the results in order, waiting for the ones before {@code until},
+     * and taking the ready ones after.
+     */
+    private void emit(TunnelTransport.FrameHandler results, long until)
+            throws IOException, NativeException, InterruptedException {
+        while (emitted < submitted) {
+            Job job = jobs[(int) emitted & mask];
+            if (!job.done) {
+                if (emitted >= until) {
+                    return;
+                }
+                await(job);
+            }
+            emitted++;
+            if (job.outputLength < 0) {
+                dropped.increment();
+                continue;
+            }
+            ((Buffer) job.outputBuffer).limit(job.outputLength).position(0);
+            results.onFrame(job.outputBuffer);
+        }
+    }
+
+    private void await(Job job) throws InterruptedException {
+        waiter = Thread.currentThread();
+        try {
+            while (!job.done) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waiter = null;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package info.skyblond.vpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns IP packets into tunnel payloads and back, in place.
+ * Both ends of the tunnel must use the same codec.
+ * <p>
+ * A codec works on the bytes between the position and the limit of a buffer,
+ * heap or direct, so it can run on a ring slot of the session as well as on
+ * a socket buffer. Position and limit are left as they were.
+ * Implementations must not change the length of the payload.
+ */
+public interface PayloadCodec {
+
+    /**
+     * Packets go on the wire as they are.
+     */
+    PayloadCodec IDENTITY = new PayloadCodec() {
+        @Override
+        public void encode(ByteBuffer payload) {
+        }
+
+        @Override
+        public void decode(ByteBuffer payload) {
+        }
+    };
+
+    /**
+     * IP packet to tunnel payload, on the way to the server.
+     */
+    void encode(ByteBuffer payload);
+
+    /**
+     * Tunnel payload to IP packet, on the way to the adapter.
+     */
+    void decode(ByteBuffer payload);
+
+    default void encode(byte[] payload, int offset, int length) {
+        encode(ByteBuffer.wrap(payload, offset, length));
+    }
+
+    default void decode(byte[] payload, int offset, int length) {
+        decode(ByteBuffer.wrap(payload, offset, length));
+    }
+}
@@ -0,0 +1,95 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.NativeException;
+import info.skyblond.jna.wintun.PacketLease;
+import info.skyblond.jna.wintun.WintunSession;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packets from the adapter kept while the tunnel reconnects, and sent first once
+ * it's back. Only the newest ones are kept, the oldest are the first to be stale,
+ * so the inner flows lose a little instead of all of it.
+ * <p>
+ * NOT thread-safe.
+ */
+final class ReconnectBacklog {
+
+    private final byte[][] packets;
+    private final int[] lengths;
+    private final TunnelMetrics metrics;
+    private int oldest;
+    private int size;
+
+    ReconnectBacklog(int capacity, TunnelMetrics metrics) {
+        this.packets = new byte[capacity][0];
+        this.lengths = new int[capacity];
+        this.metrics = metrics;
+    }
+
+    /**
+     * Take packets from the session until {@code deadlineNanos}, or until the session is woken up.
+     *
+     * @return false if the session is closed
+     */
+    boolean fill(WintunSession session, long deadlineNanos) throws NativeException {
+        while (true) {
+            long remainingNanos = deadlineNanos - System.nanoTime();
+            if (remainingNanos <= 0) {
+                return true;
+            }
+            PacketLease lease;
+            try {
+                lease = session.receive((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos)));
+            } catch (EOFException e) {
+                return false;
+            }
+            if (lease == null) {
+                // timed out, or woken up to stop
+                return true;
+            }
+            try {
+                add(lease.getBuffer(), lease.getSize());
+            } finally {
+                lease.close();
+            }
+        }
+    }
+
+    private void add(ByteBuffer packet, int length) {
+        if (size == packets.length) {
+            oldest = (oldest + 1) % packets.length;
+            size--;
+            metrics.reconnectDropped.increment();
+        }
+        int index = (oldest + size) % packets.length;
+        if (packets[index].length < length) {
+            packets[index] = new byte[length];
+        }
+        packet.get(packets[index], 0, length);
+        lengths[index] = length;
+        size++;
+    }
+
+    /**
+     * Send the packets kept, oldest first, and forget them.
+     */
+    void replay(TunnelTransport transport) throws IOException {
+        while (size > 0) {
+            transport.writeFrame(ByteBuffer.wrap(packets[oldest], 0, lengths[oldest]));
+            metrics.reconnectReplayed.increment();
+            oldest = (oldest + 1) % packets.length;
+            size--;
+        }
+        transport.flush();
+    }
+
+    void clear() {
+        metrics.reconnectDropped.add(size);
+        oldest = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,72 @@
+package info.skyblond.vpn;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sequence numbers of the datagrams from one peer. A gap counts as lost until
+ * the missing datagram shows up late, then it counts as reordered instead.
+ * The gaps of the last {@value #REORDER_WINDOW} numbers are kept in a bitmap,
+ * so a duplicate, or a datagram too late to be in it, changes nothing.
+ * <p>
+ * Numbers wrap around, a datagram far behind the highest one is taken as the
+ * peer starting over.
+ * <p>
+ * NOT thread-safe.
+ */
+final class SequenceTracker {
+
+    /**
+     * How far behind a datagram may arrive and still count as reordered, a power of two.
+     */
+    private static final int REORDER_WINDOW = 1024;
+
+    private final LongAdder lost;
+    private final LongAdder reordered;
+    /**
+     * Bit {@code n % REORDER_WINDOW} is set while {@code n}, at most that far
+     * behind the highest number, is counted as lost.
+     */
+    private final long[] missing = new long[REORDER_WINDOW / 64];
+    private boolean started;
+    private int highest;
+
+    SequenceTracker(LongAdder lost, LongAdder reordered) {
+        this.lost = lost;
+        this.reordered = reordered;
+    }
+
+    void record(int sequence) {
+        int delta = sequence - highest;
+        if (!started || delta <= -REORDER_WINDOW) {
+            started = true;
+            highest = sequence;
+            Arrays.fill(missing, 0);
+        } else if (delta > 0) {
+            lost.add(delta - 1);
+            // the numbers skipped, as far as the window goes, then this one
+            for (int n = sequence - Math.min(delta - 1, REORDER_WINDOW - 1); n != sequence; n++) {
+                set(n);
+            }
+            clear(sequence);
+            highest = sequence;
+        } else if (delta < 0 && isSet(sequence)) {
+            clear(sequence);
+            reordered.increment();
+            lost.decrement();
+        }
+        // anything else is a duplicate, nothing to learn from it
+    }
+
+    private void set(int sequence) {
+        missing[(sequence & (REORDER_WINDOW - 1)) >>> 6] |= 1L << sequence;
+    }
+
+    private void clear(int sequence) {
+        missing[(sequence & (REORDER_WINDOW - 1)) >>> 6] &= ~(1L << sequence);
+    }
+
+    private boolean isSet(int sequence) {
+        return (missing[(sequence & (REORDER_WINDOW - 1)) >>> 6] & 1L << sequence) != 0;
+    }
+}
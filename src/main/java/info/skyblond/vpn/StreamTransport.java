@@ -0,0 +1,110 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.IoStatus;
+import info.skyblond.jna.wintun.NativeException;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * The tunnel over a blocking {@link Socket} and its streams, as it has always been.
+ * Upstream frames are coalesced by a {@link FramedWriter}, downstream frames are
+ * read one by one into a heap array.
+ */
+public class StreamTransport implements TunnelTransport {
+
+    /**
+     * Gathered upstream before a write.
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * How long an upstream frame may wait for others while the adapter keeps sending.
+     */
+    private static final long MAX_DELAY_MICROS = 200;
+
+    public static final Factory FACTORY = (server, timeoutMs, codec, metrics) -> {
+        Socket socket = new Socket();
+        try {
+            socket.connect(server, timeoutMs);
+            return new StreamTransport(socket, socket.getInputStream(), socket.getOutputStream(), codec, metrics);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    };
+
+    private final Closeable connection;
+    private final DataInputStream input;
+    private final OutputStream output;
+    private final FramedWriter writer;
+    private final PayloadCodec codec;
+    private final TunnelMetrics metrics;
+    private final byte[] packet = new byte[WintunLib.WINTUN_MAX_IP_PACKET_SIZE];
+    private final ByteBuffer packetBuffer = ByteBuffer.wrap(packet);
+
+    /**
+     * @param connection closed with the transport, the streams are not
+     */
+    public StreamTransport(Closeable connection, InputStream input, OutputStream output,
+                           PayloadCodec codec, TunnelMetrics metrics) {
+        this.connection = connection;
+        this.input = new DataInputStream(input);
+        this.output = output;
+        this.writer = new FramedWriter(output, codec, metrics, BUFFER_SIZE, MAX_DELAY_MICROS);
+        this.codec = codec;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void writeRaw(byte[] bytes) throws IOException {
+        writer.flush();
+        output.write(bytes);
+        output.flush();
+    }
+
+    @Override
+    public IoStatus readFrame(WintunSession session, int awaitTimeMs) throws IOException, NativeException {
+        return writer.readFrame(session, awaitTimeMs);
+    }
+
+    @Override
+    public void writeFrame(ByteBuffer packet) throws IOException {
+        writer.write(packet);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public boolean readFrames(FrameHandler handler) throws IOException, NativeException, InterruptedException {
+        int length;
+        try {
+            length = input.readUnsignedShort();
+        } catch (EOFException e) {
+            return false;
+        }
+        input.readFully(packet, 0, length);
+        metrics.recordDown(length);
+        codec.decode(packet, 0, length);
+        ((Buffer) packetBuffer).limit(length).position(0);
+        handler.onFrame(packetBuffer);
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        connection.close();
+    }
+}
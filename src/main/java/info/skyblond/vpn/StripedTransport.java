@@ -0,0 +1,272 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.FlowHash;
+import info.skyblond.jna.wintun.IoStatus;
+import info.skyblond.jna.wintun.NativeException;
+import info.skyblond.jna.wintun.WintunSession;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several connections to the server used as one, so the tunnel isn't held to a
+ * single congestion window and a single reader.
+ * <p>
+ * Upstream, each packet goes to the connection picked by its {@link FlowHash},
+ * so the packets of a flow stay in order. Downstream, every connection has its
+ * own reader thread, all sending to the same session. A reader only takes room
+ * in the send ring for a frame it has in full, so a connection stalled in the
+ * middle of one only holds up its own flows.
+ * <p>
+ * A connection that fails is closed and left out, its flows move to the next
+ * live one while the others stay where they are. The tunnel only ends with the
+ * last connection. Each connection sends the handshake, the server has to accept
+ * several of them from the same client.
+ */
+public class StripedTransport implements TunnelTransport {
+
+    /**
+     * Connects {@code connections} transports from {@code factory}, all or none.
+     */
+    public static Factory factory(Factory factory, int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("connections must be positive");
+        }
+        return (server, timeoutMs, codec, metrics) -> {
+            List<TunnelTransport> transports = new ArrayList<>(connections);
+            try {
+                for (int i = 0; i < connections; i++) {
+                    transports.add(factory.connect(server, timeoutMs, codec, metrics));
+                }
+            } catch (IOException e) {
+                for (TunnelTransport transport : transports) {
+                    try {
+                        transport.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                throw e;
+            }
+            return new StripedTransport(transports, metrics);
+        };
+    }
+
+    private interface ReadLoop {
+        boolean read(TunnelTransport transport) throws IOException, NativeException, InterruptedException;
+    }
+
+    private static class Connection {
+        final TunnelTransport transport;
+        volatile boolean alive = true;
+
+        Connection(TunnelTransport transport) {
+            this.transport = transport;
+        }
+    }
+
+    private final Connection[] connections;
+    private final TunnelMetrics metrics;
+    private final Object handlerLock = new Object();
+    private volatile boolean closed;
+    private Exception failure;
+
+    /**
+     * @param transports connected, closed with this one
+     */
+    public StripedTransport(List<TunnelTransport> transports, TunnelMetrics metrics) {
+        this.connections = new Connection[transports.size()];
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = new Connection(transports.get(i));
+        }
+        this.metrics = metrics;
+    }
+
+    /**
+     * Connections still in use.
+     */
+    public int getLiveConnections() {
+        int live = 0;
+        for (Connection connection : connections) {
+            if (connection.alive) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    @Override
+    public int handshakeFlags() {
+        return connections[0].transport.handshakeFlags();
+    }
+
+    @Override
+    public void writeRaw(byte[] bytes) throws IOException {
+        for (int i = 0; i < connections.length; i++) {
+            try {
+                connections[i].transport.writeRaw(bytes);
+            } catch (IOException e) {
+                lose(i, e);
+            }
+        }
+    }
+
+    @Override
+    public IoStatus readFrame(WintunSession session, int awaitTimeMs) throws IOException, NativeException {
+        return LeasedFrames.readFrame(this, session, awaitTimeMs);
+    }
+
+    @Override
+    public void writeFrame(ByteBuffer packet) throws IOException {
+        int first = Math.floorMod(FlowHash.of(packet), connections.length);
+        for (int i = first; ; ) {
+            Connection connection = connections[i];
+            if (connection.alive) {
+                try {
+                    connection.transport.writeFrame(packet);
+                } catch (IOException e) {
+                    // frames pending on it are gone, the inner flows will resend them
+                    lose(i, e);
+                }
+                return;
+            }
+            i = (i + 1) % connections.length;
+            if (i == first) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        boolean flushed = false;
+        for (int i = 0; i < connections.length; i++) {
+            if (connections[i].alive) {
+                try {
+                    connections[i].transport.flush();
+                    flushed = true;
+                } catch (IOException e) {
+                    lose(i, e);
+                }
+            }
+        }
+        if (!flushed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Reads every connection on a thread of its own, handing the frames to
+     * {@code handler} one at a time. Returns only once all connections are gone.
+     */
+    @Override
+    public boolean readFrames(FrameHandler handler) throws IOException, NativeException, InterruptedException {
+        FrameHandler serialized = packet -> {
+            synchronized (handlerLock) {
+                handler.onFrame(packet);
+            }
+        };
+        return readAll(transport -> transport.readFrames(serialized));
+    }
+
+    /**
+     * Reads every connection on a thread of its own, straight into {@code session}.
+     * Returns only once all connections are gone.
+     */
+    @Override
+    public boolean readFramesInto(WintunSession session, int maxLength)
+            throws IOException, NativeException, InterruptedException {
+        return readAll(transport -> transport.readFramesInto(session, maxLength));
+    }
+
+    /**
+     * @return false if the server closed every connection
+     * @throws IOException the last failure that wasn't a connection closing
+     */
+    private boolean readAll(ReadLoop loop) throws IOException, NativeException, InterruptedException {
+        List<Thread> readers = new ArrayList<>(connections.length);
+        for (int i = 0; i < connections.length; i++) {
+            int index = i;
+            Thread reader = new Thread(() -> {
+                TunnelTransport transport = connections[index].transport;
+                try {
+                    while (!closed && loop.read(transport)) {
+                    }
+                    lose(index, null);
+                } catch (Exception e) {
+                    lose(index, e);
+                }
+            }, "striped-reader-" + i);
+            reader.setDaemon(true);
+            reader.start();
+            readers.add(reader);
+        }
+        try {
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        } finally {
+            for (Thread reader : readers) {
+                reader.interrupt();
+            }
+        }
+        Exception e;
+        synchronized (this) {
+            e = failure;
+        }
+        if (e == null || closed) {
+            return false;
+        }
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        if (e instanceof NativeException) {
+            throw (NativeException) e;
+        }
+        throw (InterruptedException) e;
+    }
+
+    /**
+     * Close connection {@code index} and stop using it.
+     *
+     * @param cause why, null if the server closed it
+     */
+    private void lose(int index, Exception cause) {
+        Connection connection = connections[index];
+        synchronized (this) {
+            if (!connection.alive) {
+                return;
+            }
+            connection.alive = false;
+            if (cause != null && !(cause instanceof SocketException || cause instanceof ClosedChannelException)) {
+                failure = cause;
+            }
+        }
+        if (!closed) {
+            metrics.connectionsLost.increment();
+        }
+        try {
+            connection.transport.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        IOException failure = null;
+        for (Connection connection : connections) {
+            try {
+                connection.transport.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
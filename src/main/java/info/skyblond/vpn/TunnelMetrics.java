@@ -0,0 +1,58 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.Log2Histogram;
+import info.skyblond.jna.wintun.MetricGroup;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the tunnel between the adapter and the VPN server has been doing.
+ * Upstream is adapter to server, downstream is server to adapter.
+ */
+public class TunnelMetrics extends MetricGroup {
+
+    public final LongAdder framesUp = counter("frames_up", "Frames written to the server");
+    public final LongAdder bytesUp = counter("bytes_up", "Payload bytes written to the server");
+    public final Log2Histogram frameSizeUp = histogram("frame_size_up_bytes", "Size of frames written to the server");
+    public final LongAdder flushes = counter("flushes", "Flushes of the socket output");
+    public final Log2Histogram framesPerFlush = histogram("frames_per_flush", "Frames written to the server per flush");
+    public final LongAdder framesDown = counter("frames_down", "Frames read from the server");
+    public final LongAdder bytesDown = counter("bytes_down", "Payload bytes read from the server");
+    public final Log2Histogram frameSizeDown = histogram("frame_size_down_bytes", "Size of frames read from the server");
+    public final LongAdder datagramsLost = counter("datagrams_lost", "Datagrams from the server that never arrived, UDP only");
+    public final LongAdder datagramsReordered = counter("datagrams_reordered", "Datagrams from the server that arrived late, UDP only");
+    public final LongAdder datagramsMalformed = counter("datagrams_malformed", "Datagrams from the server dropped as truncated, UDP only");
+    public final LongAdder keepalives = counter("keepalives", "Empty datagrams sent to hold the NAT binding, UDP only");
+    public final LongAdder connectionsLost = counter("connections_lost", "Striped connections lost while the others went on");
+    public final LongAdder compressedUp = counter("compressed_up", "Frames compressed before going to the server");
+    public final LongAdder compressionSkipped = counter("compression_skipped", "Frames sent raw: small, encrypted or random looking, or no smaller compressed");
+    public final LongAdder compressionBytesIn = counter("compression_bytes_in", "Bytes of the frames that were compressed");
+    public final LongAdder compressionBytesOut = counter("compression_bytes_out", "Bytes of the same frames after compression");
+    public final Log2Histogram compressNanos = histogram("compress_seconds", "Time spent compressing a frame, for frames sent compressed", NANOSECONDS);
+    public final LongAdder decompressedDown = counter("decompressed_down", "Frames from the server decompressed");
+    public final LongAdder decompressFailures = counter("decompress_failures", "Frames from the server dropped as undecodable or with the wrong dictionary");
+    public final Log2Histogram decompressNanos = histogram("decompress_seconds", "Time spent decompressing a frame", NANOSECONDS);
+    public final LongAdder cryptoFailures = counter("crypto_failures", "Frames dropped as failing to encrypt, or to decrypt and authenticate");
+    public final LongAdder reconnects = counter("reconnects", "Connections to the server made again after one was lost");
+    public final Log2Histogram recoveryMillis = histogram("recovery_seconds", "Time from losing the connection to being connected again", MILLISECONDS);
+    public final LongAdder reconnectReplayed = counter("reconnect_replayed", "Packets from the adapter kept while reconnecting, and sent after");
+    public final LongAdder reconnectDropped = counter("reconnect_dropped", "Packets from the adapter dropped while reconnecting, the backlog was full");
+    public final LongAdder errors = counter("errors", "Errors that ended a forwarding loop");
+
+    public TunnelMetrics() {
+        super("wintun_tunnel");
+    }
+
+    void recordUp(int length) {
+        framesUp.increment();
+        bytesUp.add(length);
+        frameSizeUp.record(length);
+    }
+
+    void recordDown(int length) {
+        framesDown.increment();
+        bytesDown.add(length);
+        frameSizeDown.record(length);
+    }
+
+}
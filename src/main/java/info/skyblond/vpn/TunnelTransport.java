@@ -0,0 +1,115 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.IoStatus;
+import info.skyblond.jna.wintun.NativeException;
+import info.skyblond.jna.wintun.SendBackoff;
+import info.skyblond.jna.wintun.WintunSession;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A connection to the VPN server carrying length-prefixed frames, one IP packet each.
+ * <p>
+ * Upstream, packets are read from the session into the transport with
+ * {@link #readFrame(WintunSession, int)}, which may hold them back to write
+ * several at once, until {@link #flush()}. Downstream, {@link #readFrames(FrameHandler)}
+ * hands decoded packets over as they arrive.
+ * <p>
+ * One thread may go upstream while another goes downstream. {@link #close()}
+ * may be called from any thread, and makes both give up.
+ */
+public interface TunnelTransport extends Closeable {
+
+    /**
+     * Opens transports to a server.
+     */
+    interface Factory {
+        TunnelTransport connect(InetSocketAddress server, int timeoutMs, PayloadCodec codec, TunnelMetrics metrics)
+                throws IOException;
+    }
+
+    /**
+     * Receives the packets coming from the server.
+     */
+    interface FrameHandler {
+        /**
+         * @param packet the decoded packet, between position and limit,
+         *               only valid until this returns
+         */
+        void onFrame(ByteBuffer packet) throws IOException, NativeException, InterruptedException;
+    }
+
+    /**
+     * Bits this transport sets in the OS type byte of the handshake, to tell the
+     * server how it frames packets.
+     */
+    default int handshakeFlags() {
+        return 0;
+    }
+
+    /**
+     * Write bytes that are not framed, like the handshake, right away.
+     */
+    void writeRaw(byte[] bytes) throws IOException;
+
+    /**
+     * Read the next packet of {@code session} as a frame, see {@link WintunSession#readPacket(ByteBuffer, int)}.
+     * The frame may stay pending until {@link #flush()}.
+     *
+     * @return the status of the read, a frame is added only on {@link IoStatus#OK}
+     */
+    IoStatus readFrame(WintunSession session, int awaitTimeMs) throws IOException, NativeException;
+
+    /**
+     * Add the packet between position and limit as a frame, like {@link #readFrame(WintunSession, int)}
+     * does with one from the session. The packet itself is left untouched.
+     */
+    void writeFrame(ByteBuffer packet) throws IOException;
+
+    /**
+     * Write the pending frames, if any.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Wait for frames from the server, and pass every complete one to {@code handler}.
+     *
+     * @return false once the server closed the connection
+     */
+    boolean readFrames(FrameHandler handler) throws IOException, NativeException, InterruptedException;
+
+    /**
+     * Like {@link #readFrames(FrameHandler)}, sending every packet to {@code session},
+     * and waiting while its send ring is full. Empty frames are skipped.
+     * <p>
+     * Transports that can should override this to put the packets straight in the ring.
+     *
+     * @throws IOException if a frame is longer than {@code maxLength}
+     * @throws EOFException if the session is closed
+     */
+    default boolean readFramesInto(WintunSession session, int maxLength)
+            throws IOException, NativeException, InterruptedException {
+        SendBackoff backoff = new SendBackoff();
+        return readFrames(packet -> {
+            int length = packet.remaining();
+            if (length > maxLength) {
+                throw new IOException("Packet too long: " + length);
+            }
+            if (length == 0) {
+                return;
+            }
+            IoStatus status;
+            while ((status = session.writePacket(packet)) == IoStatus.OVERFLOW) {
+                backoff.pause();
+            }
+            backoff.reset();
+            if (status == IoStatus.EOF) {
+                throw new EOFException("Session or adapter is closed");
+            }
+        });
+    }
+}
@@ -1,14 +1,22 @@
 package info.skyblond.vpn;
 
 import com.sun.jna.platform.win32.IPHlpAPI;
+import com.sun.jna.platform.win32.WinBase;
+import com.sun.jna.platform.win32.WinError;
 import info.skyblond.jna.wintun.AdapterIPAddress;
+import info.skyblond.jna.wintun.IoStatus;
+import info.skyblond.jna.wintun.MetricsRegistry;
 import info.skyblond.jna.wintun.NativeException;
+import info.skyblond.jna.wintun.ReceiveWaitStrategy;
 import info.skyblond.jna.wintun.WintunSession;
 import info.skyblond.wintun.VpnWintunAdapter;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ClosedChannelException;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * WintunVpn 192.168.1.28 20240
@@ -18,39 +26,69 @@ public class WintunVpn {
     private static final String VPN_CLIENT_IP = "10.1.10.1";
     private static final int MTU = 10000;
     private static final byte VPN_MAGIC = 0xe;
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final long RECONNECT_MIN_DELAY_MS = 100;
+    private static final long RECONNECT_MAX_DELAY_MS = 10000;
+
+    /**
+     * How long a connection has to stay up, if nothing came from the server, for the backoff to start over.
+     */
+    private static final long CONNECTION_STABLE_MS = 10000;
+
+    /**
+     * Packets from the adapter kept while reconnecting, the newest ones.
+     */
+    private static final int RECONNECT_BACKLOG = 1024;
+
+    /**
+     * The codec the server expects by default.
+     */
+    public static final PayloadCodec DEFAULT_CODEC = new XorCodec(VPN_MAGIC);
 
     private class StreamForward implements Runnable {
-        private final DataInput dataInput;
+        private final TunnelTransport transport;
         private final WintunSession session;
-        private StreamForward(DataInput dataInput, WintunSession session) {
-            this.dataInput = dataInput;
+        private StreamForward(TunnelTransport transport, WintunSession session) {
+            this.transport = transport;
             this.session = session;
         }
         @Override
         public void run() {
+            // a full send ring parks this thread instead of killing the tunnel
             try {
-                byte[] packet = new byte[MTU];
-                while (!canStop) {
-                    int length = dataInput.readUnsignedShort();
-                    if (length > MTU) {
-                        throw new IOException("Packet too long: " + length);
-                    }
-                    dataInput.readFully(packet, 0, length);
-                    if(length > 0) {
-                        for (int i = 0; i < length; i++) {
-                            packet[i] ^= VPN_MAGIC;
-                        }
-                        session.writePacket(packet, 0, length);
-                    }
+                while (!canStop && transport.readFramesInto(session, MTU)) {
                 }
-            } catch(SocketException ignored) {
+            } catch(SocketException | ClosedChannelException ignored) {
             } catch(Exception e) {
+                metrics.errors.increment();
                 e.printStackTrace(System.err);
+            } finally {
+                // the upstream may be waiting for the adapter, make it notice too
+                connectionLost = true;
+                try {
+                    transport.close();
+                } catch (IOException ignored) {
+                }
+                session.wakeup();
             }
         }
     }
 
-    private boolean canStop;
+    private final TunnelMetrics metrics = new TunnelMetrics();
+
+    /**
+     * Counters of the tunnel, registered in {@link MetricsRegistry#getDefault()} while connected.
+     */
+    public TunnelMetrics getMetrics() {
+        return metrics;
+    }
+
+    private volatile boolean canStop;
+
+    /**
+     * Set when the downstream of the current connection ends, so the upstream ends too.
+     */
+    private volatile boolean connectionLost;
 
     public void start() {
         if(canStop) {
@@ -67,6 +105,7 @@ public class WintunVpn {
                 startNative(adapter);
                 System.out.println("VPN exited");
             } catch(Exception e) {
+                metrics.errors.increment();
                 e.printStackTrace(System.err);
             }
         });
@@ -76,70 +115,202 @@ public class WintunVpn {
 
     public void stop() {
         canStop = true;
-        if (vpnSocket != null) {
+        WintunSession session = vpnSession;
+        if (session != null) {
+            session.wakeup();
+        }
+        TunnelTransport transport = vpnTransport;
+        if (transport != null) {
             try {
-                vpnSocket.close();
-                vpnSocket = null;
+                transport.close();
             } catch (IOException ignored) {
             }
         }
     }
 
-    private Socket vpnSocket;
-
-    private void startNative(VpnWintunAdapter adapter) throws IOException, NativeException {
-        try (Socket socket = new Socket();
-             WintunSession session = adapter.newSession(0x800000)) {
-            long start = System.currentTimeMillis();
-            socket.connect(vpnServer, 15000);
-            vpnSocket = socket;
-            configAdapter(adapter);
-            System.out.printf("Connected to %s in %dms%n", vpnServer, System.currentTimeMillis() - start);
-            try (InputStream inputStream = socket.getInputStream();
-                 OutputStream outputStream = socket.getOutputStream()) {
-                DataOutput output = new DataOutputStream(outputStream);
-                int osType = 0x3;
-                if (configData != null) {
-                    osType |= 0x80;
+    private volatile TunnelTransport vpnTransport;
+    private volatile WintunSession vpnSession;
+    private TunnelTransport.Factory transportFactory = ChannelTransport.factory(ChannelTransport.Mode.BLOCKING);
+
+    /**
+     * How to reach the server, a blocking {@link ChannelTransport} by default.
+     * Takes effect on {@link #start()}.
+     */
+    public void setTransportFactory(TunnelTransport.Factory transportFactory) {
+        this.transportFactory = transportFactory;
+    }
+
+    /**
+     * Forward packets from the adapter to the server until stopped or the session ends.
+     * Frames are gathered while the ring has more, and flushed once it's drained.
+     */
+    void forwardUp(WintunSession session, TunnelTransport transport) throws IOException, NativeException {
+        while (!canStop && !connectionLost) {
+            IoStatus status = transport.readFrame(session, 0);
+            if (status == IoStatus.EMPTY) {
+                transport.flush();
+                // stop() wakes us up, no need to poll
+                status = transport.readFrame(session, WinBase.INFINITE);
+                if (status == IoStatus.EMPTY) {
+                    continue;
+                }
+            }
+            if (status == IoStatus.INVALID_DATA) {
+                throw new NativeException("Invalid data in receive ring", WinError.ERROR_INVALID_DATA);
+            }
+            if (status != IoStatus.OK) {
+                break;
+            }
+        }
+        transport.flush();
+    }
+
+    private void startNative(VpnWintunAdapter adapter) throws Exception {
+        Map<String, String> labels = Collections.singletonMap("server", vpnServer.toString());
+        try (WintunSession session = adapter.newSession(0x800000);
+             AutoCloseable registration = MetricsRegistry.getDefault().register("Tunnel", metrics, labels)) {
+            supervise(session, () -> configAdapter(adapter));
+        } finally {
+            canStop = true;
+        }
+    }
+
+    /**
+     * Connect, forward packets until the connection is lost, and connect again, until stopped
+     * or the session ends. The session, and the adapter with its addresses and routes, stay
+     * as they are in between, and the packets that come meanwhile are kept in a
+     * {@link ReconnectBacklog}. Every reconnect waits a jittered exponential backoff first,
+     * so clients losing the same server don't all come back at once, and a server that
+     * accepts then drops connections isn't hammered. The backoff only starts over once a
+     * connection got a frame from the server or stayed up for {@value #CONNECTION_STABLE_MS}ms.
+     * <p>
+     * Only a lost connection is retried, failing to connect the first time ends it.
+     *
+     * @param onFirstConnect called once, when connected the first time
+     */
+    void supervise(WintunSession session, Runnable onFirstConnect) throws Exception {
+        ReconnectBacklog backlog = new ReconnectBacklog(RECONNECT_BACKLOG, metrics);
+        session.setWaitStrategy(ReceiveWaitStrategy.spinYieldPark());
+        vpnSession = session;
+        long lostNanos = 0;
+        int attempts = 0;
+        try {
+            while (!canStop) {
+                if (lostNanos != 0) {
+                    long delayMillis = reconnectDelayMillis(attempts++);
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+                    // woken up early by the last connection or to stop
+                    while (!canStop && deadline - System.nanoTime() > 0) {
+                        if (!backlog.fill(session, deadline)) {
+                            return;
+                        }
+                    }
+                    if (canStop) {
+                        break;
+                    }
                 }
-                output.writeByte(osType);
-                if (configData != null) {
-                    Locale locale = Locale.getDefault();
-                    try(ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                        Properties properties = new Properties();
-                        properties.put("locale", locale.toString());
-                        properties.put("language", locale.getLanguage());
-                        properties.put("country", locale.getCountry());
-                        properties.put("config", configData);
-                        properties.store(baos, "Vpn config properties");
-                        String config = baos.toString("UTF-8");
-                        output.writeUTF(config);
+                long start = System.currentTimeMillis();
+                TunnelTransport transport;
+                try {
+                    transport = transportFactory.connect(vpnServer, CONNECT_TIMEOUT_MS, codec, metrics);
+                } catch (IOException e) {
+                    if (lostNanos == 0) {
+                        throw e;
                     }
+                    System.err.printf("Reconnecting to %s failed: %s%n", vpnServer, e);
+                    continue;
                 }
-                Thread thread = new Thread(new StreamForward(new DataInputStream(inputStream), session));
-                thread.start();
-                while (!canStop) {
-                    byte[] packet = session.readPacket(100);
-                    if(packet == null) {
-                        Thread.yield();
-                        continue;
+                long connectedNanos = System.nanoTime();
+                long framesBefore = metrics.framesDown.sum();
+                try {
+                    vpnTransport = transport;
+                    connectionLost = false;
+                    if (canStop) {
+                        break;
+                    }
+                    System.out.printf("Connected to %s in %dms%n", vpnServer, System.currentTimeMillis() - start);
+                    if (lostNanos == 0) {
+                        onFirstConnect.run();
+                    } else {
+                        metrics.reconnects.increment();
+                        metrics.recoveryMillis.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lostNanos));
+                    }
+                    transport.writeRaw(handshake(transport));
+                    backlog.replay(transport);
+                    Thread thread = new Thread(new StreamForward(transport, session));
+                    thread.start();
+                    boolean sessionEnded;
+                    try {
+                        forwardUp(session, transport);
+                        sessionEnded = !connectionLost && !canStop;
+                    } finally {
+                        transport.close();
+                        thread.join();
                     }
-                    if(packet.length == 0) {
+                    if (sessionEnded) {
                         break;
                     }
-                    output.writeShort(packet.length);
-                    for(int i = 0; i < packet.length; i++) {
-                        packet[i] ^= VPN_MAGIC;
+                } catch (IOException e) {
+                    if (!(e instanceof SocketException || e instanceof ClosedChannelException)) {
+                        metrics.errors.increment();
+                        e.printStackTrace(System.err);
                     }
-                    output.write(packet, 0, packet.length);
-                    outputStream.flush();
+                } finally {
+                    vpnTransport = null;
+                    transport.close();
                 }
-            } catch(SocketException ignored) {}
+                if (metrics.framesDown.sum() > framesBefore
+                        || System.nanoTime() - connectedNanos >= TimeUnit.MILLISECONDS.toNanos(CONNECTION_STABLE_MS)) {
+                    attempts = 0;
+                }
+                if (!canStop) {
+                    System.err.printf("Connection to %s lost, reconnecting%n", vpnServer);
+                    lostNanos = System.nanoTime();
+                    connectionLost = true;
+                }
+            }
         } finally {
-            canStop = true;
+            backlog.clear();
+            vpnSession = null;
         }
     }
 
+    /**
+     * Exponential from {@value #RECONNECT_MIN_DELAY_MS}ms up to {@value #RECONNECT_MAX_DELAY_MS}ms,
+     * the second half of it random.
+     */
+    private static long reconnectDelayMillis(int attempts) {
+        long delay = Math.min(RECONNECT_MAX_DELAY_MS, RECONNECT_MIN_DELAY_MS << Math.min(attempts, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * The first bytes sent to the server: the OS type with the flags of the transport, and the config if any.
+     */
+    private byte[] handshake(TunnelTransport transport) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutput output = new DataOutputStream(bytes);
+        int osType = 0x3 | transport.handshakeFlags();
+        if (configData != null) {
+            osType |= 0x80;
+        }
+        output.writeByte(osType);
+        if (configData != null) {
+            Locale locale = Locale.getDefault();
+            try(ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+                Properties properties = new Properties();
+                properties.put("locale", locale.toString());
+                properties.put("language", locale.getLanguage());
+                properties.put("country", locale.getCountry());
+                properties.put("config", configData);
+                properties.store(baos, "Vpn config properties");
+                String config = baos.toString("UTF-8");
+                output.writeUTF(config);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
     private void configAdapter(VpnWintunAdapter adapter) {
         // Exclude IP ranges
         List<IPUtil.CIDR> listExclude = new ArrayList<>();
@@ -216,6 +387,7 @@ public class WintunVpn {
 
     private final InetSocketAddress vpnServer;
     private final byte[] configData;
+    private final PayloadCodec codec;
 
     public WintunVpn(String host, int port) {
         this(new InetSocketAddress(host, port));
@@ -226,8 +398,13 @@ public class WintunVpn {
     }
 
     public WintunVpn(InetSocketAddress vpnServer, byte[] configData) {
+        this(vpnServer, configData, DEFAULT_CODEC);
+    }
+
+    public WintunVpn(InetSocketAddress vpnServer, byte[] configData, PayloadCodec codec) {
         this.vpnServer = vpnServer;
         this.configData = configData;
+        this.codec = codec;
     }
 
 }
@@ -0,0 +1,71 @@
+package info.skyblond.vpn;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * XOR every byte with the same key, both ways. What the tunnel has always sent.
+ * <p>
+ * Direct buffers are masked 8 bytes at a time through a {@link LongBuffer} view,
+ * much faster than absolute {@code getLong}/{@code putLong} on the buffer itself.
+ * Arrays are masked by a plain counted loop, which C2 turns into SIMD
+ * instructions on its own, wider than a long.
+ */
+public final class XorCodec implements PayloadCodec {
+
+    private final byte key;
+    private final long wideKey;
+
+    public XorCodec(byte key) {
+        this.key = key;
+        this.wideKey = (key & 0xffL) * 0x0101010101010101L;
+    }
+
+    public byte getKey() {
+        return key;
+    }
+
+    @Override
+    public void encode(ByteBuffer payload) {
+        mask(payload);
+    }
+
+    @Override
+    public void decode(ByteBuffer payload) {
+        mask(payload);
+    }
+
+    @Override
+    public void encode(byte[] payload, int offset, int length) {
+        mask(payload, offset, offset + length);
+    }
+
+    @Override
+    public void decode(byte[] payload, int offset, int length) {
+        mask(payload, offset, offset + length);
+    }
+
+    private void mask(ByteBuffer payload) {
+        if (payload.hasArray()) {
+            int start = payload.arrayOffset() + payload.position();
+            mask(payload.array(), start, start + payload.remaining());
+            return;
+        }
+        // every byte of the key is the same, so any byte order works, the native one is cheapest
+        LongBuffer words = payload.duplicate().order(ByteOrder.nativeOrder()).asLongBuffer();
+        int count = words.limit();
+        for (int i = 0; i < count; i++) {
+            words.put(i, words.get(i) ^ wideKey);
+        }
+        for (int i = payload.position() + count * Long.BYTES, end = payload.limit(); i < end; i++) {
+            payload.put(i, (byte) (payload.get(i) ^ key));
+        }
+    }
+
+    private void mask(byte[] payload, int start, int end) {
+        for (int i = start; i < end; i++) {
+            payload[i] ^= key;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package info.skyblond.jna.wintun
+
+import com.sun.jna.platform.win32.WinBase
+import com.sun.jna.platform.win32.WinError
+import java.io.EOFException
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantReadWriteLock
+
+/**
+ * A session that picks its own ring capacity.
+ *
+ * A fixed ring is either too small for bursts, and wintun drops what doesn't fit,
+ * or too big for an idle tunnel. This one estimates how much each burst had queued
+ * in the receive ring, and watches whether the send ring overflows, then restarts
+ * the session with a bigger or smaller power of two capacity, as told by [Policy]
+ * and within [budget].
+ *
+ * Wintun doesn't tell how full the ring is, so it's estimated. A burst lasts from
+ * the ring being seen empty to the next time, and its bytes are taken to have come
+ * evenly over that time. The ring fills most while the receiving thread is away
+ * between two receives, so the longest such gap, times that rate, is the queue.
+ * A steady stream keeps the ring from going empty, but the gaps stay short, so it
+ * doesn't count as a big burst. This costs one clock read per receive.
+ *
+ * Wintun allows one session per adapter, so a resize closes the old session
+ * before starting the new one. It only happens once every lease taken from the
+ * old session is closed. Packets still queued in the old receive ring are copied
+ * out and returned first by the next receives. Packets the OS sends in the short
+ * gap between the two sessions are lost, like with any full ring. If the new
+ * session can't be started, one with the old capacity takes its place.
+ *
+ * Resizing is done by the receiving thread, at the start of a receive. Receive
+ * from one thread at a time, and close each lease before the next receive.
+ * Sending is thread-safe. A blocked receive may return no data when a resize
+ * is requested, so the receiving thread can carry it out.
+ * */
+class AdaptiveSession @JvmOverloads constructor(
+    private val adapter: WintunAdapter,
+    initialCapacity: Int,
+    private val policy: Policy = Policy(),
+    private val budget: RingBudget = RingBudget.unlimited()
+) : AutoCloseable {
+
+    /**
+     * When to resize.
+     * */
+    class Policy @JvmOverloads constructor(
+        /**
+         * Smallest capacity to shrink to, a power of two.
+         * */
+        val minCapacity: Int = WintunLib.WINTUN_MIN_RING_CAPACITY,
+        /**
+         * Biggest capacity to grow to, a power of two.
+         * */
+        val maxCapacity: Int = WintunLib.WINTUN_MAX_RING_CAPACITY,
+        /**
+         * Double the capacity when one burst is estimated to have queued more than this
+         * fraction of the ring.
+         * */
+        val growAbove: Double = 0.5,
+        /**
+         * Halve the capacity when no burst queued more than this fraction of the ring
+         * during [shrinkAfterMs].
+         * */
+        val shrinkBelow: Double = 0.125,
+        val shrinkAfterMs: Long = 30_000,
+        /**
+         * Minimal time between two resizes.
+         * */
+        val cooldownMs: Long = 1_000,
+        /**
+         * How long a resize waits for open leases before it gives up, and tries again later.
+         * */
+        val handoverTimeoutMs: Long = 1_000
+    ) {
+        init {
+            require(isValidCapacity(minCapacity) && isValidCapacity(maxCapacity) && minCapacity <= maxCapacity) {
+                "Capacities must be powers of two between ${WintunLib.WINTUN_MIN_RING_CAPACITY} and ${WintunLib.WINTUN_MAX_RING_CAPACITY}"
+            }
+            require(growAbove > shrinkBelow) { "growAbove must be bigger than shrinkBelow" }
+        }
+    }
+
+    companion object {
+        private fun isValidCapacity(capacity: Int) =
+            capacity in WintunLib.WINTUN_MIN_RING_CAPACITY..WintunLib.WINTUN_MAX_RING_CAPACITY &&
+                    capacity and (capacity - 1) == 0
+
+        private fun ringBytes(capacity: Int) = 2L * capacity
+    }
+
+    /**
+     * Writers hold it shared, a resize holds it exclusively while it swaps the session.
+     * */
+    private val lock = ReentrantReadWriteLock()
+
+    @Volatile
+    private var current: WintunSession
+
+    init {
+        require(initialCapacity in policy.minCapacity..policy.maxCapacity && isValidCapacity(initialCapacity)) {
+            "Initial capacity must be a power of two between ${policy.minCapacity} and ${policy.maxCapacity}"
+        }
+        check(budget.tryReserve(ringBytes(initialCapacity))) { "Ring budget exhausted" }
+        current = try {
+            adapter.newSession(initialCapacity)
+        } catch (e: Throwable) {
+            budget.release(ringBytes(initialCapacity))
+            throw e
+        }
+    }
+
+    /**
+     * Packets copied out of a session that was replaced.
+     * */
+    private val carryOver = ConcurrentLinkedQueue<ByteArray>()
+
+    /**
+     * Capacity of the next resize, 0 if none is due.
+     * */
+    @Volatile
+    private var pendingCapacity = 0
+
+    @Volatile
+    private var closed = false
+
+    // only touched by the receiving thread
+    private var burstBytes = 0L
+    private var burstStart = System.nanoTime()
+    private var longestGap = 0L
+    private var lastReceive = burstStart
+    private var windowPeak = 0L
+    private var windowStart = System.nanoTime()
+
+    // set by the receiving thread, read by writers checking the cooldown
+    @Volatile
+    private var lastResize = 0L
+
+    @Volatile
+    private var resizes = 0
+
+    /**
+     * Current ring capacity.
+     * */
+    val capacity: Int get() = current.capacity
+
+    /**
+     * Number of times the session was restarted with another capacity.
+     * */
+    val resizeCount: Int get() = resizes
+
+    /**
+     * Applied to the current session and the ones replacing it.
+     * */
+    var waitStrategy: ReceiveWaitStrategy
+        get() = current.waitStrategy
+        set(value) {
+            current.waitStrategy = value
+        }
+
+    /**
+     * Like [WintunSession.receive].
+     * */
+    @Throws(NativeException::class, EOFException::class)
+    fun receive(awaitTimeMs: Int = WinBase.INFINITE): PacketLease? {
+        if (pendingCapacity != 0) resize()
+        carryOver.poll()?.let { return PacketLease(null, 0, it.size, ByteBuffer.wrap(it)) }
+        val now = System.nanoTime()
+        if (burstBytes > 0 && now - lastReceive > longestGap) longestGap = now - lastReceive
+        lastReceive = now
+        // held while waiting, close() wakes the wait up before taking it
+        lock.readLock().lock()
+        try {
+            if (closed) throw EOFException("Session closed")
+            val session = current
+            var lease = session.receive(0)
+            if (lease == null) {
+                endBurst(session.capacity, now)
+                if (awaitTimeMs != 0) {
+                    lease = session.receive(awaitTimeMs)
+                    // it came in while waiting, a burst starts now
+                    if (lease != null) {
+                        burstStart = System.nanoTime()
+                        lastReceive = burstStart
+                    }
+                }
+            }
+            if (lease != null) burstBytes += lease.size
+            return lease
+        } finally {
+            lock.readLock().unlock()
+        }
+    }
+
+    /**
+     * Like [WintunSession.readPacket].
+     * */
+    @Throws(NativeException::class, EOFException::class)
+    fun readPacket(awaitTimeMs: Int = WinBase.INFINITE): ByteArray? {
+        return receive(awaitTimeMs)?.use { it.toByteArray() }
+    }
+
+    /**
+     * Like [WintunSession.writePacket].
+     * */
+    @Throws(NativeException::class)
+    fun writePacket(packet: ByteArray, offset: Int = 0, len: Int = packet.size - offset) {
+        lock.readLock().lock()
+        try {
+            if (closed) throw NativeException("Session closed", WinError.ERROR_HANDLE_EOF)
+            current.writePacket(packet, offset, len)
+        } catch (e: NativeException) {
+            if (e.errorCode == WinError.ERROR_BUFFER_OVERFLOW) requestGrow()
+            throw e
+        } finally {
+            lock.readLock().unlock()
+        }
+    }
+
+    /**
+     * Like [WintunSession.writePacket] from a buffer.
+     * */
+    @Throws(NativeException::class)
+    fun writePacket(src: ByteBuffer): IoStatus {
+        lock.readLock().lock()
+        try {
+            if (closed) return IoStatus.EOF
+            return current.writePacket(src).also {
+                if (it == IoStatus.OVERFLOW) requestGrow()
+            }
+        } finally {
+            lock.readLock().unlock()
+        }
+    }
+
+    /**
+     * Like [WintunSession.wakeup].
+     * */
+    fun wakeup() = current.wakeup()
+
+    /**
+     * Check the burst that just ended against [policy].
+     * */
+    private fun endBurst(capacity: Int, now: Long) {
+        var queued = 0L
+        if (burstBytes > 0) {
+            queued = (burstBytes * (longestGap.toDouble() / (now - burstStart).coerceAtLeast(1))).toLong()
+            burstBytes = 0
+            longestGap = 0
+        }
+        burstStart = now
+        if (queued > windowPeak) windowPeak = queued
+        if (queued > capacity * policy.growAbove) {
+            requestCapacity(capacity * 2L)
+        } else if (now - windowStart > TimeUnit.MILLISECONDS.toNanos(policy.shrinkAfterMs)) {
+            if (windowPeak < capacity * policy.shrinkBelow) requestCapacity(capacity / 2L)
+            windowPeak = 0
+            windowStart = now
+        }
+    }
+
+    private fun requestGrow() {
+        if (requestCapacity(current.capacity * 2L)) current.wakeup()
+    }
+
+    private fun requestCapacity(capacity: Long): Boolean {
+        val target = capacity.coerceIn(policy.minCapacity.toLong(), policy.maxCapacity.toLong()).toInt()
+        if (target == current.capacity) return false
+        if (System.nanoTime() - lastResize < TimeUnit.MILLISECONDS.toNanos(policy.cooldownMs)) return false
+        pendingCapacity = target
+        return true
+    }
+
+    /**
+     * Swap the session for one with [pendingCapacity].
+     * */
+    @Throws(NativeException::class, EOFException::class)
+    private fun resize() {
+        val target = pendingCapacity
+        pendingCapacity = 0
+        val old = current
+        val extra = ringBytes(target) - ringBytes(old.capacity)
+        if (extra > 0 && !budget.tryReserve(extra)) return
+        lock.writeLock().lock()
+        var swapped = false
+        try {
+            if (closed) return
+            val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.handoverTimeoutMs)
+            while (old.openLeaseCount > 0) {
+                if (System.nanoTime() - deadline >= 0) return
+                Thread.sleep(1)
+            }
+            while (true) {
+                carryOver.add(old.readPacket(0) ?: break)
+            }
+            val strategy = old.waitStrategy
+            // one session per adapter, the old one has to go first
+            old.close()
+            current = try {
+                adapter.newSession(target)
+            } catch (e: Exception) {
+                reopen(old.capacity, e)
+            }.also { it.waitStrategy = strategy }
+            swapped = current.capacity == target
+            if (swapped) resizes++
+        } finally {
+            lastResize = System.nanoTime()
+            lock.writeLock().unlock()
+            if (extra > 0 && !swapped) budget.release(extra)
+            if (extra < 0 && swapped) budget.release(-extra)
+        }
+    }
+
+    /**
+     * Start a session with the capacity of the one that was just closed, after
+     * starting one with another capacity failed. If that fails too, this is closed.
+     * */
+    private fun reopen(capacity: Int, cause: Exception): WintunSession {
+        cause.printStackTrace(System.err)
+        return try {
+            adapter.newSession(capacity)
+        } catch (e: Exception) {
+            closed = true
+            budget.release(ringBytes(capacity))
+            e.addSuppressed(cause)
+            throw e
+        }
+    }
+
+    /**
+     * Close the current session and give its rings back to [budget].
+     * Calling it more than once has no effect.
+     * */
+    @Synchronized
+    override fun close() {
+        if (closed) return
+        closed = true
+        // a receive may hold the lock while waiting
+        current.wakeup()
+        lock.writeLock().lock()
+        try {
+            current.close()
+            budget.release(ringBytes(current.capacity))
+        } finally {
+            lock.writeLock().unlock()
+        }
+    }
+}
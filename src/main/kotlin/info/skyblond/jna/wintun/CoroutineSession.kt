@@ -0,0 +1,163 @@
+package info.skyblond.jna.wintun
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
+import java.io.EOFException
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.coroutines.Continuation
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+/**
+ * Coroutine API over a [WintunSession].
+ *
+ * No thread is parked per session: when the ring is empty, the receiving
+ * coroutine suspends and the session is watched by [poller], whose threads
+ * wait on up to 63 sessions each. The coroutine is resumed on its own
+ * dispatcher once packets arrive.
+ *
+ * Nothing is read ahead. A receive only takes a packet out of the ring when
+ * asked, so a slow consumer leaves packets in the ring, and wintun drops new
+ * ones once it's full, instead of them piling up in memory.
+ *
+ * Receive from one coroutine at a time.
+ *
+ * Needs kotlinx-coroutines on the classpath.
+ * */
+class CoroutineSession @JvmOverloads constructor(
+    val session: WintunSession,
+    poller: SessionPoller,
+    /**
+     * Runs the coroutine that drains [outgoing] into the session, under a
+     * supervisor of its own, so a failed send doesn't cancel the scope.
+     * */
+    scope: CoroutineScope,
+    /**
+     * Packets [outgoing] can hold before senders suspend.
+     * */
+    sendCapacity: Int = 64
+) : AutoCloseable {
+
+    companion object {
+        /**
+         * How long the sender backs off when the send ring is full.
+         * */
+        private const val OVERFLOW_BACKOFF_MS = 1L
+    }
+
+    private val waiter = AtomicReference<Continuation<Unit>?>()
+
+    @Volatile
+    private var closed = false
+
+    private val key = poller.register(session) {
+        waiter.getAndSet(null)?.resume(Unit)
+    }
+
+    private val outgoingChannel = Channel<ByteArray>(sendCapacity)
+
+    /**
+     * Packets to send. Senders suspend while it's full, and it's full while
+     * the send ring is, so backpressure reaches the producer.
+     * Closed when the session reaches EOF, or with the cause if a send failed,
+     * which later sends then throw.
+     * */
+    val outgoing: SendChannel<ByteArray> get() = outgoingChannel
+
+    private val senderJob = SupervisorJob(scope.coroutineContext[Job])
+
+    private val sender = scope.launch(senderJob) {
+        try {
+            for (packet in outgoingChannel) {
+                val buffer = ByteBuffer.wrap(packet)
+                while (true) {
+                    when (session.writePacket(buffer)) {
+                        IoStatus.OVERFLOW -> delay(OVERFLOW_BACKOFF_MS)
+                        IoStatus.EOF -> return@launch
+                        else -> break
+                    }
+                }
+            }
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            outgoingChannel.close(e)
+        } finally {
+            outgoingChannel.close()
+        }
+    }.also {
+        // done once the sender is, so it doesn't hold the scope open
+        senderJob.complete()
+    }
+
+    /**
+     * Receive one packet, suspending while the ring is empty.
+     * Close the lease once the packet is consumed.
+     *
+     * @throws EOFException if the session or adapter is closed
+     * @throws NativeException with err code 13 if there is invalid data
+     * */
+    @Throws(NativeException::class, EOFException::class)
+    suspend fun receive(): PacketLease {
+        while (true) {
+            if (closed) throw EOFException("Coroutine session closed")
+            session.receive(0)?.let { return it }
+            awaitReadable()
+        }
+    }
+
+    /**
+     * Cold flow of received packets, completes when the session reaches EOF.
+     *
+     * Packets are received one by one as the collector asks for them. Close
+     * each lease before asking for the next one, and don't [kotlinx.coroutines.flow.buffer]
+     * the flow: buffered leases hold ring slots.
+     * */
+    fun packets(): Flow<PacketLease> = flow {
+        while (true) {
+            val lease = try {
+                receive()
+            } catch (_: EOFException) {
+                return@flow
+            }
+            emit(lease)
+        }
+    }
+
+    /**
+     * Send a packet, suspending while [outgoing] is full.
+     * */
+    suspend fun send(packet: ByteArray) = outgoing.send(packet)
+
+    /**
+     * Suspend until the poller sees the read event.
+     * The waiter is set before arming, so a signal right after is not missed.
+     * */
+    private suspend fun awaitReadable() = suspendCancellableCoroutine { continuation ->
+        waiter.set(continuation)
+        continuation.invokeOnCancellation { waiter.compareAndSet(continuation, null) }
+        key.arm()
+    }
+
+    /**
+     * Stop watching the session and stop sending. A suspended [receive] throws
+     * [EOFException]. The session itself is not closed.
+     * */
+    override fun close() {
+        closed = true
+        waiter.getAndSet(null)?.resumeWithException(EOFException("Coroutine session closed"))
+        key.cancel()
+        outgoingChannel.close()
+        sender.cancel()
+    }
+}
@@ -0,0 +1,71 @@
+package info.skyblond.jna.wintun
+
+import java.nio.ByteBuffer
+
+/**
+ * Hash an IP packet by its flow, so packets of the same flow always get the same value.
+ *
+ * TCP and UDP packets are hashed by the 5-tuple (addresses, protocol and ports),
+ * anything else by addresses and protocol. Fragmented IPv4 packets leave the
+ * ports out, since only the first fragment carries them. IPv6 extension headers
+ * are not followed, such packets are hashed by addresses and next header.
+ * */
+object FlowHash {
+    private const val TCP = 6
+    private const val UDP = 17
+
+    /**
+     * Hash the packet between position and limit of [packet]. The buffer is not modified.
+     * */
+    @JvmStatic
+    fun of(packet: ByteBuffer): Int {
+        val p = packet.position()
+        val len = packet.remaining()
+        if (len < 1) return 0
+        return when (packet.get(p).toInt() ushr 4 and 0xf) {
+            4 -> if (len < 20) 0 else ipv4(packet, p, len)
+            6 -> if (len < 40) 0 else ipv6(packet, p, len)
+            else -> 0
+        }
+    }
+
+    private fun ipv4(packet: ByteBuffer, p: Int, len: Int): Int {
+        val protocol = packet.get(p + 9).toInt() and 0xff
+        var h = protocol
+        h = mix(h, packet.getInt(p + 12))
+        h = mix(h, packet.getInt(p + 16))
+        val headerLen = (packet.get(p).toInt() and 0xf) * 4
+        // more fragments flag or fragment offset
+        val fragmented = packet.getShort(p + 6).toInt() and 0x3fff != 0
+        if (!fragmented && (protocol == TCP || protocol == UDP) && len >= headerLen + 4) {
+            h = mix(h, packet.getInt(p + headerLen))
+        }
+        return finish(h)
+    }
+
+    private fun ipv6(packet: ByteBuffer, p: Int, len: Int): Int {
+        val nextHeader = packet.get(p + 6).toInt() and 0xff
+        var h = nextHeader
+        for (i in 8 until 40 step 4) {
+            h = mix(h, packet.getInt(p + i))
+        }
+        if ((nextHeader == TCP || nextHeader == UDP) && len >= 44) {
+            h = mix(h, packet.getInt(p + 40))
+        }
+        return finish(h)
+    }
+
+    private fun mix(h: Int, v: Int): Int = Integer.rotateLeft(h xor v * -0x61c88647, 13) * 5 + -0x19ab949c
+
+    /**
+     * murmur3 finalizer, spreads the bits so the low ones can pick a bucket.
+     * */
+    private fun finish(h: Int): Int {
+        var x = h
+        x = x xor (x ushr 16)
+        x *= -0x7a143595
+        x = x xor (x ushr 13)
+        x *= -0x3d4d51cb
+        return x xor (x ushr 16)
+    }
+}
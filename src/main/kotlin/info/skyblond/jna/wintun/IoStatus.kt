@@ -0,0 +1,34 @@
+package info.skyblond.jna.wintun
+
+/**
+ * Result of the non-throwing session calls, like [WintunSession.readPacket] into a buffer.
+ *
+ * Expected conditions are reported here instead of thrown, so a busy
+ * data path does not pay for exceptions.
+ * */
+enum class IoStatus {
+    /**
+     * The packet was transferred.
+     * */
+    OK,
+
+    /**
+     * No packet was available in time.
+     * */
+    EMPTY,
+
+    /**
+     * The session or adapter is terminating.
+     * */
+    EOF,
+
+    /**
+     * The ring or the buffer is too small for the packet.
+     * */
+    OVERFLOW,
+
+    /**
+     * Wintun found invalid data in the ring.
+     * */
+    INVALID_DATA
+}
@@ -0,0 +1,82 @@
+package info.skyblond.jna.wintun
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A lock-free histogram with power of two buckets.
+ *
+ * Bucket `i` counts the values in `[2^(i-1), 2^i)`, bucket 0 counts zeros and
+ * negative values. Each recording thread gets its own set of buckets and is
+ * the only one writing them, so recording is a thread local lookup, a leading
+ * zero count and two ordered stores, no atomic read-modify-write. That's cheap
+ * enough for every packet, at the price of a 2x resolution and a few hundred
+ * bytes per thread that ever recorded. Readers add up all threads.
+ *
+ * Thread-safe.
+ * */
+class Log2Histogram {
+    companion object {
+        const val BUCKETS = 64
+
+        /**
+         * Largest value counted in bucket [index].
+         * */
+        @JvmStatic
+        fun upperBound(index: Int): Long = if (index >= BUCKETS - 1) Long.MAX_VALUE else (1L shl index) - 1
+    }
+
+    /**
+     * The buckets of one thread, followed by the sum of its values.
+     * Written by that thread only, read by anyone.
+     * */
+    private val stripes = CopyOnWriteArrayList<AtomicLongArray>()
+    private val local = ThreadLocal.withInitial { AtomicLongArray(BUCKETS + 1).also { stripes.add(it) } }
+
+    fun record(value: Long) {
+        val index = if (value <= 0) 0 else minOf(BUCKETS - java.lang.Long.numberOfLeadingZeros(value), BUCKETS - 1)
+        val stripe = local.get()
+        // single writer: a plain read and an ordered store are enough
+        stripe.lazySet(index, stripe.get(index) + 1)
+        stripe.lazySet(BUCKETS, stripe.get(BUCKETS) + value)
+    }
+
+    /**
+     * Count of each bucket, see the class doc for the ranges.
+     * */
+    fun snapshot(): LongArray {
+        val counts = LongArray(BUCKETS)
+        for (stripe in stripes) {
+            for (i in 0 until BUCKETS) counts[i] += stripe.get(i)
+        }
+        return counts
+    }
+
+    /**
+     * Sum of all recorded values.
+     * */
+    val sumOfValues: Long get() = stripes.sumOf { it.get(BUCKETS) }
+
+    /**
+     * Number of recorded values.
+     * */
+    val count: Long get() = snapshot().sum()
+
+    /**
+     * Upper bound of the bucket holding the [quantile], between 0 and 1.
+     * So it over-estimates by up to 2x. 0 if nothing is recorded.
+     * */
+    fun quantile(quantile: Double): Long {
+        require(quantile in 0.0..1.0) { "Quantile must be in [0, 1]" }
+        val counts = snapshot()
+        val total = counts.sum()
+        if (total == 0L) return 0
+        val rank = maxOf(1L, Math.ceil(total * quantile).toLong())
+        var seen = 0L
+        for (i in counts.indices) {
+            seen += counts[i]
+            if (seen >= rank) return upperBound(i)
+        }
+        return upperBound(BUCKETS - 1)
+    }
+}
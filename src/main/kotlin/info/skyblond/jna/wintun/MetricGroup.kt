@@ -0,0 +1,77 @@
+package info.skyblond.jna.wintun
+
+import java.util.concurrent.atomic.LongAdder
+import java.util.function.LongSupplier
+
+/**
+ * A named set of counters, gauges and histograms, like the ones of a session.
+ *
+ * Subclasses declare their metrics once, at construction, with [counter],
+ * [gauge] and [histogram], and record into the returned objects directly.
+ * [MetricsRegistry] then exposes them over JMX and in Prometheus text format.
+ * */
+abstract class MetricGroup(
+    /**
+     * Prefix of every metric name, like `wintun_session`.
+     * */
+    val prefix: String
+) {
+    /**
+     * One metric of the group.
+     * */
+    sealed class Metric(val name: String, val help: String)
+
+    /**
+     * Only goes up. Exported with a `_total` suffix.
+     * */
+    class Counter(name: String, help: String, val supplier: LongSupplier) : Metric(name, help)
+
+    /**
+     * A value read when exported.
+     * */
+    class Gauge(name: String, help: String, val supplier: LongSupplier) : Metric(name, help)
+
+    /**
+     * Recorded in whole units, like nanoseconds, exported multiplied by [scale],
+     * so durations come out in seconds, as Prometheus names them.
+     * */
+    class Histogram(name: String, help: String, val histogram: Log2Histogram, val scale: Double) : Metric(name, help)
+
+    companion object {
+        /**
+         * [histogram] scale of values recorded in nanoseconds, for a `_seconds` metric.
+         * */
+        const val NANOSECONDS = 1e-9
+
+        /**
+         * [histogram] scale of values recorded in milliseconds, for a `_seconds` metric.
+         * */
+        const val MILLISECONDS = 1e-3
+    }
+
+    private val declared = ArrayList<Metric>()
+
+    /**
+     * All metrics, in declaration order.
+     * */
+    val metrics: List<Metric> get() = declared
+
+    protected fun counter(name: String, help: String): LongAdder =
+        LongAdder().also { declared.add(Counter(name, help, LongSupplier(it::sum))) }
+
+    /**
+     * A counter read from something already recorded, like the count of a histogram,
+     * so the hot path doesn't pay twice.
+     * */
+    protected fun counter(name: String, help: String, supplier: LongSupplier) {
+        declared.add(Counter(name, help, supplier))
+    }
+
+    protected fun gauge(name: String, help: String, supplier: LongSupplier) {
+        declared.add(Gauge(name, help, supplier))
+    }
+
+    @JvmOverloads
+    protected fun histogram(name: String, help: String, scale: Double = 1.0): Log2Histogram =
+        Log2Histogram().also { declared.add(Histogram(name, help, it, scale)) }
+}
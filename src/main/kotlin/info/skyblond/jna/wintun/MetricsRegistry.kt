@@ -0,0 +1,208 @@
+package info.skyblond.jna.wintun
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.CopyOnWriteArrayList
+import javax.management.Attribute
+import javax.management.AttributeList
+import javax.management.AttributeNotFoundException
+import javax.management.DynamicMBean
+import javax.management.InstanceAlreadyExistsException
+import javax.management.MBeanAttributeInfo
+import javax.management.MBeanInfo
+import javax.management.MBeanServer
+import javax.management.ObjectName
+
+/**
+ * Keeps track of live [MetricGroup]s, each with its own labels, and exposes them
+ * as JMX MBeans and in Prometheus text format, see [writePrometheus].
+ *
+ * Sessions created by [WintunAdapter.newSession] register themselves in [default].
+ *
+ * Thread-safe.
+ * */
+class MetricsRegistry @JvmOverloads constructor(
+    /**
+     * Where to register the MBeans, null to skip JMX.
+     * */
+    private val mBeanServer: MBeanServer? = ManagementFactory.getPlatformMBeanServer()
+) {
+    companion object {
+        const val JMX_DOMAIN = "info.skyblond.wintun"
+
+        /**
+         * The registry used by the library itself.
+         * */
+        @JvmStatic
+        val default = MetricsRegistry()
+
+        private fun scaled(value: Long, scale: Double): Any = if (scale == 1.0) value else value * scale
+    }
+
+    private inner class Registration(
+        val group: MetricGroup,
+        val labels: Map<String, String>,
+        val objectName: ObjectName?
+    ) : AutoCloseable {
+        override fun close() {
+            if (!registrations.remove(this)) return
+            objectName?.let {
+                try {
+                    mBeanServer?.unregisterMBean(it)
+                } catch (e: Exception) {
+                    e.printStackTrace(System.err)
+                }
+            }
+        }
+    }
+
+    private val registrations = CopyOnWriteArrayList<Registration>()
+
+    /**
+     * Expose [group] with [labels], for example `adapter` and `session`.
+     * The MBean is named `info.skyblond.wintun:type=<type>,<labels>`. If a group
+     * with the same type and labels is registered already, like two registries
+     * sharing the platform MBean server, an `id=<n>` key is added to tell them apart.
+     *
+     * A failure to register the MBean is reported to [System.err] and
+     * the group is still exported in Prometheus format.
+     *
+     * @return close it to remove the group
+     * */
+    fun register(type: String, group: MetricGroup, labels: Map<String, String>): AutoCloseable {
+        val objectName = mBeanServer?.let { server ->
+            try {
+                val properties = java.util.Hashtable(labels.mapValues { (_, v) -> quoteIfNeeded(v) } + ("type" to type))
+                val mBean = GroupMBean(group)
+                var id = 1
+                var name = ObjectName(JMX_DOMAIN, properties)
+                while (!tryRegister(server, mBean, name)) {
+                    properties["id"] = (++id).toString()
+                    name = ObjectName(JMX_DOMAIN, properties)
+                }
+                name
+            } catch (e: Exception) {
+                e.printStackTrace(System.err)
+                null
+            }
+        }
+        return Registration(group, labels, objectName).also { registrations.add(it) }
+    }
+
+    /**
+     * Write every registered group in the Prometheus text exposition format, version 0.0.4.
+     * */
+    fun writePrometheus(out: Appendable) {
+        // the format wants all samples of a metric together, under one HELP and TYPE
+        val byName = LinkedHashMap<String, MutableList<Pair<MetricGroup.Metric, String>>>()
+        for (registration in registrations) {
+            val labels = registration.labels.entries.joinToString(",") { (k, v) -> "$k=\"${escape(v)}\"" }
+            for (metric in registration.group.metrics) {
+                byName.getOrPut("${registration.group.prefix}_${metric.name}") { ArrayList() }.add(metric to labels)
+            }
+        }
+        for ((name, samples) in byName) {
+            val first = samples.first().first
+            when (first) {
+                is MetricGroup.Counter -> {
+                    out.append("# HELP ${name}_total ${first.help}\n# TYPE ${name}_total counter\n")
+                    for ((metric, labels) in samples) {
+                        out.append("${name}_total{$labels} ${(metric as MetricGroup.Counter).supplier.asLong}\n")
+                    }
+                }
+
+                is MetricGroup.Gauge -> {
+                    out.append("# HELP $name ${first.help}\n# TYPE $name gauge\n")
+                    for ((metric, labels) in samples) {
+                        out.append("$name{$labels} ${(metric as MetricGroup.Gauge).supplier.asLong}\n")
+                    }
+                }
+
+                is MetricGroup.Histogram -> {
+                    out.append("# HELP $name ${first.help}\n# TYPE $name histogram\n")
+                    for ((metric, labels) in samples) {
+                        writeHistogram(out, name, labels, metric as MetricGroup.Histogram)
+                    }
+                }
+            }
+        }
+    }
+
+    private fun writeHistogram(out: Appendable, name: String, labels: String, metric: MetricGroup.Histogram) {
+        val histogram = metric.histogram
+        val counts = histogram.snapshot()
+        val last = counts.indexOfLast { it != 0L }
+        val separator = if (labels.isEmpty()) "" else ","
+        var cumulative = 0L
+        for (i in 0..last) {
+            cumulative += counts[i]
+            out.append("${name}_bucket{$labels${separator}le=\"${scaled(Log2Histogram.upperBound(i), metric.scale)}\"} $cumulative\n")
+        }
+        out.append("${name}_bucket{$labels${separator}le=\"+Inf\"} $cumulative\n")
+        out.append("${name}_sum{$labels} ${scaled(histogram.sumOfValues, metric.scale)}\n")
+        out.append("${name}_count{$labels} $cumulative\n")
+    }
+
+    private fun tryRegister(server: MBeanServer, mBean: GroupMBean, name: ObjectName): Boolean = try {
+        server.registerMBean(mBean, name)
+        true
+    } catch (e: InstanceAlreadyExistsException) {
+        false
+    }
+
+    private fun quoteIfNeeded(value: String) =
+        if (value.any { it in ",=:\"*?\n" }) ObjectName.quote(value) else value
+
+    private fun escape(value: String) = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")
+
+    /**
+     * Read-only view of a group. Counters and gauges are attributes of their own,
+     * histograms are flattened into count, sum, p50 and p99. Scaled histograms,
+     * like the `_seconds` ones, give doubles in the exported unit.
+     * */
+    private class GroupMBean(private val group: MetricGroup) : DynamicMBean {
+        private val types = HashMap<String, String>()
+        private val readers = LinkedHashMap<String, () -> Any>().apply {
+            for (metric in group.metrics) {
+                when (metric) {
+                    is MetricGroup.Counter -> put(metric.name, metric.supplier::getAsLong)
+                    is MetricGroup.Gauge -> put(metric.name, metric.supplier::getAsLong)
+                    is MetricGroup.Histogram -> {
+                        val histogram = metric.histogram
+                        val scale = metric.scale
+                        put("${metric.name}_count") { histogram.count }
+                        put("${metric.name}_sum") { scaled(histogram.sumOfValues, scale) }
+                        put("${metric.name}_p50") { scaled(histogram.quantile(0.5), scale) }
+                        put("${metric.name}_p99") { scaled(histogram.quantile(0.99), scale) }
+                        if (scale != 1.0) {
+                            for (suffix in listOf("_sum", "_p50", "_p99")) types[metric.name + suffix] = "double"
+                        }
+                    }
+                }
+            }
+        }
+        private val info = MBeanInfo(
+            group.javaClass.name, "Wintun metrics: ${group.prefix}",
+            readers.keys.map { name ->
+                val help = group.metrics.firstOrNull { name.startsWith(it.name) }?.help ?: name
+                MBeanAttributeInfo(name, types[name] ?: "long", help, true, false, false)
+            }.toTypedArray(),
+            null, null, null
+        )
+
+        override fun getAttribute(attribute: String): Any =
+            readers[attribute]?.invoke() ?: throw AttributeNotFoundException(attribute)
+
+        override fun getAttributes(attributes: Array<out String>): AttributeList = AttributeList().apply {
+            for (name in attributes) readers[name]?.let { add(Attribute(name, it())) }
+        }
+
+        override fun setAttribute(attribute: Attribute) = throw AttributeNotFoundException("Read-only: ${attribute.name}")
+
+        override fun setAttributes(attributes: AttributeList) = AttributeList()
+
+        override fun invoke(actionName: String, params: Array<out Any>?, signature: Array<out String>?): Any =
+            throw UnsupportedOperationException(actionName)
+
+        override fun getMBeanInfo(): MBeanInfo = info
+    }
+}
@@ -1,5 +1,6 @@
 package info.skyblond.jna.wintun
 
+import com.sun.jna.Platform
 import com.sun.jna.Pointer
 import com.sun.jna.platform.win32.Kernel32Util
 import java.net.Inet6Address
@@ -18,10 +19,24 @@ typealias WintunSessionHandler = Pointer
 /**
  * Indicate something wrong with native side.
  * Like the lib complains the arguments.
+ *
+ * The system message for [errorCode] is looked up only when [message] is read,
+ * and only on Windows, so the simulator can report errors too.
  * */
-class NativeException(msg: String, err: Int) : Exception(
-    "$msg: err $err, ${Kernel32Util.formatMessageFromLastErrorCode(err)}"
-)
+class NativeException(private val msg: String, err: Int) : Exception() {
+    /**
+     * The win32 error code, like [com.sun.jna.platform.win32.WinError.ERROR_BUFFER_OVERFLOW].
+     * */
+    val errorCode: Int = err
+
+    override val message: String by lazy {
+        if (Platform.isWindows()) {
+            "$msg: err $errorCode, ${Kernel32Util.formatMessageFromLastErrorCode(errorCode)}"
+        } else {
+            "$msg: err $errorCode"
+        }
+    }
+}
 
 data class ForwardTable(
     val interfaceLuid: Long,
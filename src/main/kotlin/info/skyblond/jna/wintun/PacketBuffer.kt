@@ -0,0 +1,89 @@
+package info.skyblond.jna.wintun
+
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A reference-counted packet buffer, borrowed from a [PacketBufferPool].
+ *
+ * It starts with one reference, held by whoever acquired it. Each [retain] must be
+ * matched by a [release], and the last release gives the memory back to the pool.
+ * After that, [buffer] may be handed to someone else, so it must not be touched anymore.
+ *
+ * Outside debug mode, the pool hands out the same object every time a slot is
+ * reused, so acquiring costs no allocation. A release of a buffer that went back to
+ * the pool is caught only until the buffer is acquired again: after that, it drops a
+ * reference of the new owner. Debug mode hands out a new object per acquire, where
+ * every stale release is caught, see [PacketBufferPool.debug].
+ *
+ * The reference count is thread-safe, the buffer itself is not.
+ * */
+class PacketBuffer internal constructor(
+    internal val slot: PacketBufferPool.Slot
+) {
+    /**
+     * The packet, from position 0 to the limit. Direct, so it can be
+     * copied to and from the wintun rings without going through the heap.
+     * Its capacity is the size class, which can be more than the packet.
+     * */
+    val buffer: ByteBuffer get() = slot.memory
+
+    /**
+     * Size of the packet in bytes, which is the limit of [buffer].
+     * */
+    val size: Int get() = buffer.limit()
+
+    private val refCount = AtomicInteger()
+
+    /**
+     * Set by the pool in debug mode, to stop tracking the buffer once released.
+     * */
+    internal var leakRef: Any? = null
+
+    /**
+     * Current number of references. 0 once released to the pool.
+     * */
+    val referenceCount: Int get() = refCount.get()
+
+    internal fun reset(size: Int) {
+        (buffer as Buffer).clear().limit(size)
+        refCount.set(1)
+    }
+
+    /**
+     * Add a reference, for example before handing the packet to another thread.
+     *
+     * @throws IllegalStateException if the buffer was already released
+     * */
+    fun retain(): PacketBuffer {
+        while (true) {
+            val count = refCount.get()
+            check(count > 0) { "Buffer already released" }
+            if (refCount.compareAndSet(count, count + 1)) return this
+        }
+    }
+
+    /**
+     * Drop a reference. The last one gives the buffer back to the pool.
+     *
+     * @throws IllegalStateException if the buffer was already released, and not
+     * acquired again since, unless the pool is in debug mode
+     * @return true if the buffer went back to the pool
+     * */
+    fun release(): Boolean {
+        val count = refCount.decrementAndGet()
+        if (count < 0) {
+            refCount.incrementAndGet()
+            throw IllegalStateException("Buffer already released")
+        }
+        if (count > 0) return false
+        slot.pool.recycle(this)
+        return true
+    }
+
+    /**
+     * Copy the packet out, mostly for tests and logging.
+     * */
+    fun toByteArray(): ByteArray = ByteArray(size).also { buffer.duplicate().also { d -> (d as Buffer).rewind() }.get(it) }
+}
@@ -0,0 +1,232 @@
+package info.skyblond.jna.wintun
+
+import java.lang.ref.PhantomReference
+import java.lang.ref.ReferenceQueue
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.util.ArrayDeque
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * A pool of direct packet buffers, carved out of large slabs.
+ *
+ * Buffers come in power of two size classes, from [MIN_SIZE_CLASS] up to the
+ * first one holding [WintunLib.WINTUN_MAX_IP_PACKET_SIZE]. A request is served by
+ * the smallest class that fits, and a class grows by one slab when it runs dry.
+ * Slabs are never given back, so in steady state acquiring and releasing
+ * buffers allocates nothing, neither on the heap nor off it.
+ *
+ * In debug mode, each acquire records where it happened, and a buffer that is
+ * garbage collected without being released is reported to [System.err] and
+ * reclaimed. Each acquire also gets a [PacketBuffer] of its own, so a release
+ * through a stale reference always throws, instead of dropping a reference of
+ * whoever got the memory next. This costs allocations per acquire, so it's off by
+ * default; turn it on with the `wintun.pool.debug` system property.
+ *
+ * Thread-safe.
+ * */
+class PacketBufferPool @JvmOverloads constructor(
+    /**
+     * Bytes allocated at once when a size class runs dry.
+     * Classes bigger than this get one buffer per slab.
+     * */
+    private val slabBytes: Int = 256 * 1024,
+    /**
+     * Track leaks, see above.
+     * */
+    val debug: Boolean = java.lang.Boolean.getBoolean("wintun.pool.debug")
+) {
+    companion object {
+        /**
+         * The smallest size class, enough for most TCP ACKs and DNS queries.
+         * */
+        const val MIN_SIZE_CLASS = 128
+        private const val MIN_SHIFT = 7
+
+        /**
+         * The biggest size class.
+         * */
+        const val MAX_SIZE_CLASS = 65536
+
+        private const val CLASS_COUNT = 17 - MIN_SHIFT
+
+        /**
+         * Index of the smallest class holding [size] bytes.
+         * */
+        private fun classOf(size: Int): Int =
+            if (size <= MIN_SIZE_CLASS) 0 else 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT
+    }
+
+    init {
+        require(slabBytes > 0) { "Slab size must be positive" }
+    }
+
+    /**
+     * A piece of a slab. Lives as long as the pool.
+     * */
+    internal class Slot(val pool: PacketBufferPool, val sizeClass: SizeClass, val memory: ByteBuffer) {
+        /**
+         * The handle reused for this slot when not in debug mode.
+         * */
+        val handle = PacketBuffer(this)
+    }
+
+    internal inner class SizeClass(val size: Int) {
+        private val free = ArrayDeque<Slot>()
+        var slabs = 0
+            private set
+        var capacity = 0
+            private set
+        var inUse = 0
+            private set
+        val acquired = LongAdder()
+        val leaked = LongAdder()
+
+        @Synchronized
+        fun take(): Slot {
+            if (free.isEmpty()) grow()
+            inUse++
+            return free.pop()
+        }
+
+        @Synchronized
+        fun give(slot: Slot) {
+            inUse--
+            free.push(slot)
+        }
+
+        private fun grow() {
+            val count = maxOf(1, slabBytes / size)
+            val slab = ByteBuffer.allocateDirect(count * size)
+            for (i in 0 until count) {
+                (slab as Buffer).limit((i + 1) * size).position(i * size)
+                free.push(Slot(this@PacketBufferPool, this, slab.slice()))
+            }
+            slabs++
+            capacity += count
+        }
+
+        @Synchronized
+        fun stats() = SizeClassStats(size, slabs, capacity, inUse, acquired.sum(), leaked.sum())
+    }
+
+    /**
+     * Counters of one size class, see [stats].
+     * */
+    data class SizeClassStats(
+        /**
+         * Capacity of the buffers in this class.
+         * */
+        val size: Int,
+        /**
+         * Slabs allocated so far.
+         * */
+        val slabs: Int,
+        /**
+         * Buffers carved out of the slabs.
+         * */
+        val capacity: Int,
+        /**
+         * Buffers acquired and not released yet.
+         * */
+        val inUse: Int,
+        /**
+         * Buffers acquired since the pool was created.
+         * */
+        val acquired: Long,
+        /**
+         * Buffers found garbage collected without being released. Debug mode only.
+         * */
+        val leaked: Long
+    )
+
+    private val classes = Array(CLASS_COUNT) { SizeClass(MIN_SIZE_CLASS shl it) }
+
+    /**
+     * Tracks buffers handed out in debug mode, see [acquire].
+     * */
+    private class LeakRef(
+        buffer: PacketBuffer,
+        queue: ReferenceQueue<PacketBuffer>,
+        val slot: Slot,
+        val site: Throwable
+    ) : PhantomReference<PacketBuffer>(buffer, queue)
+
+    private val leakQueue = ReferenceQueue<PacketBuffer>()
+
+    /**
+     * Keeps the references alive until their buffer is released or collected.
+     * */
+    private val tracked: MutableSet<LeakRef> = ConcurrentHashMap.newKeySet()
+
+    /**
+     * Borrow a buffer of at least [size] bytes, with its limit set to [size].
+     * Release it when done.
+     * */
+    fun acquire(size: Int): PacketBuffer {
+        require(size in 0..WintunLib.WINTUN_MAX_IP_PACKET_SIZE) {
+            "Packet size $size out of range 0..${WintunLib.WINTUN_MAX_IP_PACKET_SIZE}"
+        }
+        val sizeClass = classes[classOf(size)]
+        if (debug) reclaimLeaks()
+        val slot = sizeClass.take()
+        sizeClass.acquired.increment()
+        val buffer = if (debug) {
+            PacketBuffer(slot).also {
+                val ref = LeakRef(it, leakQueue, slot, Throwable("Packet buffer acquired here"))
+                it.leakRef = ref
+                tracked.add(ref)
+            }
+        } else {
+            slot.handle
+        }
+        buffer.reset(size)
+        return buffer
+    }
+
+    /**
+     * Called by [PacketBuffer.release] on the last reference.
+     * */
+    internal fun recycle(buffer: PacketBuffer) {
+        (buffer.leakRef as LeakRef?)?.let {
+            tracked.remove(it)
+            it.clear()
+        }
+        buffer.slot.sizeClass.give(buffer.slot)
+    }
+
+    private fun reclaimLeaks() {
+        while (true) {
+            val ref = leakQueue.poll() as LeakRef? ?: return
+            tracked.remove(ref)
+            val sizeClass = ref.slot.sizeClass
+            sizeClass.leaked.increment()
+            System.err.println("Packet buffer of ${sizeClass.size} bytes was garbage collected without being released")
+            ref.site.printStackTrace(System.err)
+            sizeClass.give(ref.slot)
+        }
+    }
+
+    /**
+     * Report and reclaim the leaked buffers found so far. Debug mode only,
+     * and only finds buffers the garbage collector already got rid of.
+     *
+     * @return the number of leaks found so far, in all size classes
+     * */
+    fun checkLeaks(): Long {
+        check(debug) { "Leak detection needs debug mode" }
+        reclaimLeaks()
+        return classes.sumOf { it.leaked.sum() }
+    }
+
+    /**
+     * A snapshot of the counters, one entry per size class.
+     * */
+    fun stats(): List<SizeClassStats> = classes.map { it.stats() }
+
+    /**
+     * Direct memory held by the pool, in bytes.
+     * */
+    val allocatedBytes: Long get() = classes.sumOf { it.stats().let { s -> s.size.toLong() * s.capacity } }
+}
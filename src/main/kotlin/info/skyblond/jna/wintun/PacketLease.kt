@@ -0,0 +1,51 @@
+package info.skyblond.jna.wintun
+
+import java.nio.ByteBuffer
+
+/**
+ * A packet received from the session, still living in the wintun receive ring.
+ *
+ * No byte is copied: [buffer] is a view over the native ring slot returned by
+ * [WintunLib.WintunReceivePacket]. The slot is handed back to wintun by [close],
+ * which calls [WintunLib.WintunReleaseReceivePacket]. After that, the buffer points
+ * to memory that wintun may reuse at any time, so it must not be touched anymore.
+ *
+ * A lease may also hold a packet that was already copied out of the ring, like
+ * the ones carried over by [AdaptiveSession] when it resizes. Closing it then
+ * does nothing.
+ *
+ * NOT thread-safe.
+ * */
+class PacketLease internal constructor(
+    /**
+     * The session owning the ring slot, null for a copied packet.
+     * */
+    private val owner: WintunSession?,
+    private val packet: Long,
+    /**
+     * Size of the packet in bytes.
+     * */
+    val size: Int,
+    /**
+     * The layer 3 IPv4 or IPv6 packet, from position 0 to [size].
+     * Client may modify its content at will.
+     * */
+    val buffer: ByteBuffer
+) : AutoCloseable {
+    private var released = false
+
+    /**
+     * Copy the packet out of the ring.
+     * The lease is still valid after this, and needs to be closed.
+     * */
+    fun toByteArray(): ByteArray = ByteArray(size).also { buffer.duplicate().get(it) }
+
+    /**
+     * Release the ring slot. Calling it more than once has no effect.
+     * */
+    override fun close() {
+        if (released) return
+        released = true
+        owner?.release(packet)
+    }
+}
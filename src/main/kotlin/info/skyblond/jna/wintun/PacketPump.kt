@@ -0,0 +1,198 @@
+package info.skyblond.jna.wintun
+
+import com.sun.jna.platform.win32.WinBase
+import java.io.EOFException
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Reads packets from a [WintunSession] and hands them to a pool of worker threads.
+ *
+ * Packets are routed by [FlowHash], so every packet of a flow goes to the same
+ * worker and is handled in ring order, while different flows are handled in
+ * parallel. Reading is done by a single thread on purpose: with several readers,
+ * two packets of one flow could be queued in the wrong order. Draining the ring
+ * is cheap compared to handling the packets, see [WintunSession.receiveBatch].
+ *
+ * Each worker has a bounded queue, what happens when it's full is decided by
+ * [OverflowPolicy].
+ * */
+class PacketPump @JvmOverloads constructor(
+    private val session: WintunSession,
+    /**
+     * Number of worker threads.
+     * */
+    workers: Int,
+    private val handler: PacketHandler,
+    /**
+     * Packets each worker can hold before [overflowPolicy] kicks in.
+     * */
+    queueCapacity: Int = 1024,
+    private val overflowPolicy: OverflowPolicy = OverflowPolicy.BLOCK
+) : AutoCloseable {
+
+    /**
+     * What to do when a worker queue is full.
+     * */
+    enum class OverflowPolicy {
+        /**
+         * Stop reading until the worker catches up. Packets pile up in the ring,
+         * and wintun drops them once the ring is full.
+         * */
+        BLOCK,
+
+        /**
+         * Drop the packet just read.
+         * */
+        DROP_NEWEST,
+
+        /**
+         * Drop the oldest queued packet to make room.
+         * */
+        DROP_OLDEST
+    }
+
+    /**
+     * Handles packets on a worker thread.
+     * */
+    fun interface PacketHandler {
+        fun handle(packet: ByteArray)
+    }
+
+    companion object {
+        private const val BATCH = 64
+
+        /**
+         * Tells a worker to exit, once everything queued before it is handled.
+         * */
+        private val POISON = ByteArray(0)
+    }
+
+    init {
+        require(workers > 0) { "At least one worker is required" }
+        require(queueCapacity > 0) { "Queue capacity must be positive" }
+    }
+
+    private val queues = Array(workers) { ArrayBlockingQueue<ByteArray>(queueCapacity) }
+    private val workerThreads = Array(workers) { i ->
+        Thread({ work(queues[i]) }, "wintun-pump-worker-$i").apply { isDaemon = true }
+    }
+    private val readerThread = Thread(::read, "wintun-pump-reader").apply { isDaemon = true }
+
+    @Volatile
+    private var running = false
+
+    /**
+     * True from [start] until the pump is closed or the session reaches EOF.
+     * */
+    val isRunning: Boolean get() = running
+
+    private val received = LongAdder()
+    private val dropped = LongAdder()
+    private val handled = LongAdder()
+    private val failed = LongAdder()
+
+    /**
+     * Packets read from the session.
+     * */
+    val receivedCount: Long get() = received.sum()
+
+    /**
+     * Packets dropped because a worker queue was full.
+     * */
+    val droppedCount: Long get() = dropped.sum()
+
+    /**
+     * Packets handled, including the ones where the handler threw.
+     * */
+    val handledCount: Long get() = handled.sum()
+
+    /**
+     * Packets where the handler threw.
+     * */
+    val failedCount: Long get() = failed.sum()
+
+    /**
+     * Start the reader and the workers. A pump can only be started once.
+     * */
+    @Synchronized
+    fun start() {
+        check(!running && readerThread.state == Thread.State.NEW) { "Pump already started" }
+        running = true
+        workerThreads.forEach { it.start() }
+        readerThread.start()
+    }
+
+    private fun read() {
+        val sink = PacketSink { packet ->
+            val hash = FlowHash.of(packet)
+            val copy = ByteArray(packet.remaining())
+            packet.get(copy)
+            received.increment()
+            dispatch(queues[Math.floorMod(hash, queues.size)], copy)
+        }
+        try {
+            while (running) {
+                session.receiveBatch(BATCH, sink, WinBase.INFINITE)
+            }
+        } catch (_: EOFException) {
+        } catch (_: InterruptedException) {
+        } catch (e: Exception) {
+            e.printStackTrace(System.err)
+        } finally {
+            running = false
+            // every worker must get its pill, or close() waits for it forever
+            var interrupted = false
+            for (queue in queues) {
+                while (true) {
+                    try {
+                        queue.put(POISON)
+                        break
+                    } catch (_: InterruptedException) {
+                        interrupted = true
+                    }
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt()
+        }
+    }
+
+    private fun dispatch(queue: ArrayBlockingQueue<ByteArray>, packet: ByteArray) {
+        when (overflowPolicy) {
+            OverflowPolicy.BLOCK -> queue.put(packet)
+            OverflowPolicy.DROP_NEWEST -> if (!queue.offer(packet)) dropped.increment()
+            OverflowPolicy.DROP_OLDEST -> while (!queue.offer(packet)) {
+                if (queue.poll() != null) dropped.increment()
+            }
+        }
+    }
+
+    private fun work(queue: ArrayBlockingQueue<ByteArray>) {
+        while (true) {
+            val packet = try {
+                queue.take()
+            } catch (_: InterruptedException) {
+                return
+            }
+            if (packet === POISON) return
+            try {
+                handler.handle(packet)
+            } catch (e: Exception) {
+                failed.increment()
+                e.printStackTrace(System.err)
+            }
+            handled.increment()
+        }
+    }
+
+    /**
+     * Stop reading, let the workers finish what is queued, and wait for all threads to exit.
+     * The session is not closed.
+     * */
+    override fun close() {
+        running = false
+        session.wakeup()
+        readerThread.join()
+        workerThreads.forEach { it.join() }
+    }
+}
@@ -0,0 +1,16 @@
+package info.skyblond.jna.wintun
+
+import java.nio.ByteBuffer
+
+/**
+ * Consumes packets drained by [WintunSession.receiveBatch].
+ * */
+fun interface PacketSink {
+    /**
+     * Handle one packet.
+     *
+     * [packet] is a view over the ring slot and is only valid during this call.
+     * Copy what you need before return.
+     * */
+    fun accept(packet: ByteBuffer)
+}
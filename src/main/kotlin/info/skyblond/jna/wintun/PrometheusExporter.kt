@@ -0,0 +1,45 @@
+package info.skyblond.jna.wintun
+
+import com.sun.net.httpserver.HttpServer
+import java.net.InetAddress
+import java.net.InetSocketAddress
+
+/**
+ * Serves a [MetricsRegistry] in Prometheus text format at `/metrics`,
+ * using the HTTP server that comes with the JDK.
+ *
+ * Binds to the loopback address by default, put a reverse proxy or an agent
+ * in front of it rather than exposing it.
+ * */
+class PrometheusExporter @JvmOverloads constructor(
+    private val registry: MetricsRegistry = MetricsRegistry.default,
+    address: InetSocketAddress = InetSocketAddress(InetAddress.getLoopbackAddress(), 9464)
+) : AutoCloseable {
+
+    private val server: HttpServer = HttpServer.create(address, 0).apply {
+        createContext("/metrics") { exchange ->
+            try {
+                val body = StringBuilder(4096).also { registry.writePrometheus(it) }
+                    .toString().toByteArray(Charsets.UTF_8)
+                exchange.responseHeaders.add("Content-Type", "text/plain; version=0.0.4; charset=utf-8")
+                exchange.sendResponseHeaders(200, body.size.toLong())
+                exchange.responseBody.use { it.write(body) }
+            } catch (e: Exception) {
+                e.printStackTrace(System.err)
+                exchange.sendResponseHeaders(500, -1)
+            } finally {
+                exchange.close()
+            }
+        }
+        start()
+    }
+
+    /**
+     * The address actually bound, useful when asking for port 0.
+     * */
+    val address: InetSocketAddress get() = server.address
+
+    override fun close() {
+        server.stop(0)
+    }
+}
@@ -0,0 +1,103 @@
+package info.skyblond.jna.wintun
+
+import com.sun.jna.platform.win32.WinBase
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Decides what a [WintunSession] does while its receive ring is empty.
+ *
+ * Wintun recommends spinning on [WintunLib.WintunReceivePacket] for a while under
+ * load before waiting on the read event: spinning catches the next packet sooner,
+ * waiting saves CPU. Each strategy counts where receives caught their packet, so
+ * the trade-off can be checked on a real workload. Packets drained after the first
+ * one by [WintunSession.receiveBatch] are not counted.
+ *
+ * Strategies carry counters, create one per session.
+ * */
+abstract class ReceiveWaitStrategy {
+
+    companion object {
+        /**
+         * Never block, poll the ring until a packet shows up or the timeout expires.
+         * Lowest latency, burns a core.
+         * */
+        @JvmStatic
+        fun busySpin(): ReceiveWaitStrategy = SpinYieldPark(Int.MAX_VALUE, 0)
+
+        /**
+         * Poll [spins] times, then poll with [Thread.yield] in between [yields] times,
+         * then wait on the read event.
+         * */
+        @JvmStatic
+        @JvmOverloads
+        fun spinYieldPark(spins: Int = 1000, yields: Int = 10): ReceiveWaitStrategy {
+            require(spins >= 0 && yields >= 0) { "Spins and yields must not be negative" }
+            return SpinYieldPark(spins, yields)
+        }
+
+        /**
+         * Wait on the read event as soon as the ring is empty.
+         * Cheapest on CPU, every packet after an idle period pays a wakeup.
+         * */
+        @JvmStatic
+        fun eventWait(): ReceiveWaitStrategy = SpinYieldPark(0, 0)
+    }
+
+    private val readyHits = LongAdder()
+    private val spinHits = LongAdder()
+    private val wakeHits = LongAdder()
+    private val emptyWakes = LongAdder()
+
+    /**
+     * Packets that were already there on the first poll.
+     * */
+    val readyHitCount: Long get() = readyHits.sum()
+
+    /**
+     * Packets caught by polling again, without blocking in between.
+     * */
+    val spinHitCount: Long get() = spinHits.sum()
+
+    /**
+     * Packets caught after the thread was blocked on the read event.
+     * */
+    val wakeHitCount: Long get() = wakeHits.sum()
+
+    /**
+     * Event waits that ended without a packet to read, because of a timeout or
+     * a spurious wakeup. Waits cut short by [WintunSession.wakeup] are not counted.
+     * An idle session blocked with [WinBase.INFINITE] keeps this at zero.
+     * */
+    val emptyWakeCount: Long get() = emptyWakes.sum()
+
+    /**
+     * Called after each empty poll, before the ring is polled again.
+     *
+     * @param attempt number of empty polls so far for this receive, starting at 0
+     * @param remainingMs time left before the receive gives up, or [WinBase.INFINITE]
+     * @return true if the thread waited on the event with [WintunSession.awaitReadEvent]
+     * */
+    abstract fun idle(session: WintunSession, attempt: Int, remainingMs: Int): Boolean
+
+    internal fun recordHit(attempts: Int, woken: Boolean) {
+        when {
+            attempts == 0 -> readyHits.increment()
+            woken -> wakeHits.increment()
+            else -> spinHits.increment()
+        }
+    }
+
+    internal fun recordEmptyWake() = emptyWakes.increment()
+
+    private class SpinYieldPark(private val spins: Int, private val yields: Int) : ReceiveWaitStrategy() {
+        override fun idle(session: WintunSession, attempt: Int, remainingMs: Int): Boolean {
+            if (attempt < spins) return false
+            if (attempt - spins < yields) {
+                Thread.yield()
+                return false
+            }
+            session.awaitReadEvent(remainingMs)
+            return true
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package info.skyblond.jna.wintun
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Caps the memory taken by the rings of several [AdaptiveSession]s.
+ *
+ * A session is charged twice its capacity, for the receive and the send ring.
+ * Thread-safe, share one instance between the sessions it should cap.
+ * */
+class RingBudget(
+    /**
+     * Total bytes the rings may take.
+     * */
+    val maxBytes: Long
+) {
+    companion object {
+        /**
+         * A budget that never says no.
+         * */
+        @JvmStatic
+        fun unlimited() = RingBudget(Long.MAX_VALUE)
+    }
+
+    private val used = AtomicLong()
+
+    /**
+     * Bytes currently charged.
+     * */
+    val usedBytes: Long get() = used.get()
+
+    /**
+     * Charge [bytes] if they fit.
+     *
+     * @return false if that would go over [maxBytes], nothing is charged then
+     * */
+    fun tryReserve(bytes: Long): Boolean {
+        while (true) {
+            val current = used.get()
+            if (bytes > maxBytes - current) return false
+            if (used.compareAndSet(current, current + bytes)) return true
+        }
+    }
+
+    /**
+     * Give back [bytes] charged by [tryReserve].
+     * */
+    fun release(bytes: Long) {
+        used.addAndGet(-bytes)
+    }
+}
@@ -0,0 +1,49 @@
+package info.skyblond.jna.wintun
+
+import com.sun.jna.Pointer
+import java.nio.Buffer
+import java.nio.ByteBuffer
+
+/**
+ * Hands out [ByteBuffer] views over packets living in a wintun ring.
+ *
+ * Creating a direct buffer through JNA is a JNI up-call and costs more than
+ * copying a small packet. Wintun rings are contiguous, so one direct buffer
+ * is created starting at a packet and reused for every later packet that
+ * falls inside it, which happens until the ring wraps around. Only the bytes
+ * of the requested packet are ever exposed.
+ *
+ * NOT thread-safe. Keep one per thread.
+ * */
+internal class RingWindow(capacity: Int) {
+    /**
+     * Packets never start more than a ring away from each other, and the
+     * last one may spill over by at most one max sized packet.
+     * */
+    private val span = 2L * capacity + WintunLib.WINTUN_MAX_IP_PACKET_SIZE
+    private var base = 0L
+    private var window: ByteBuffer? = null
+
+    /**
+     * A buffer from position 0 to [size] over the packet at [address].
+     * */
+    fun view(address: Long, size: Int): ByteBuffer = at(address, size).slice()
+
+    /**
+     * The shared window, positioned on the packet at [address] and limited to it.
+     * Only valid until the next call, but costs no allocation.
+     * */
+    fun at(address: Long, size: Int): ByteBuffer {
+        var w = window
+        if (w == null || address < base || address + size > base + span) {
+            w = Pointer(address).getByteBuffer(0, span)
+            window = w
+            base = address
+        }
+        val offset = (address - base).toInt()
+        // cast to Buffer, so it runs on java 8
+        (w as Buffer).limit(offset + size)
+        (w as Buffer).position(offset)
+        return w
+    }
+}
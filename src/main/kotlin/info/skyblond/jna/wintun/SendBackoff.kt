@@ -0,0 +1,47 @@
+package info.skyblond.jna.wintun
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Exponential pause while the send ring of a session is full, doubling from
+ * [MIN_NANOS] up to [maxNanos], so a full ring never turns into a busy spin.
+ * Call [reset] once a packet went through.
+ *
+ * NOT thread-safe.
+ * */
+class SendBackoff @JvmOverloads constructor(
+    /**
+     * Longest pause.
+     * */
+    private val maxNanos: Long = DEFAULT_MAX_NANOS
+) {
+    companion object {
+        const val MIN_NANOS = 1000L
+
+        @JvmField
+        val DEFAULT_MAX_NANOS: Long = TimeUnit.MILLISECONDS.toNanos(1)
+    }
+
+    init {
+        require(maxNanos >= MIN_NANOS) { "Max backoff must be at least $MIN_NANOS ns" }
+    }
+
+    private var nanos = MIN_NANOS
+
+    /**
+     * Park for the current step, and double it for next time.
+     *
+     * @throws InterruptedException if interrupted meanwhile
+     * */
+    @Throws(InterruptedException::class)
+    fun pause() {
+        LockSupport.parkNanos(nanos)
+        nanos = minOf(nanos * 2, maxNanos)
+        if (Thread.interrupted()) throw InterruptedException()
+    }
+
+    fun reset() {
+        nanos = MIN_NANOS
+    }
+}
@@ -0,0 +1,16 @@
+package info.skyblond.jna.wintun
+
+import java.nio.ByteBuffer
+
+/**
+ * Builds packets in place for [WintunSession.sendBatch].
+ * */
+fun interface SendFiller {
+    /**
+     * Fill the [index]-th packet of the batch.
+     *
+     * [packet] is a view over the send slot, from position 0 to the requested size,
+     * and is only valid during this call.
+     * */
+    fun fill(index: Int, packet: ByteBuffer)
+}
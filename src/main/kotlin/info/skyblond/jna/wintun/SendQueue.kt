@@ -0,0 +1,277 @@
+package info.skyblond.jna.wintun
+
+import com.sun.jna.platform.win32.WinError
+import java.nio.Buffer
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * A bounded queue in front of [WintunSession.writePacket].
+ *
+ * When the OS is slow to drain the send ring, wintun fails the allocation with
+ * [WinError.ERROR_BUFFER_OVERFLOW]. Instead of surfacing that to the caller, a
+ * dedicated sender thread keeps the packet and retries, parking with a [SendBackoff]
+ * between attempts, so a full ring never turns into a busy spin.
+ * Meanwhile packets pile up in the queue, and once it's full [policy] decides
+ * what [offer] does.
+ *
+ * Queued packets live in buffers borrowed from a [PacketBufferPool], so a steady
+ * flow of packets causes no heap allocation.
+ *
+ * Packets are written in the order they are offered. Thread-safe.
+ * */
+class SendQueue @JvmOverloads constructor(
+    private val session: WintunSession,
+    /**
+     * Packets the queue can hold before [policy] kicks in.
+     * */
+    capacity: Int = 1024,
+    private val policy: Policy = Policy.PARK,
+    /**
+     * Longest the sender parks between two attempts on a full ring.
+     * */
+    maxBackoffNanos: Long = SendBackoff.DEFAULT_MAX_NANOS,
+    /**
+     * Where [offer] copies packets to.
+     * */
+    private val pool: PacketBufferPool = PacketBufferPool()
+) : AutoCloseable {
+
+    /**
+     * What [offer] does when the queue is full.
+     * */
+    enum class Policy {
+        /**
+         * Block the caller until the ring frees space and the queue has room.
+         * */
+        PARK,
+
+        /**
+         * Drop the packet being offered.
+         * */
+        DROP_TAIL,
+
+        /**
+         * Drop the oldest queued packet to make room.
+         * */
+        DROP_OLDEST,
+
+        /**
+         * Throw [NativeException] with [WinError.ERROR_BUFFER_OVERFLOW],
+         * like [WintunSession.writePacket] does.
+         * */
+        FAIL_FAST
+    }
+
+    companion object {
+        private const val PARK_CHECK_MS = 10L
+    }
+
+    init {
+        require(capacity > 0) { "Queue capacity must be positive" }
+    }
+
+    /**
+     * Only used by the sender thread.
+     * */
+    private val backoff = SendBackoff(maxBackoffNanos)
+
+    private val queue = ArrayBlockingQueue<PacketBuffer>(capacity)
+    private val senderThread = Thread(::send, "wintun-send-queue").apply { isDaemon = true }
+
+    @Volatile
+    private var closed = false
+
+    /**
+     * True once the queue is closed or the session reached EOF.
+     * Later packets are dropped.
+     * */
+    val isClosed: Boolean get() = closed
+
+    private val enqueued = LongAdder()
+    private val sent = LongAdder()
+    private val dropped = LongAdder()
+    private val ringFull = LongAdder()
+    private val failed = LongAdder()
+
+    /**
+     * Packets accepted by [offer].
+     * */
+    val enqueuedCount: Long get() = enqueued.sum()
+
+    /**
+     * Packets written to the ring.
+     * */
+    val sentCount: Long get() = sent.sum()
+
+    /**
+     * Packets dropped, by the policy or because the queue was closed.
+     * */
+    val droppedCount: Long get() = dropped.sum()
+
+    /**
+     * Times the sender found the ring full and backed off.
+     * */
+    val ringFullCount: Long get() = ringFull.sum()
+
+    /**
+     * Packets the session refused with an error other than a full ring.
+     * */
+    val failedCount: Long get() = failed.sum()
+
+    /**
+     * Packets waiting in the queue.
+     * */
+    val size: Int get() = queue.size
+
+    init {
+        senderThread.start()
+    }
+
+    /**
+     * Queue a copy of [len] bytes of [packet] from [offset].
+     * The array can be reused right after this returns.
+     *
+     * @throws NativeException with [WinError.ERROR_BUFFER_OVERFLOW] if the queue is
+     * full and the policy is [Policy.FAIL_FAST]
+     * @throws InterruptedException if interrupted while parked by [Policy.PARK]
+     * @return true if the packet is queued, false if it's dropped
+     * */
+    @JvmOverloads
+    @Throws(NativeException::class, InterruptedException::class)
+    fun offer(packet: ByteArray, offset: Int = 0, len: Int = packet.size - offset): Boolean {
+        require(offset >= 0 && len >= 0 && offset + len <= packet.size) { "Range out of bounds" }
+        if (closed) {
+            dropped.increment()
+            return false
+        }
+        val copy = pool.acquire(len)
+        copy.buffer.put(packet, offset, len)
+        (copy.buffer as Buffer).rewind()
+        return offer(copy)
+    }
+
+    /**
+     * Queue [packet], from position 0 to its limit. The queue takes over the
+     * reference of the caller, and releases it once the packet is sent or dropped.
+     *
+     * Same as the other [offer] otherwise.
+     * */
+    @Throws(NativeException::class, InterruptedException::class)
+    fun offer(packet: PacketBuffer): Boolean {
+        if (closed) {
+            packet.release()
+            dropped.increment()
+            return false
+        }
+        val accepted = try {
+            when (policy) {
+                Policy.PARK -> park(packet)
+                Policy.DROP_TAIL -> queue.offer(packet)
+                Policy.DROP_OLDEST -> {
+                    while (!queue.offer(packet)) {
+                        queue.poll()?.let { drop(it) }
+                    }
+                    true
+                }
+
+                Policy.FAIL_FAST -> queue.offer(packet) ||
+                        throw NativeException("Send queue is full", WinError.ERROR_BUFFER_OVERFLOW)
+            }
+        } catch (e: Exception) {
+            drop(packet)
+            throw e
+        }
+        if (!accepted) {
+            drop(packet)
+            return false
+        }
+        enqueued.increment()
+        // close() may have emptied the queue between the check above and the offer
+        if (closed) discardQueued()
+        return true
+    }
+
+    private fun drop(packet: PacketBuffer) {
+        packet.release()
+        dropped.increment()
+    }
+
+    private fun park(packet: PacketBuffer): Boolean {
+        // wake up now and then, so close() can't leave the caller stuck
+        while (!queue.offer(packet, PARK_CHECK_MS, TimeUnit.MILLISECONDS)) {
+            if (closed) return false
+        }
+        return true
+    }
+
+    private fun send() {
+        try {
+            while (!closed) {
+                val packet = queue.take()
+                try {
+                    if (!write(packet)) break
+                } finally {
+                    packet.release()
+                }
+            }
+        } catch (_: InterruptedException) {
+        } finally {
+            closed = true
+            discardQueued()
+        }
+    }
+
+    /**
+     * @return false if the session reached EOF
+     * */
+    private fun write(packet: PacketBuffer): Boolean {
+        backoff.reset()
+        while (true) {
+            val status = try {
+                session.writePacket(packet)
+            } catch (e: NativeException) {
+                failed.increment()
+                e.printStackTrace(System.err)
+                return true
+            }
+            when (status) {
+                IoStatus.OK -> {
+                    sent.increment()
+                    return true
+                }
+
+                IoStatus.OVERFLOW -> {
+                    ringFull.increment()
+                    try {
+                        backoff.pause()
+                    } catch (e: InterruptedException) {
+                        dropped.increment()
+                        throw e
+                    }
+                }
+
+                else -> {
+                    dropped.increment()
+                    return false
+                }
+            }
+        }
+    }
+
+    private fun discardQueued() {
+        while (true) drop(queue.poll() ?: return)
+    }
+
+    /**
+     * Stop the sender and wait for it to exit. Packets not yet in the ring are dropped.
+     * The session is not closed.
+     * */
+    override fun close() {
+        closed = true
+        senderThread.interrupt()
+        senderThread.join()
+        discardQueued()
+    }
+}
@@ -0,0 +1,54 @@
+package info.skyblond.jna.wintun
+
+import java.nio.ByteBuffer
+
+/**
+ * A slot in the wintun send ring, allocated by [WintunLib.WintunAllocateSendPacket].
+ *
+ * Build the packet in [buffer], then call [send]. Wintun sends packets in
+ * allocation order, so a slot that is never sent holds back every slot
+ * allocated after it. [close] takes care of that: an unsent slot gets its IP
+ * version nibble cleared and is committed anyway, the driver discards it.
+ *
+ * NOT thread-safe.
+ * */
+class SendSlot internal constructor(
+    private val dataPlane: WintunDataPlane,
+    private val metrics: SessionMetrics,
+    private val session: Long,
+    private val packet: Long,
+    /**
+     * Size of the slot in bytes, the packet must fill it exactly.
+     * */
+    val size: Int,
+    /**
+     * A view over the slot, from position 0 to [size].
+     * */
+    val buffer: ByteBuffer
+) : AutoCloseable {
+    private var committed = false
+
+    /**
+     * Commit the packet with [WintunLib.WintunSendPacket].
+     * The buffer must not be touched after this.
+     * */
+    fun send() {
+        commit()
+        metrics.recordOut(size)
+    }
+
+    /**
+     * Give the slot back without sending the content. Does nothing if already sent.
+     * */
+    override fun close() {
+        if (committed) return
+        if (size > 0) buffer.put(0, 0)
+        commit()
+    }
+
+    private fun commit() {
+        check(!committed) { "Packet already committed" }
+        committed = true
+        dataPlane.sendPacket(session, packet)
+    }
+}
@@ -0,0 +1,42 @@
+package info.skyblond.jna.wintun
+
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * What a [WintunSession] has been doing, recorded by the session itself.
+ *
+ * Packets are counted as they leave or enter the rings: received when taken
+ * from the receive ring, sent when a send slot is committed. Discarded slots
+ * are not counted. Packet and byte counts are read from the size histograms, so a packet costs one record.
+ * */
+class SessionMetrics : MetricGroup("wintun_session") {
+    val packetSizeIn: Log2Histogram = histogram("packet_size_in_bytes", "Size of received packets")
+    val packetSizeOut: Log2Histogram = histogram("packet_size_out_bytes", "Size of sent packets")
+    val emptyPolls: LongAdder = counter("empty_polls", "Polls that found the receive ring empty")
+    val spinHits: LongAdder = counter("spin_hits", "Packets caught by polling again after an empty poll")
+    val wakeHits: LongAdder = counter("wake_hits", "Packets caught after waiting on the read event")
+    val receiveWaitNanos: Log2Histogram =
+        histogram(
+            "receive_wait_seconds", "Time from the first empty poll to the packet, for receives that waited", NANOSECONDS
+        )
+    val eventWaits: LongAdder = counter("event_waits", "Waits on the read event")
+    val eventWaitNanos: Log2Histogram = histogram("event_wait_seconds", "Time blocked on the read event", NANOSECONDS)
+    val sendOverflows: LongAdder = counter("send_overflows", "Send allocations refused because the ring was full")
+    val invalidData: LongAdder = counter("invalid_data", "Receives that failed because wintun found invalid data")
+
+    init {
+        counter("packets_in", "Packets taken from the receive ring") { packetSizeIn.count }
+        counter("bytes_in", "Bytes taken from the receive ring") { packetSizeIn.sumOfValues }
+        counter("packets_out", "Packets put in the send ring") { packetSizeOut.count }
+        counter("bytes_out", "Bytes put in the send ring") { packetSizeOut.sumOfValues }
+    }
+
+    val packetsIn: Long get() = packetSizeIn.count
+    val bytesIn: Long get() = packetSizeIn.sumOfValues
+    val packetsOut: Long get() = packetSizeOut.count
+    val bytesOut: Long get() = packetSizeOut.sumOfValues
+
+    internal fun recordIn(size: Int) = packetSizeIn.record(size.toLong())
+
+    internal fun recordOut(size: Int) = packetSizeOut.record(size.toLong())
+}
@@ -0,0 +1,251 @@
+package info.skyblond.jna.wintun
+
+import com.sun.jna.Native
+import com.sun.jna.platform.win32.Kernel32
+import com.sun.jna.platform.win32.WinBase
+import com.sun.jna.platform.win32.WinNT.HANDLE
+
+/**
+ * Waits on the read events of many sessions at once, like a [java.nio.channels.Selector]
+ * for wintun.
+ *
+ * Instead of parking one thread per session in [WintunSession.awaitReadEvent],
+ * sessions are registered here and a single thread waits on all of them with
+ * [Kernel32.WaitForMultipleObjects]. That call takes at most 64 handles, so
+ * sessions are sharded in groups of 63, plus one event used to wake the shard up,
+ * and each group gets its own thread. Sessions whose read events come from
+ * different [WintunEvents], like a [WintunSimulator], get separate shards.
+ *
+ * A key is armed when registered. Once its session becomes readable, the key is
+ * disarmed and [ReadyListener.onReadable] is called on the poller thread. Wintun
+ * only signals the read event when packets arrive in an empty ring, so drain the
+ * session until it reports no data, then call [PollKey.arm] to be notified again.
+ * Listeners run on the poller thread and hold up the other sessions of their shard,
+ * keep them short or hand the work over.
+ *
+ * A session whose read event can't be waited on any more, like one closed while
+ * registered, is cancelled and reported to [failureListener], the rest of its shard
+ * keeps going.
+ * */
+class SessionPoller @JvmOverloads constructor(
+    private val failureListener: FailureListener = FailureListener { _, cause -> cause.printStackTrace(System.err) }
+) : AutoCloseable {
+
+    /**
+     * Called on the poller thread when a registered session becomes readable.
+     * */
+    fun interface ReadyListener {
+        fun onReadable(key: PollKey)
+    }
+
+    /**
+     * Called on the poller thread when a registered session is cancelled because
+     * its read event failed.
+     * */
+    fun interface FailureListener {
+        fun onFailed(key: PollKey, cause: NativeException)
+    }
+
+    /**
+     * The registration of a session in a [SessionPoller].
+     * */
+    class PollKey internal constructor(
+        val session: WintunSession,
+        internal val listener: ReadyListener,
+        private val shard: Shard
+    ) {
+        @Volatile
+        internal var armed = true
+
+        @Volatile
+        internal var cancelled = false
+
+        /**
+         * True once [cancel] was called, or the poller gave up on the session.
+         * */
+        val isCancelled: Boolean get() = cancelled
+
+        /**
+         * Ask to be notified the next time the session becomes readable.
+         * Call it once the session has been drained.
+         * */
+        fun arm() {
+            if (cancelled || armed) return
+            armed = true
+            shard.wakeup()
+        }
+
+        /**
+         * Stop watching the session. The session itself is not closed.
+         * */
+        fun cancel() {
+            if (cancelled) return
+            cancelled = true
+            shard.remove(this)
+        }
+    }
+
+    companion object {
+        /**
+         * MAXIMUM_WAIT_OBJECTS, the [Kernel32.WaitForMultipleObjects] limit.
+         * */
+        private const val MAXIMUM_WAIT_OBJECTS = 64
+
+        /**
+         * Sessions per shard, one handle is taken by the wakeup event.
+         * */
+        private const val SHARD_SIZE = MAXIMUM_WAIT_OBJECTS - 1
+    }
+
+    private val shards = mutableListOf<Shard>()
+    private var closed = false
+
+    /**
+     * Watch [session] and call [listener] when it becomes readable. The key starts armed.
+     * */
+    @Synchronized
+    fun register(session: WintunSession, listener: ReadyListener): PollKey {
+        check(!closed) { "Poller closed" }
+        val shard = shards.firstOrNull { it.events === session.events && it.size < SHARD_SIZE }
+            ?: Shard("wintun-poller-${shards.size}", session.events, failureListener).also {
+                shards.add(it)
+                it.start()
+            }
+        return shard.add(session, listener)
+    }
+
+    /**
+     * Stop all poller threads. Registered sessions are not closed.
+     * */
+    override fun close() {
+        val toStop = synchronized(this) {
+            closed = true
+            shards.toList()
+        }
+        toStop.forEach { it.stop() }
+    }
+
+    internal class Shard(
+        name: String,
+        val events: WintunEvents,
+        private val failureListener: FailureListener
+    ) : Runnable {
+        private val wakeupEvent: HANDLE = events.createEvent()
+        private val keys = mutableListOf<PollKey>()
+        private val thread = Thread(this, name).apply { isDaemon = true }
+
+        @Volatile
+        private var running = true
+
+        /**
+         * Where the next round starts looking, so the first sessions can't starve the rest.
+         * */
+        private var rotation = 0
+
+        val size: Int
+            @Synchronized get() = keys.size
+
+        fun start() = thread.start()
+
+        @Synchronized
+        fun add(session: WintunSession, listener: ReadyListener): PollKey {
+            val key = PollKey(session, listener, this)
+            keys.add(key)
+            wakeup()
+            return key
+        }
+
+        @Synchronized
+        fun remove(key: PollKey) {
+            keys.remove(key)
+            wakeup()
+        }
+
+        fun wakeup() {
+            events.setEvent(wakeupEvent)
+        }
+
+        fun stop() {
+            running = false
+            wakeup()
+            thread.join()
+            events.closeEvent(wakeupEvent)
+        }
+
+        override fun run() {
+            val handles = arrayOfNulls<HANDLE>(MAXIMUM_WAIT_OBJECTS)
+            val waiting = arrayOfNulls<PollKey>(MAXIMUM_WAIT_OBJECTS)
+            handles[0] = wakeupEvent
+            while (running) {
+                var count = 1
+                synchronized(this) {
+                    val n = keys.size
+                    for (i in 0 until n) {
+                        val key = keys[(i + rotation) % n]
+                        if (key.armed) {
+                            handles[count] = key.session.readEvent
+                            waiting[count] = key
+                            count++
+                        }
+                    }
+                    rotation = if (n == 0) 0 else (rotation + 1) % n
+                }
+                val result = events.waitForAny(count, handles, WinBase.INFINITE)
+                val index = result - WinBase.WAIT_OBJECT_0
+                if (index in 1 until count) {
+                    fire(waiting[index]!!)
+                } else if (result == WinBase.WAIT_FAILED) {
+                    val error = Native.getLastError()
+                    if (evictFailed(handles, waiting, count) == 0) {
+                        // it's the wakeup event, nothing left to wait with
+                        throw NativeException("Failed to wait for sessions", error)
+                    }
+                }
+                waiting.fill(null)
+            }
+        }
+
+        private fun fire(key: PollKey) {
+            key.armed = false
+            if (!key.cancelled) {
+                try {
+                    key.listener.onReadable(key)
+                } catch (e: Exception) {
+                    e.printStackTrace(System.err)
+                }
+            }
+        }
+
+        /**
+         * Wait on each handle alone to find the ones that fail, and cancel their keys.
+         * A session found readable meanwhile is handled as usual.
+         *
+         * @return the number of keys cancelled
+         * */
+        private fun evictFailed(handles: Array<HANDLE?>, waiting: Array<PollKey?>, count: Int): Int {
+            val probe = arrayOfNulls<HANDLE>(1)
+            var evicted = 0
+            for (i in 1 until count) {
+                val key = waiting[i]!!
+                probe[0] = handles[i]
+                when (events.waitForAny(1, probe, 0)) {
+                    WinBase.WAIT_FAILED -> {
+                        val cause = NativeException("Failed to wait for session", Native.getLastError())
+                        evicted++
+                        // no need to tell about sessions already let go
+                        if (key.cancelled) continue
+                        key.cancel()
+                        try {
+                            failureListener.onFailed(key, cause)
+                        } catch (e: Exception) {
+                            e.printStackTrace(System.err)
+                        }
+                    }
+
+                    WinBase.WAIT_OBJECT_0 -> fire(key)
+                }
+            }
+            return evicted
+        }
+    }
+}
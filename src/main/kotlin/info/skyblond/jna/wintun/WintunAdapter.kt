@@ -1,9 +1,10 @@
 package info.skyblond.jna.wintun
 
+import com.sun.jna.Native
+import com.sun.jna.Pointer
 import com.sun.jna.WString
 import com.sun.jna.platform.win32.Guid
 import com.sun.jna.platform.win32.IPHlpAPI
-import com.sun.jna.platform.win32.Kernel32
 import com.sun.jna.platform.win32.WinError
 import com.sun.jna.ptr.LongByReference
 import com.sun.jna.ptr.PointerByReference
@@ -11,6 +12,7 @@ import info.skyblond.jna.iphlp.*
 import java.net.Inet4Address
 import java.net.Inet6Address
 import java.net.InetAddress
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * Represent a Wintun adapter.
@@ -20,7 +22,7 @@ import java.net.InetAddress
  *
  * NOT thread-safe.
  * */
-open class WintunAdapter(
+open class WintunAdapter @JvmOverloads constructor(
     /**
      * The name of the tun adapter
      * */
@@ -37,11 +39,18 @@ open class WintunAdapter(
      * Null for system decide, aka the GUID is chosen by the system at random,
      * and hence a new NLA entry is created for each new adapter.
      * */
-    guid: String? = null
+    guid: String? = null,
+    /**
+     * Where the adapter and its sessions live.
+     * A [WintunSimulator] to run without the driver.
+     * */
+    private val wintunLib: WintunLib = WintunLib.INSTANCE
 ) : AutoCloseable {
 
-    private val wintunLib: WintunLib = WintunLib.INSTANCE
-    private val ipHelperLib: ExtendedIPHlpAPI = ExtendedIPHlpAPI.INSTANCE
+    /**
+     * Loaded on first use, the simulator has no IP helper to offer.
+     * */
+    private val ipHelperLib: ExtendedIPHlpAPI by lazy { ExtendedIPHlpAPI.INSTANCE }
 
     companion object {
 
@@ -53,11 +62,24 @@ open class WintunAdapter(
                 throw NativeException("Failed to list ip forward table", err)
             // no ip, return empty list
             if (err != WinError.NO_ERROR) return emptyList()
-            val table = MIB_IPFORWARD_TABLE2(pointerByReference.value)
+            try {
+                return parseForwardTable(pointerByReference.value)
+            } finally {
+                ExtendedIPHlpAPI.INSTANCE.FreeMibTable(pointerByReference.value)
+            }
+        }
+
+        /**
+         * Parse a MIB_IPFORWARD_TABLE2 returned by GetIpForwardTable2.
+         * The table is not freed.
+         * */
+        @JvmStatic
+        fun parseForwardTable(pointer: Pointer): List<ForwardTable> {
+            val table = MIB_IPFORWARD_TABLE2(pointer)
             check(table.numEntries == table.table.size) {
                 "MIB_IPFORWARD_TABLE2 size not match. Expect ${table.numEntries}, actual: ${table.table.size}"
             }
-            val result = table.table.map {
+            return table.table.map {
                 it.DestinationPrefix.Prefix.setType(Short::class.java)
                 val destination = when (it.DestinationPrefix.Prefix.si_family.toInt()) {
                     IPHlpAPI.AF_INET -> {
@@ -95,8 +117,43 @@ open class WintunAdapter(
                     metric = it.Metric
                 )
             }
-            ExtendedIPHlpAPI.INSTANCE.FreeMibTable(table.pointer)
-            return result
+        }
+
+        /**
+         * Parse a MIB_UNICASTIPADDRESS_TABLE returned by GetUnicastIpAddressTable,
+         * keeping the addresses of the interface [luid]. The table is not freed.
+         * */
+        @JvmStatic
+        fun parseUnicastAddressTable(pointer: Pointer, luid: Long): List<AdapterIPAddress> {
+            val table = MibUnicastIPAddressTable(pointer)
+            check(table.NumEntries == table.Table.size) {
+                "MIB_UNICASTIPADDRESS_TABLE size not match. Expect ${table.NumEntries}, actual: ${table.Table.size}"
+            }
+            return table.Table
+                .filter { it.InterfaceLuid == luid }
+                .map {
+                    it.Address.setType(Short::class.java)
+                    val ip = when (it.Address.si_family.toInt()) {
+                        IPHlpAPI.AF_INET -> {
+                            val v4 = it.Address.getTypedValue(SocketAddrIn::class.java) as SocketAddrIn
+                            Inet4Address.getByAddress(v4.sin_addr.copyOf())
+                        }
+
+                        IPHlpAPI.AF_INET6 -> {
+                            val v6 = it.Address.getTypedValue(SocketAddrIn6::class.java) as SocketAddrIn6
+                            Inet6Address.getByAddress(v6.sin6_addr.copyOf())
+                        }
+
+                        else -> error("Unknown si family: ${it.Address.si_family}")
+                    }
+                    AdapterIPAddress(
+                        ip = ip,
+                        prefixLength = it.OnLinkPrefixLength.toUByte(),
+                        validLifeTime = it.ValidLifetime.toUInt(),
+                        preferredLifeTime = it.PreferredLifetime.toUInt(),
+                        creationTimeStamp = it.CreationTimeStamp
+                    )
+                }
         }
     }
 
@@ -110,12 +167,12 @@ open class WintunAdapter(
     init {
         adapter = if (type == null) { // open
             wintunLib.WintunOpenAdapter(WString(name))
-                ?: throw NativeException("Failed to open tun device `$name`", Kernel32.INSTANCE.GetLastError())
+                ?: throw NativeException("Failed to open tun device `$name`", Native.getLastError())
         } else { // create
             wintunLib.WintunCreateAdapter(WString(name), WString(type), guid?.let { Guid.GUID.fromString(it) })
                 ?: throw NativeException(
                     "Failed to create tun device `$name` (type: $type)",
-                    Kernel32.INSTANCE.GetLastError()
+                    Native.getLastError()
                 )
         }
     }
@@ -143,39 +200,11 @@ open class WintunAdapter(
             throw NativeException("Failed to list unicast ip addresses", err)
         // no ip, return empty list
         if (err != WinError.NO_ERROR) return emptyList()
-        // parsing pointer
-        val table = MibUnicastIPAddressTable(pointerByReference.value)
-        check(table.NumEntries == table.Table.size) {
-            "MIB_UNICASTIPADDRESS_TABLE size not match. Expect ${table.NumEntries}, actual: ${table.Table.size}"
+        try {
+            return parseUnicastAddressTable(pointerByReference.value, getLuid())
+        } finally {
+            ipHelperLib.FreeMibTable(pointerByReference.value)
         }
-        val luid = getLuid()
-        val result = table.Table
-            .filter { it.InterfaceLuid == luid }
-            .map {
-                it.Address.setType(Short::class.java)
-                val ip = when (it.Address.si_family.toInt()) {
-                    IPHlpAPI.AF_INET -> {
-                        val v4 = it.Address.getTypedValue(SocketAddrIn::class.java) as SocketAddrIn
-                        Inet4Address.getByAddress(v4.sin_addr.copyOf())
-                    }
-
-                    IPHlpAPI.AF_INET6 -> {
-                        val v6 = it.Address.getTypedValue(SocketAddrIn6::class.java) as SocketAddrIn6
-                        Inet6Address.getByAddress(v6.sin6_addr.copyOf())
-                    }
-
-                    else -> error("Unknown si family: ${it.Address.si_family}")
-                }
-                AdapterIPAddress(
-                    ip = ip,
-                    prefixLength = it.OnLinkPrefixLength.toUByte(),
-                    validLifeTime = it.ValidLifetime.toUInt(),
-                    preferredLifeTime = it.PreferredLifetime.toUInt(),
-                    creationTimeStamp = it.CreationTimeStamp
-                )
-            }
-        ipHelperLib.FreeMibTable(table.pointer)
-        return result
     }
 
     /**
@@ -307,20 +336,35 @@ open class WintunAdapter(
 
     /**
      * Create a new session associated with this adapter, so you can read/write
-     * ip packets.
+     * ip packets. Its [WintunSession.metrics] are registered in
+     * [MetricsRegistry.default] until it's closed.
      *
      * @param capacity Ring capacity of the adapter, must in range of [WintunLib.WINTUN_MIN_RING_CAPACITY]
-     * and [WintunLib.WINTUN_MAX_RING_CAPACITY]
+     * and [WintunLib.WINTUN_MAX_RING_CAPACITY], and must be a power of two
+     *
+     * @see AdaptiveSession
      * */
+    @Throws(NativeException::class)
     fun newSession(capacity: Int): WintunSession {
         require(capacity in WintunLib.WINTUN_MIN_RING_CAPACITY..WintunLib.WINTUN_MAX_RING_CAPACITY) {
             "The ring capacity must not smaller than ${WintunLib.WINTUN_MIN_RING_CAPACITY}, and must not bigger than ${WintunLib.WINTUN_MAX_RING_CAPACITY}"
         }
+        require(capacity and (capacity - 1) == 0) { "The ring capacity must be a power of two, got $capacity" }
         val handler = wintunLib.WintunStartSession(adapter, capacity)
-            ?: throw NativeException("Failed to create session (size: $capacity)", Kernel32.INSTANCE.GetLastError())
-        return WintunSession(wintunLib, handler, capacity)
+            ?: throw NativeException("Failed to create session (size: $capacity)", Native.getLastError())
+        return WintunSession(wintunLib, handler, capacity).also {
+            it.metricsRegistration = MetricsRegistry.default.register(
+                "Session", it.metrics,
+                mapOf("adapter" to name, "session" to sessionCount.incrementAndGet().toString())
+            )
+        }
     }
 
+    /**
+     * Tells apart the sessions of this adapter in [MetricsRegistry].
+     * */
+    private val sessionCount = AtomicInteger()
+
     override fun close() {
         wintunLib.WintunCloseAdapter(adapter)
     }
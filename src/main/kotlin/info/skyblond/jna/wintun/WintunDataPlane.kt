@@ -0,0 +1,83 @@
+package info.skyblond.jna.wintun
+
+import com.sun.jna.Library
+import com.sun.jna.Pointer
+import com.sun.jna.ptr.IntByReference
+import java.lang.reflect.Proxy
+
+/**
+ * The per-packet functions of [WintunLib], with sessions and packets passed as
+ * raw addresses instead of [Pointer] objects.
+ *
+ * [WintunLib] goes through a JNA proxy, which means reflection and argument
+ * marshalling on every call. This is fine for adapters and sessions, but not
+ * for something called several times per packet. [WintunSession] picks an
+ * implementation with [of].
+ *
+ * All functions are thread-safe. See [WintunLib] for the meaning of each.
+ * */
+interface WintunDataPlane {
+
+    companion object {
+        /**
+         * Select the fastest binding for [lib]:
+         * + [lib] itself, if it already implements [WintunDataPlane];
+         * + direct-mapped functions, if [lib] is a JNA proxy and the library can be registered;
+         * + otherwise [proxy] over [lib].
+         * */
+        @JvmStatic
+        fun of(lib: WintunLib): WintunDataPlane {
+            if (lib is WintunDataPlane) return lib
+            if (Proxy.isProxyClass(lib.javaClass)) {
+                val handler = Proxy.getInvocationHandler(lib)
+                if (handler is Library.Handler) {
+                    DirectWintunDataPlane.bind(handler.nativeLibrary)?.let { return it }
+                }
+            }
+            return proxy(lib)
+        }
+
+        /**
+         * Route every call through [lib]. Slower, but works with any [WintunLib].
+         * */
+        @JvmStatic
+        fun proxy(lib: WintunLib): WintunDataPlane = ProxyDataPlane(lib)
+    }
+
+    /**
+     * @param packetSize receives the packet size
+     * @return the packet address, 0 on failure with the error in [com.sun.jna.Native.getLastError]
+     * @see WintunLib.WintunReceivePacket
+     * */
+    fun receivePacket(session: Long, packetSize: IntByReference): Long
+
+    /**
+     * @see WintunLib.WintunReleaseReceivePacket
+     * */
+    fun releaseReceivePacket(session: Long, packet: Long)
+
+    /**
+     * @return the slot address, 0 on failure with the error in [com.sun.jna.Native.getLastError]
+     * @see WintunLib.WintunAllocateSendPacket
+     * */
+    fun allocateSendPacket(session: Long, packetSize: Int): Long
+
+    /**
+     * @see WintunLib.WintunSendPacket
+     * */
+    fun sendPacket(session: Long, packet: Long)
+}
+
+private class ProxyDataPlane(private val lib: WintunLib) : WintunDataPlane {
+    override fun receivePacket(session: Long, packetSize: IntByReference): Long =
+        Pointer.nativeValue(lib.WintunReceivePacket(Pointer(session), packetSize))
+
+    override fun releaseReceivePacket(session: Long, packet: Long) =
+        lib.WintunReleaseReceivePacket(Pointer(session), Pointer(packet))
+
+    override fun allocateSendPacket(session: Long, packetSize: Int): Long =
+        Pointer.nativeValue(lib.WintunAllocateSendPacket(Pointer(session), packetSize))
+
+    override fun sendPacket(session: Long, packet: Long) =
+        lib.WintunSendPacket(Pointer(session), Pointer(packet))
+}
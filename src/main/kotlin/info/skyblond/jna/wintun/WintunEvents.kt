@@ -0,0 +1,69 @@
+package info.skyblond.jna.wintun
+
+import com.sun.jna.Native
+import com.sun.jna.platform.win32.Kernel32
+import com.sun.jna.platform.win32.WinBase
+import com.sun.jna.platform.win32.WinNT.HANDLE
+
+/**
+ * The event calls used to wait for packets, normally served by [Kernel32].
+ *
+ * The read event of a session comes from its [WintunLib], so waiting on it must
+ * go through whatever created it. A [WintunLib] that isn't backed by Windows,
+ * like [WintunSimulator], implements this interface too, see [of].
+ * */
+interface WintunEvents {
+
+    companion object {
+        /**
+         * The Windows events.
+         * */
+        @JvmField
+        val KERNEL32: WintunEvents = Kernel32Events
+
+        /**
+         * The events of [lib]: itself if it implements [WintunEvents], [KERNEL32] otherwise.
+         * */
+        @JvmStatic
+        fun of(lib: WintunLib): WintunEvents = lib as? WintunEvents ?: KERNEL32
+    }
+
+    /**
+     * Create an auto-reset event, not signaled.
+     *
+     * @throws NativeException if it failed
+     * */
+    @Throws(NativeException::class)
+    fun createEvent(): HANDLE
+
+    fun setEvent(event: HANDLE)
+
+    fun closeEvent(event: HANDLE)
+
+    /**
+     * Wait until one of the first [count] [events] is signaled, or [timeoutMs] elapsed.
+     * Same contract as [Kernel32.WaitForMultipleObjects] without waiting for all.
+     *
+     * @return [WinBase.WAIT_OBJECT_0] plus the index of the signaled event,
+     * [WinBase.WAIT_TIMEOUT], or [WinBase.WAIT_FAILED] with the reason in [Native.getLastError]
+     * */
+    fun waitForAny(count: Int, events: Array<HANDLE?>, timeoutMs: Int): Int
+}
+
+private object Kernel32Events : WintunEvents {
+    override fun createEvent(): HANDLE = Kernel32.INSTANCE.CreateEvent(null, false, false, null)
+        ?: throw NativeException("Failed to create event", Native.getLastError())
+
+    override fun setEvent(event: HANDLE) {
+        Kernel32.INSTANCE.SetEvent(event)
+    }
+
+    override fun closeEvent(event: HANDLE) {
+        Kernel32.INSTANCE.CloseHandle(event)
+    }
+
+    override fun waitForAny(count: Int, events: Array<HANDLE?>, timeoutMs: Int): Int =
+        Kernel32.INSTANCE.WaitForMultipleObjects(
+            count, if (count == events.size) events else events.copyOf(count), false, timeoutMs
+        )
+}
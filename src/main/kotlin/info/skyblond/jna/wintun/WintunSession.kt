@@ -1,11 +1,16 @@
 package info.skyblond.jna.wintun
 
-import com.sun.jna.platform.win32.Kernel32
+import com.sun.jna.Native
+import com.sun.jna.Pointer
 import com.sun.jna.platform.win32.WinBase
 import com.sun.jna.platform.win32.WinError
 import com.sun.jna.platform.win32.WinNT.HANDLE
 import com.sun.jna.ptr.IntByReference
 import java.io.EOFException
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * Represent a wintun session.
@@ -17,7 +22,68 @@ class WintunSession(
     private val session: WintunSessionHandler,
     val capacity: Int
 ) : AutoCloseable {
-    private val readEvent: HANDLE = lib.WintunGetReadWaitEvent(session)
+    /**
+     * Signaled by wintun when packets arrive in an empty receive ring. Managed by the session.
+     * */
+    internal val readEvent: HANDLE = lib.WintunGetReadWaitEvent(session)
+
+    /**
+     * What [readEvent] is waited on with, see [WintunEvents.of].
+     * */
+    internal val events = WintunEvents.of(lib)
+
+    /**
+     * The packet functions, direct-mapped when possible. See [WintunDataPlane.of].
+     * */
+    private val dataPlane = WintunDataPlane.of(lib)
+    private val handle = Pointer.nativeValue(session)
+
+    /**
+     * Everything a call needs besides its arguments. Kept per thread since
+     * the native side is thread-safe, and reused so packets cost no allocation.
+     * */
+    private class Scratch(capacity: Int) {
+        /**
+         * Receives the packet size from [WintunLib.WintunReceivePacket].
+         * */
+        val packetSize = IntByReference()
+
+        /**
+         * Views over the receive and the send ring, see [RingWindow].
+         * */
+        val receiveWindow = RingWindow(capacity)
+        val sendWindow = RingWindow(capacity)
+
+        /**
+         * Why the last receive found nothing.
+         * */
+        var error = WinError.NO_ERROR
+
+        /**
+         * The slot handed out by [reserveSend], 0 if none.
+         * */
+        var reserved = 0L
+        var reservedSize = 0
+    }
+
+    private val scratch = ThreadLocal.withInitial { Scratch(capacity) }
+
+    /**
+     * What to do while the receive ring is empty, see [ReceiveWaitStrategy].
+     * Defaults to [ReceiveWaitStrategy.eventWait].
+     * */
+    @Volatile
+    var waitStrategy: ReceiveWaitStrategy = ReceiveWaitStrategy.eventWait()
+
+    /**
+     * Counters of this session, see [MetricsRegistry].
+     * */
+    val metrics = SessionMetrics()
+
+    /**
+     * Set when the session is registered in a [MetricsRegistry], removed on [close].
+     * */
+    internal var metricsRegistration: AutoCloseable? = null
 
     @Throws(NativeException::class, EOFException::class)
     fun readPacket(): ByteArray? {
@@ -28,60 +94,506 @@ class WintunSession(
      * Read an IP packet from session.
      *
      * If the packet is available, return immediately.
-     * If not, wait [awaitTimeMs] ms and try again.
+     * If not, keep trying for up to [awaitTimeMs] ms, idling as told by [waitStrategy].
      *
      * @throws EOFException if the session or adapter is closed
      * @throws NativeException with err code 13 if there is invalid data
      * @return the IP packet in [ByteArray], or null if no data available
-     * @see [Kernel32.WaitForSingleObject]
+     * @see [ReceiveWaitStrategy]
      * */
     @Throws(NativeException::class, EOFException::class)
     fun readPacket(awaitTimeMs: Int = WinBase.INFINITE): ByteArray? {
-        val packetSizePointer = IntByReference()
-        // read once
-        val pointer = lib.WintunReceivePacket(session, packetSizePointer)
-        val kernel32 = Kernel32.INSTANCE
+        val scratch = scratch.get()
+        val address = receiveAddress(scratch, awaitTimeMs)
+        if (address == 0L) return throwReceiveError(scratch.error)
+        val packet = ByteArray(scratch.packetSize.value)
+        scratch.receiveWindow.at(address, packet.size).get(packet)
+        dataPlane.releaseReceivePacket(handle, address)
+        return packet
+    }
+
+    /**
+     * Read an IP packet into [dst], without throwing or allocating.
+     *
+     * Same waiting rule as [readPacket]. On [IoStatus.OK] the packet is
+     * put at the position of [dst], which is moved past it.
+     *
+     * @throws NativeException on errors not covered by [IoStatus]
+     * @return [IoStatus.OK], [IoStatus.EMPTY] if no data available, [IoStatus.EOF]
+     * if the session or adapter is closed, [IoStatus.INVALID_DATA] if wintun found
+     * invalid data, or [IoStatus.OVERFLOW] if [dst] is too small, in which case the
+     * packet is dropped, so size [dst] for the adapter MTU.
+     * */
+    @Throws(NativeException::class)
+    fun readPacket(dst: ByteBuffer, awaitTimeMs: Int): IoStatus {
+        val scratch = scratch.get()
+        val address = receiveAddress(scratch, awaitTimeMs)
+        if (address == 0L) {
+            return when (val err = scratch.error) {
+                WinError.ERROR_NO_MORE_ITEMS -> IoStatus.EMPTY
+                WinError.ERROR_HANDLE_EOF -> IoStatus.EOF
+                WinError.ERROR_INVALID_DATA -> IoStatus.INVALID_DATA
+                else -> throw NativeException("Error when reading session", err)
+            }
+        }
+        val size = scratch.packetSize.value
+        try {
+            if (dst.remaining() < size) return IoStatus.OVERFLOW
+            dst.put(scratch.receiveWindow.at(address, size))
+        } finally {
+            dataPlane.releaseReceivePacket(handle, address)
+        }
+        return IoStatus.OK
+    }
+
+    /**
+     * Receive an IP packet without copying it out of the ring.
+     *
+     * Same waiting rule as [readPacket]. The returned [PacketLease] holds
+     * the ring slot until it's closed, so close it as soon as the packet
+     * is consumed, otherwise the ring will be full.
+     *
+     * @throws EOFException if the session or adapter is closed
+     * @throws NativeException with err code 13 if there is invalid data
+     * @return the leased packet, or null if no data available
+     * */
+    @Throws(NativeException::class, EOFException::class)
+    fun receive(awaitTimeMs: Int = WinBase.INFINITE): PacketLease? {
+        val scratch = scratch.get()
+        val address = receiveAddress(scratch, awaitTimeMs)
+        if (address == 0L) return throwReceiveError(scratch.error)
+        val size = scratch.packetSize.value
+        openLeases.incrementAndGet()
+        return PacketLease(this, address, size, scratch.receiveWindow.view(address, size))
+    }
 
-        if (pointer != null) {// we got data
-            val packet = pointer.getByteArray(0, packetSizePointer.value).copyOf()
-            lib.WintunReleaseReceivePacket(session, pointer)
+    /**
+     * Receive an IP packet into a buffer borrowed from [pool].
+     *
+     * Same waiting rule as [readPacket]. The ring slot is released right away,
+     * so unlike [receive], the packet can be kept as long as needed.
+     * Release the returned buffer when done.
+     *
+     * @throws EOFException if the session or adapter is closed
+     * @throws NativeException with err code 13 if there is invalid data
+     * @return the packet, or null if no data available
+     * */
+    @Throws(NativeException::class, EOFException::class)
+    fun receive(pool: PacketBufferPool, awaitTimeMs: Int = WinBase.INFINITE): PacketBuffer? {
+        val scratch = scratch.get()
+        val address = receiveAddress(scratch, awaitTimeMs)
+        if (address == 0L) return throwReceiveError(scratch.error)
+        val size = scratch.packetSize.value
+        try {
+            val packet = pool.acquire(size)
+            packet.buffer.put(scratch.receiveWindow.at(address, size))
+            (packet.buffer as Buffer).flip()
             return packet
-        } else {
-            when (val err = kernel32.GetLastError()) {
-                WinError.ERROR_HANDLE_EOF -> throw EOFException()
-                WinError.ERROR_NO_MORE_ITEMS -> {
-                    // nop, handle it later
-                }
+        } finally {
+            dataPlane.releaseReceivePacket(handle, address)
+        }
+    }
 
-                WinError.ERROR_INVALID_DATA -> throw NativeException("Invalid data when reading session", err)
-                else -> throw NativeException("Error when reading session", err)
+    private val openLeases = AtomicInteger()
+
+    /**
+     * Leases returned by [receive] and not closed yet.
+     * */
+    val openLeaseCount: Int get() = openLeases.get()
+
+    /**
+     * Give a leased packet back to wintun.
+     * */
+    internal fun release(packet: Long) {
+        dataPlane.releaseReceivePacket(handle, packet)
+        openLeases.decrementAndGet()
+    }
+
+    /**
+     * Drain up to [maxPackets] packets from the ring in one call.
+     *
+     * Only the first packet follows the waiting rule of [readPacket], the rest
+     * are taken as long as they are ready. Each packet is passed to [sink] and
+     * released right after, so slots go back to wintun in ring order. Error
+     * checking is done once per batch rather than once per packet.
+     *
+     * @throws EOFException if the session or adapter is closed and nothing was drained
+     * @throws NativeException with err code 13 if there is invalid data and nothing was drained
+     * @return the number of packets passed to [sink], 0 if no data available
+     * */
+    @Throws(NativeException::class, EOFException::class)
+    fun receiveBatch(maxPackets: Int, sink: PacketSink, awaitTimeMs: Int = WinBase.INFINITE): Int {
+        require(maxPackets > 0) { "maxPackets must be positive" }
+        val scratch = scratch.get()
+        var address = receiveAddress(scratch, awaitTimeMs)
+        if (address == 0L) return throwReceiveError(scratch.error) ?: 0
+        val sizeRef = scratch.packetSize
+        val window = scratch.receiveWindow
+        var count = 0
+        while (true) {
+            try {
+                sink.accept(window.view(address, sizeRef.value))
+            } finally {
+                dataPlane.releaseReceivePacket(handle, address)
+            }
+            if (++count == maxPackets) return count
+            // anything else will show up again in the next call
+            address = dataPlane.receivePacket(handle, sizeRef)
+            if (address == 0L) {
+                metrics.emptyPolls.increment()
+                return count
             }
-            // now it's waiting time
-            return if (awaitTimeMs > 0 || awaitTimeMs == WinBase.INFINITE) {
-                kernel32.WaitForSingleObject(readEvent, awaitTimeMs)
-                // do it again
-                readPacket(0)
-            } else {// no wait
-                null
+            metrics.recordIn(sizeRef.value)
+        }
+    }
+
+    /**
+     * Receive a packet, waiting as told by [waitStrategy].
+     *
+     * @return the packet address, with its size in [Scratch.packetSize],
+     * or 0 with the reason in [Scratch.error]
+     * */
+    private fun receiveAddress(scratch: Scratch, awaitTimeMs: Int): Long {
+        val sizeRef = scratch.packetSize
+        // read once
+        var address = dataPlane.receivePacket(handle, sizeRef)
+        if (address != 0L) {// we got data
+            waitStrategy.recordHit(0, false)
+            metrics.recordIn(sizeRef.value)
+            return address
+        }
+        scratch.error = Native.getLastError()
+        if (!recordEmpty(scratch.error) || awaitTimeMs == 0) return 0
+        // now it's waiting time
+        val strategy = waitStrategy
+        val infinite = awaitTimeMs == WinBase.INFINITE
+        val start = System.nanoTime()
+        val deadline = if (infinite) 0L else start + TimeUnit.MILLISECONDS.toNanos(awaitTimeMs.toLong())
+        var attempt = 0
+        var woken = false
+        while (true) {
+            if (consumeWakeup()) return 0
+            val remainingMs = if (infinite) WinBase.INFINITE else remainingMs(deadline)
+            val waited = strategy.idle(this, attempt++, remainingMs)
+            if (waited) woken = true
+            address = dataPlane.receivePacket(handle, sizeRef)
+            if (address != 0L) {
+                strategy.recordHit(attempt, woken)
+                metrics.recordIn(sizeRef.value)
+                (if (woken) metrics.wakeHits else metrics.spinHits).increment()
+                metrics.receiveWaitNanos.record(System.nanoTime() - start)
+                return address
             }
+            scratch.error = Native.getLastError()
+            if (!recordEmpty(scratch.error)) return 0
+            if (waited && !wakeupRequested) strategy.recordEmptyWake()
+            if (!infinite && System.nanoTime() - deadline >= 0) return 0
         }
     }
 
+    /**
+     * Count a failed poll.
+     *
+     * @return true if the ring was just empty
+     * */
+    private fun recordEmpty(err: Int): Boolean {
+        when (err) {
+            WinError.ERROR_NO_MORE_ITEMS -> {
+                metrics.emptyPolls.increment()
+                return true
+            }
+
+            WinError.ERROR_INVALID_DATA -> metrics.invalidData.increment()
+        }
+        return false
+    }
+
+    /**
+     * Throw for any receive error other than an empty ring.
+     *
+     * @return null if the ring was just empty
+     * */
+    @Throws(NativeException::class, EOFException::class)
+    private fun <T> throwReceiveError(err: Int): T? {
+        when (err) {
+            WinError.ERROR_NO_MORE_ITEMS -> return null
+            WinError.ERROR_HANDLE_EOF -> throw EOFException()
+            WinError.ERROR_INVALID_DATA -> throw NativeException("Invalid data when reading session", err)
+            else -> throw NativeException("Error when reading session", err)
+        }
+    }
+
+    /**
+     * Milliseconds until [deadline], rounded up so a short wait is not turned into a spin.
+     * */
+    private fun remainingMs(deadline: Long): Int {
+        val nanos = deadline - System.nanoTime()
+        if (nanos <= 0) return 0
+        return ((nanos + 999_999) / 1_000_000).toInt()
+    }
+
+    /**
+     * Block until the read event is signaled, [wakeup] is called, or [timeoutMs] elapsed.
+     * Only meaningful after a receive found the ring empty.
+     *
+     * @return true if the read event was signaled
+     * @see [WintunEvents.waitForAny]
+     * */
+    fun awaitReadEvent(timeoutMs: Int): Boolean {
+        val handles = arrayOf<HANDLE?>(readEvent, cancelEvent())
+        // checked after the event exists, see wakeup
+        if (wakeupRequested) return false
+        metrics.eventWaits.increment()
+        val start = System.nanoTime()
+        val result = events.waitForAny(2, handles, timeoutMs)
+        metrics.eventWaitNanos.record(System.nanoTime() - start)
+        return result == WinBase.WAIT_OBJECT_0
+    }
+
+    /**
+     * Make a receive blocked in this session return right away with no data,
+     * or the next one if none is blocked. Meant for shutdown: wait with
+     * [WinBase.INFINITE], and call this from the thread that stops the loop.
+     *
+     * A receive may occasionally return empty once more after it's been woken up.
+     * */
+    fun wakeup() {
+        wakeupRequested = true
+        // the waiter creates the event before checking the flag,
+        // so either it sees the flag or we see the event
+        cancelEvent?.let { events.setEvent(it) }
+    }
+
+    /**
+     * Set by [wakeup], cleared by the receive it wakes up.
+     * */
+    @Volatile
+    private var wakeupRequested = false
+
+    /**
+     * Signaled by [wakeup], created on the first event wait, so sessions
+     * that never block don't need one.
+     * */
+    @Volatile
+    private var cancelEvent: HANDLE? = null
+
+    private fun cancelEvent(): HANDLE = cancelEvent ?: synchronized(this) {
+        cancelEvent ?: events.createEvent().also { cancelEvent = it }
+    }
+
+    private fun consumeWakeup(): Boolean {
+        if (!wakeupRequested) return false
+        wakeupRequested = false
+        return true
+    }
+
     /**
      * Send an IP packet.
      * */
     @Throws(NativeException::class)
-    fun writePacket(packet: ByteArray, offset: Int = 0, len: Int = packet.size) {
-        require(len <= WintunLib.WINTUN_MAX_IP_PACKET_SIZE) {
+    fun writePacket(packet: ByteArray, offset: Int = 0, len: Int = packet.size - offset) {
+        require(offset >= 0 && len >= 0 && offset + len <= packet.size) {
+            "Range [$offset, ${offset + len}) out of bounds for length ${packet.size}"
+        }
+        requirePacketSize(len)
+        val address = allocateAddress(len)
+        scratch.get().sendWindow.at(address, len).put(packet, offset, len)
+        dataPlane.sendPacket(handle, address)
+        metrics.recordOut(len)
+    }
+
+    /**
+     * Send the remaining bytes of [src] as one IP packet, without throwing or allocating.
+     *
+     * On [IoStatus.OK] the position of [src] is moved to its limit.
+     *
+     * @throws NativeException on errors not covered by [IoStatus]
+     * @return [IoStatus.OK], [IoStatus.OVERFLOW] if the ring is full,
+     * or [IoStatus.EOF] if the adapter is terminating
+     * */
+    @Throws(NativeException::class)
+    fun writePacket(src: ByteBuffer): IoStatus {
+        val size = src.remaining()
+        requirePacketSize(size)
+        val address = dataPlane.allocateSendPacket(handle, size)
+        if (address == 0L) {
+            return when (val err = Native.getLastError()) {
+                WinError.ERROR_BUFFER_OVERFLOW -> {
+                    metrics.sendOverflows.increment()
+                    IoStatus.OVERFLOW
+                }
+
+                WinError.ERROR_HANDLE_EOF -> IoStatus.EOF
+                else -> throw NativeException("Failed to allocate packet to send", err)
+            }
+        }
+        scratch.get().sendWindow.at(address, size).put(src)
+        dataPlane.sendPacket(handle, address)
+        metrics.recordOut(size)
+        return IoStatus.OK
+    }
+
+    /**
+     * Send [packet], from position 0 to its limit, without throwing or allocating.
+     *
+     * The buffer is left as it was and still needs to be released by the caller,
+     * whatever the outcome.
+     *
+     * @throws NativeException on errors not covered by [IoStatus]
+     * @return same as [writePacket] with a [ByteBuffer]
+     * */
+    @Throws(NativeException::class)
+    fun writePacket(packet: PacketBuffer): IoStatus {
+        val src = packet.buffer
+        val position = src.position()
+        (src as Buffer).position(0)
+        try {
+            return writePacket(src)
+        } finally {
+            (src as Buffer).position(position)
+        }
+    }
+
+    /**
+     * Like [allocateSend], without throwing on a full ring or allocating.
+     *
+     * The returned buffer is the send window of the calling thread, positioned
+     * on the slot and limited to it, so it's only valid until the next send on
+     * this session from this thread. Build the packet in it, then call [commitSend]
+     * before sending anything else from this thread.
+     *
+     * @throws EOFException if the adapter is terminating
+     * @throws NativeException on other errors
+     * @return the slot, or null if the ring is full
+     * */
+    @Throws(NativeException::class, EOFException::class)
+    fun reserveSend(size: Int): ByteBuffer? {
+        requirePacketSize(size)
+        val scratch = scratch.get()
+        check(scratch.reserved == 0L) { "The reserved slot is not committed yet" }
+        val address = dataPlane.allocateSendPacket(handle, size)
+        if (address == 0L) {
+            return when (val err = Native.getLastError()) {
+                WinError.ERROR_BUFFER_OVERFLOW -> {
+                    metrics.sendOverflows.increment()
+                    null
+                }
+
+                WinError.ERROR_HANDLE_EOF -> throw EOFException("Session or adapter is closed")
+                else -> throw NativeException("Failed to allocate packet to send", err)
+            }
+        }
+        scratch.reserved = address
+        scratch.reservedSize = size
+        return scratch.sendWindow.at(address, size)
+    }
+
+    /**
+     * Send the slot handed out by [reserveSend] on this thread. With [discard],
+     * its IP version nibble is cleared first, so the driver drops it, see [SendSlot].
+     * */
+    @JvmOverloads
+    fun commitSend(discard: Boolean = false) {
+        val scratch = scratch.get()
+        val address = scratch.reserved
+        check(address != 0L) { "No slot reserved" }
+        scratch.reserved = 0L
+        if (discard && scratch.reservedSize > 0) clearVersion(scratch.sendWindow.at(address, scratch.reservedSize))
+        dataPlane.sendPacket(handle, address)
+        if (!discard) metrics.recordOut(scratch.reservedSize)
+    }
+
+    /**
+     * Allocate a slot of exactly [size] bytes in the send ring, so the packet
+     * can be built or decrypted in place instead of copied in.
+     *
+     * Slots are sent in allocation order. Send or close it quickly, since
+     * an open slot holds back every slot allocated after it.
+     *
+     * @throws NativeException with [WinError.ERROR_BUFFER_OVERFLOW] if the ring is full,
+     * or [WinError.ERROR_HANDLE_EOF] if the adapter is terminating
+     * */
+    @Throws(NativeException::class)
+    fun allocateSend(size: Int): SendSlot {
+        requirePacketSize(size)
+        val address = allocateAddress(size)
+        return SendSlot(dataPlane, metrics, handle, address, size, scratch.get().sendWindow.view(address, size))
+    }
+
+    /**
+     * Send the first [count] packets of [sizes] as one batch.
+     *
+     * All slots are allocated first, in order, then each one is built in place
+     * by [filler] and committed with [WintunLib.WintunSendPacket]. If the ring
+     * fills up halfway, only the allocated slots are filled and sent, and the
+     * caller can retry the rest. If [filler] throws, the slots not yet built
+     * are discarded as described in [SendSlot].
+     *
+     * @throws NativeException if not even the first slot could be allocated
+     * @return the number of packets sent
+     * */
+    @Throws(NativeException::class)
+    fun sendBatch(sizes: IntArray, count: Int = sizes.size, filler: SendFiller): Int {
+        require(count in 0..sizes.size) { "Count $count out of bounds for length ${sizes.size}" }
+        for (i in 0 until count) requirePacketSize(sizes[i])
+        val slots = LongArray(count)
+        var allocated = 0
+        while (allocated < count) {
+            slots[allocated] = dataPlane.allocateSendPacket(handle, sizes[allocated])
+            if (slots[allocated] == 0L) break
+            allocated++
+        }
+        if (allocated < count) {
+            val err = Native.getLastError()
+            if (err == WinError.ERROR_BUFFER_OVERFLOW) metrics.sendOverflows.increment()
+            if (allocated == 0) throw NativeException("Failed to allocate packet to send", err)
+        }
+        val window = scratch.get().sendWindow
+        var sent = 0
+        try {
+            while (sent < allocated) {
+                filler.fill(sent, window.view(slots[sent], sizes[sent]))
+                dataPlane.sendPacket(handle, slots[sent])
+                metrics.recordOut(sizes[sent])
+                sent++
+            }
+        } finally {
+            // keep the allocation order intact for whoever comes next
+            for (i in sent until allocated) {
+                if (sizes[i] > 0) clearVersion(window.at(slots[i], sizes[i]))
+                dataPlane.sendPacket(handle, slots[i])
+            }
+        }
+        return sent
+    }
+
+    @Throws(NativeException::class)
+    private fun allocateAddress(size: Int): Long {
+        val address = dataPlane.allocateSendPacket(handle, size)
+        if (address == 0L) {
+            val err = Native.getLastError()
+            if (err == WinError.ERROR_BUFFER_OVERFLOW) metrics.sendOverflows.increment()
+            throw NativeException("Failed to allocate packet to send", err)
+        }
+        return address
+    }
+
+    /**
+     * Make the packet in [window], at its position, one the driver drops.
+     * */
+    private fun clearVersion(window: ByteBuffer) {
+        window.put(window.position(), 0)
+    }
+
+    private fun requirePacketSize(size: Int) {
+        require(size in 0..WintunLib.WINTUN_MAX_IP_PACKET_SIZE) {
             "IP packet to big. Must not bigger than ${WintunLib.WINTUN_MAX_IP_PACKET_SIZE}"
         }
-        val p = lib.WintunAllocateSendPacket(session, packet.size)
-            ?: throw NativeException("Failed to allocate packet to send", Kernel32.INSTANCE.GetLastError())
-        p.write(0, packet, offset, len)
-        lib.WintunSendPacket(session, p)
     }
 
     override fun close() {
+        metricsRegistration?.close()
         lib.WintunEndSession(session)
+        cancelEvent?.let { events.closeEvent(it) }
     }
 }
@@ -0,0 +1,601 @@
+package info.skyblond.jna.wintun
+
+import com.sun.jna.Memory
+import com.sun.jna.Native
+import com.sun.jna.Pointer
+import com.sun.jna.WString
+import com.sun.jna.platform.win32.Guid
+import com.sun.jna.platform.win32.WinBase
+import com.sun.jna.platform.win32.WinError
+import com.sun.jna.platform.win32.WinNT
+import com.sun.jna.ptr.IntByReference
+import com.sun.jna.ptr.LongByReference
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.LockSupport
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * An in-process wintun, so the packet paths can be load tested without Windows.
+ *
+ * Pass it to [WintunAdapter] or [WintunSession] in place of [WintunLib.INSTANCE].
+ * Each [SimulatedAdapter] has the OS side of the tunnel: it injects packets
+ * into the receive ring and consumes what the application sends, on demand
+ * or at a configurable rate.
+ *
+ * The rings behave like the real ones: the capacity must be a power of two,
+ * each packet takes a 4 byte header plus its data, rounded up to 4 bytes, and
+ * a packet never wraps, it spills over into trailing bytes instead. Receive slots
+ * are freed in ring order once released, send slots reach the OS in allocation
+ * order once sent. Errors are [WinError.ERROR_NO_MORE_ITEMS] on an empty receive
+ * ring, [WinError.ERROR_BUFFER_OVERFLOW] on a full send ring, and
+ * [WinError.ERROR_HANDLE_EOF] once the session is ended or the adapter closed.
+ * The read event is signaled when a packet lands in a ring the application had
+ * drained, and waits go through the [WintunEvents] of the simulator.
+ *
+ * Handles are plain numbers, never dereference them. Thread-safe.
+ * */
+class WintunSimulator : WintunLib, WintunDataPlane, WintunEvents {
+
+    companion object {
+        private const val ALIGNMENT = 4
+        private const val HEADER_SIZE = 4
+
+        /**
+         * Set in a packet header once the slot is released or sent.
+         * */
+        private const val DONE = Int.MIN_VALUE
+
+        /**
+         * Room after the ring for a packet starting right before its end.
+         * */
+        private const val TRAILING_BYTES = HEADER_SIZE + WintunLib.WINTUN_MAX_IP_PACKET_SIZE + ALIGNMENT
+
+        private const val ADAPTER_BASE = 0x10000000L
+        private const val SESSION_BASE = 0x20000000L
+        private const val EVENT_BASE = 0x30000000L
+
+        private fun align(size: Int) = (HEADER_SIZE + size + ALIGNMENT - 1) and (ALIGNMENT - 1).inv()
+
+        /**
+         * The wintun version reported by [WintunGetRunningDriverVersion], 0.14.
+         * */
+        const val DRIVER_VERSION = 0x0000000EL
+    }
+
+    /**
+     * Where the OS side gets packets to inject, see [SimulatedAdapter.startInjecting].
+     * */
+    fun interface PacketSource {
+        /**
+         * Put packet number [sequence] in [packet], from position 0.
+         * The packet is what's between 0 and the position afterward.
+         * */
+        fun fill(sequence: Long, packet: ByteBuffer)
+    }
+
+    /**
+     * A ring of packets in native memory. Positions are offsets modulo the capacity.
+     * The producer appends at [allocated], the consumer takes from [read], and a
+     * slot becomes visible or free only when every slot before it is done.
+     * */
+    internal class Ring(val capacity: Int) {
+        val memory = Memory(capacity.toLong() + TRAILING_BYTES).apply { clear() }
+        val base = Pointer.nativeValue(memory)
+
+        /**
+         * The whole ring, so slots can be viewed without going through JNI.
+         * */
+        private val view = memory.getByteBuffer(0, memory.size())
+        private val mask = capacity - 1
+
+        /**
+         * Start of the oldest slot still in use, by the producer or the consumer.
+         * */
+        private var head = 0
+
+        /**
+         * End of the slots the consumer can see.
+         * */
+        private var tail = 0
+
+        /**
+         * End of the slots handed to the producer.
+         * */
+        private var allocated = 0
+
+        /**
+         * End of the slots handed to the consumer.
+         * */
+        private var read = 0
+
+        val isEmpty: Boolean get() = read == tail
+
+        /**
+         * @return offset of the new slot, or -1 if the ring is full
+         * */
+        fun allocate(size: Int): Int {
+            val aligned = align(size)
+            val free = (head - allocated - ALIGNMENT) and mask
+            if (aligned > free) return -1
+            val offset = allocated
+            memory.setInt(offset.toLong(), size)
+            allocated = (allocated + aligned) and mask
+            return offset
+        }
+
+        /**
+         * Make the slot at [offset] visible to the consumer, once the ones before it are.
+         * */
+        fun commit(offset: Int) {
+            memory.setInt(offset.toLong(), memory.getInt(offset.toLong()) or DONE)
+            while (tail != allocated) {
+                val header = memory.getInt(tail.toLong())
+                if (header and DONE == 0) break
+                val size = header and DONE.inv()
+                memory.setInt(tail.toLong(), size)
+                tail = (tail + align(size)) and mask
+            }
+        }
+
+        /**
+         * @return offset of the next visible slot, or -1 if there is none
+         * */
+        fun take(): Int {
+            if (read == tail) return -1
+            val offset = read
+            read = (read + align(memory.getInt(offset.toLong()))) and mask
+            return offset
+        }
+
+        /**
+         * Free the slot at [offset], once the ones before it are.
+         * */
+        fun release(offset: Int) {
+            memory.setInt(offset.toLong(), memory.getInt(offset.toLong()) or DONE)
+            while (head != read) {
+                val header = memory.getInt(head.toLong())
+                if (header and DONE == 0) break
+                head = (head + align(header and DONE.inv())) and mask
+            }
+        }
+
+        fun size(offset: Int) = memory.getInt(offset.toLong()) and DONE.inv()
+
+        /**
+         * The data of the slot at [offset], big-endian like a heap buffer.
+         * */
+        fun slot(offset: Int, size: Int): ByteBuffer {
+            val slot = view.duplicate()
+            (slot as Buffer).limit(offset + HEADER_SIZE + size).position(offset + HEADER_SIZE)
+            return slot.slice().order(ByteOrder.BIG_ENDIAN)
+        }
+
+        fun offsetOf(address: Long): Int {
+            val offset = address - base - HEADER_SIZE
+            require(offset in 0 until capacity) { "Address $address is not in this ring" }
+            return offset.toInt()
+        }
+    }
+
+    /**
+     * An event of the simulator. All of them share one lock, so a wait can watch several.
+     * */
+    private class SimulatedEvent {
+        var signaled = false
+    }
+
+    private val eventLock = ReentrantLock()
+    private val eventSignaled = eventLock.newCondition()
+    private val eventList = CopyOnWriteArrayList<SimulatedEvent?>()
+
+    internal inner class SimulatedSession(val adapter: SimulatedAdapter, capacity: Int) {
+        /**
+         * OS to application.
+         * */
+        val receiveRing = Ring(capacity)
+
+        /**
+         * Application to OS.
+         * */
+        val sendRing = Ring(capacity)
+        val readEvent = createEvent()
+
+        @Volatile
+        var ended = false
+
+        val isOpen: Boolean get() = !ended && !adapter.closed
+    }
+
+    private val adapterList = CopyOnWriteArrayList<SimulatedAdapter>()
+    private val sessionList = CopyOnWriteArrayList<SimulatedSession>()
+
+    /**
+     * The adapters created so far, closed ones included.
+     * */
+    val adapters: List<SimulatedAdapter> get() = adapterList
+
+    /**
+     * Find an adapter by name, null if there is none or it's closed.
+     * */
+    fun adapter(name: String): SimulatedAdapter? = adapterList.firstOrNull { it.name == name && !it.closed }
+
+    /**
+     * A simulated adapter, with the OS side of its current session.
+     * */
+    inner class SimulatedAdapter internal constructor(val name: String, internal val handle: Long) {
+        /**
+         * Made up, unique per simulator.
+         * */
+        val luid: Long = handle
+
+        @Volatile
+        internal var closed = false
+
+        @Volatile
+        internal var session: SimulatedSession? = null
+
+        private val injected = LongAdder()
+        private val dropped = LongAdder()
+        private val consumed = LongAdder()
+
+        /**
+         * Packets put in the receive ring.
+         * */
+        val injectedCount: Long get() = injected.sum()
+
+        /**
+         * Packets the OS side couldn't inject, because the receive ring was full
+         * or no session was running. Wintun drops them the same way.
+         * */
+        val droppedCount: Long get() = dropped.sum()
+
+        /**
+         * Packets taken by the OS side from the send ring.
+         * */
+        val consumedCount: Long get() = consumed.sum()
+
+        /**
+         * Put a packet in the receive ring, as if the OS routed it to the adapter.
+         *
+         * @return false if it was dropped
+         * */
+        fun inject(packet: ByteBuffer): Boolean {
+            val size = packet.remaining()
+            require(size <= WintunLib.WINTUN_MAX_IP_PACKET_SIZE) { "Packet too big: $size" }
+            val session = session?.takeIf { it.isOpen }
+            if (session == null) {
+                dropped.increment()
+                return false
+            }
+            val ring = session.receiveRing
+            val wasEmpty: Boolean
+            synchronized(ring) {
+                val offset = ring.allocate(size)
+                if (offset < 0) {
+                    dropped.increment()
+                    return false
+                }
+                ring.slot(offset, size).put(packet)
+                wasEmpty = ring.isEmpty
+                ring.commit(offset)
+            }
+            injected.increment()
+            if (wasEmpty) setEvent(session.readEvent)
+            return true
+        }
+
+        fun inject(packet: ByteArray): Boolean = inject(ByteBuffer.wrap(packet))
+
+        /**
+         * Take the oldest sent packet, as if the OS picked it up.
+         *
+         * @return the packet, or null if nothing was sent
+         * */
+        fun consume(): ByteArray? {
+            var result: ByteArray? = null
+            consume(PacketSink { packet -> result = ByteArray(packet.remaining()).also { packet.get(it) } })
+            return result
+        }
+
+        /**
+         * Take the oldest sent packet and pass it to [sink], without copying.
+         * The buffer is only valid inside [sink].
+         *
+         * @return false if nothing was sent
+         * */
+        fun consume(sink: PacketSink): Boolean {
+            val session = session ?: return false
+            val ring = session.sendRing
+            synchronized(ring) {
+                val offset = ring.take()
+                if (offset < 0) return false
+                try {
+                    sink.accept(ring.slot(offset, ring.size(offset)))
+                } finally {
+                    ring.release(offset)
+                }
+            }
+            consumed.increment()
+            return true
+        }
+
+        @Volatile
+        private var trafficRunning = false
+        private val trafficThreads = ArrayList<Thread>()
+
+        /**
+         * Inject packets from [source] at [packetsPerSecond] on a background thread,
+         * 0 meaning as fast as possible, until [stopTraffic]. Packets that don't fit
+         * in the ring are dropped and counted, like wintun does.
+         * */
+        @Synchronized
+        fun startInjecting(packetsPerSecond: Long, source: PacketSource) {
+            val buffer = ByteBuffer.allocate(WintunLib.WINTUN_MAX_IP_PACKET_SIZE)
+            startTraffic("wintun-sim-inject-$name", packetsPerSecond) { sequence ->
+                (buffer as Buffer).clear()
+                source.fill(sequence, buffer)
+                (buffer as Buffer).flip()
+                inject(buffer)
+                true
+            }
+        }
+
+        /**
+         * Consume sent packets at up to [packetsPerSecond] on a background thread,
+         * 0 meaning as fast as possible, until [stopTraffic]. Each packet is passed
+         * to [sink] if given.
+         * */
+        @Synchronized
+        @JvmOverloads
+        fun startConsuming(packetsPerSecond: Long, sink: PacketSink? = null) {
+            val discard = sink ?: PacketSink { }
+            startTraffic("wintun-sim-consume-$name", packetsPerSecond) { consume(discard) }
+        }
+
+        /**
+         * Run [step] [packetsPerSecond] times per second. A step returning false
+         * found nothing to do, and the thread backs off a little.
+         * */
+        private fun startTraffic(threadName: String, packetsPerSecond: Long, step: (Long) -> Boolean) {
+            require(packetsPerSecond >= 0) { "Rate must not be negative" }
+            trafficRunning = true
+            val thread = Thread({
+                val start = System.nanoTime()
+                var done = 0L
+                while (trafficRunning) {
+                    if (packetsPerSecond > 0) {
+                        val due = (System.nanoTime() - start) * packetsPerSecond / TimeUnit.SECONDS.toNanos(1)
+                        if (done >= due) {
+                            LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1) / packetsPerSecond)
+                            continue
+                        }
+                    }
+                    if (step(done)) done++ else LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50))
+                }
+            }, threadName).apply { isDaemon = true }
+            trafficThreads.add(thread)
+            thread.start()
+        }
+
+        /**
+         * Close the read event of the current session behind its back, so waiting on it
+         * fails like on a handle closed too early.
+         * */
+        fun closeReadEvent() {
+            session?.let { closeEvent(it.readEvent) }
+        }
+
+        /**
+         * Stop the threads started by [startInjecting] and [startConsuming], and wait for them.
+         * */
+        @Synchronized
+        fun stopTraffic() {
+            trafficRunning = false
+            trafficThreads.forEach { it.join() }
+            trafficThreads.clear()
+        }
+    }
+
+    private fun adapterOf(handle: WintunAdapterHandler): SimulatedAdapter? {
+        val index = Pointer.nativeValue(handle) - ADAPTER_BASE
+        return if (index in 0 until adapterList.size) adapterList[index.toInt()] else null
+    }
+
+    private fun sessionOf(handle: Long): SimulatedSession {
+        val index = handle - SESSION_BASE
+        require(index in 0 until sessionList.size) { "Unknown session handle: $handle" }
+        return sessionList[index.toInt()]
+    }
+
+    // ----------------------------- adapter -----------------------------
+
+    @Synchronized
+    override fun WintunCreateAdapter(name: WString, tunnelType: WString, requestedGUID: Guid.GUID?): WintunAdapterHandler? {
+        if (adapter(name.toString()) != null) {
+            Native.setLastError(WinError.ERROR_ALREADY_EXISTS)
+            return null
+        }
+        val adapter = SimulatedAdapter(name.toString(), ADAPTER_BASE + adapterList.size)
+        adapterList.add(adapter)
+        return Pointer(adapter.handle)
+    }
+
+    override fun WintunOpenAdapter(name: WString): WintunAdapterHandler? {
+        val adapter = adapter(name.toString())
+        if (adapter == null) {
+            Native.setLastError(WinError.ERROR_FILE_NOT_FOUND)
+            return null
+        }
+        return Pointer(adapter.handle)
+    }
+
+    override fun WintunCloseAdapter(adapter: WintunAdapterHandler) {
+        val simulated = adapterOf(adapter) ?: return
+        simulated.closed = true
+        simulated.stopTraffic()
+        simulated.session?.let { setEvent(it.readEvent) }
+    }
+
+    override fun WintunDeleteDriver(): Boolean = true
+
+    override fun WintunGetAdapterLUID(adapter: WintunAdapterHandler, liud: LongByReference) {
+        liud.value = adapterOf(adapter)?.luid ?: 0
+    }
+
+    override fun WintunGetRunningDriverVersion(): Long = DRIVER_VERSION
+
+    // ----------------------------- session -----------------------------
+
+    @Synchronized
+    override fun WintunStartSession(adapter: WintunAdapterHandler, capacity: Int): WintunSessionHandler? {
+        val simulated = adapterOf(adapter)?.takeIf { !it.closed }
+        if (simulated == null) {
+            Native.setLastError(WinError.ERROR_INVALID_HANDLE)
+            return null
+        }
+        if (capacity !in WintunLib.WINTUN_MIN_RING_CAPACITY..WintunLib.WINTUN_MAX_RING_CAPACITY
+            || capacity and (capacity - 1) != 0
+        ) {
+            Native.setLastError(WinError.ERROR_INVALID_PARAMETER)
+            return null
+        }
+        if (simulated.session?.ended == false) {
+            Native.setLastError(WinError.ERROR_ALREADY_EXISTS)
+            return null
+        }
+        val session = SimulatedSession(simulated, capacity)
+        sessionList.add(session)
+        simulated.session = session
+        return Pointer(SESSION_BASE + sessionList.size - 1)
+    }
+
+    override fun WintunEndSession(session: WintunSessionHandler) {
+        val simulated = sessionOf(Pointer.nativeValue(session))
+        simulated.ended = true
+        setEvent(simulated.readEvent)
+        // the rings stay allocated, leases and slots still point there
+    }
+
+    override fun WintunGetReadWaitEvent(session: WintunSessionHandler): WinNT.HANDLE =
+        sessionOf(Pointer.nativeValue(session)).readEvent
+
+    // ----------------------------- data plane -----------------------------
+
+    override fun receivePacket(session: Long, packetSize: IntByReference): Long {
+        val simulated = sessionOf(session)
+        if (!simulated.isOpen) {
+            Native.setLastError(WinError.ERROR_HANDLE_EOF)
+            return 0
+        }
+        val ring = simulated.receiveRing
+        synchronized(ring) {
+            val offset = ring.take()
+            if (offset < 0) {
+                Native.setLastError(WinError.ERROR_NO_MORE_ITEMS)
+                return 0
+            }
+            packetSize.value = ring.size(offset)
+            return ring.base + offset + HEADER_SIZE
+        }
+    }
+
+    override fun releaseReceivePacket(session: Long, packet: Long) {
+        val ring = sessionOf(session).receiveRing
+        synchronized(ring) { ring.release(ring.offsetOf(packet)) }
+    }
+
+    override fun allocateSendPacket(session: Long, packetSize: Int): Long {
+        val simulated = sessionOf(session)
+        if (!simulated.isOpen) {
+            Native.setLastError(WinError.ERROR_HANDLE_EOF)
+            return 0
+        }
+        val ring = simulated.sendRing
+        synchronized(ring) {
+            val offset = ring.allocate(packetSize)
+            if (offset < 0) {
+                Native.setLastError(WinError.ERROR_BUFFER_OVERFLOW)
+                return 0
+            }
+            return ring.base + offset + HEADER_SIZE
+        }
+    }
+
+    override fun sendPacket(session: Long, packet: Long) {
+        val ring = sessionOf(session).sendRing
+        synchronized(ring) { ring.commit(ring.offsetOf(packet)) }
+    }
+
+    override fun WintunReceivePacket(session: WintunSessionHandler, packetSize: IntByReference): Pointer? =
+        receivePacket(Pointer.nativeValue(session), packetSize).let { if (it == 0L) null else Pointer(it) }
+
+    override fun WintunReleaseReceivePacket(session: WintunSessionHandler, packet: Pointer) =
+        releaseReceivePacket(Pointer.nativeValue(session), Pointer.nativeValue(packet))
+
+    override fun WintunAllocateSendPacket(session: WintunSessionHandler, packetSize: Int): Pointer? =
+        allocateSendPacket(Pointer.nativeValue(session), packetSize).let { if (it == 0L) null else Pointer(it) }
+
+    override fun WintunSendPacket(session: WintunSessionHandler, packet: Pointer) =
+        sendPacket(Pointer.nativeValue(session), Pointer.nativeValue(packet))
+
+    // ----------------------------- events -----------------------------
+
+    override fun createEvent(): WinNT.HANDLE = eventLock.withLock {
+        eventList.add(SimulatedEvent())
+        WinNT.HANDLE(Pointer(EVENT_BASE + eventList.size - 1))
+    }
+
+    private fun eventOf(handle: WinNT.HANDLE?): SimulatedEvent? {
+        val index = handle?.let { Pointer.nativeValue(it.pointer) - EVENT_BASE } ?: return null
+        return if (index in 0 until eventList.size) eventList[index.toInt()] else null
+    }
+
+    override fun setEvent(event: WinNT.HANDLE) {
+        val simulated = eventOf(event) ?: return
+        eventLock.withLock {
+            simulated.signaled = true
+            eventSignaled.signalAll()
+        }
+    }
+
+    override fun closeEvent(event: WinNT.HANDLE) {
+        val index = Pointer.nativeValue(event.pointer) - EVENT_BASE
+        if (index in 0 until eventList.size) eventList[index.toInt()] = null
+    }
+
+    override fun waitForAny(count: Int, events: Array<WinNT.HANDLE?>, timeoutMs: Int): Int {
+        val simulated = arrayOfNulls<SimulatedEvent>(count)
+        for (i in 0 until count) {
+            simulated[i] = eventOf(events[i]) ?: run {
+                Native.setLastError(WinError.ERROR_INVALID_HANDLE)
+                return WinBase.WAIT_FAILED
+            }
+        }
+        val infinite = timeoutMs == WinBase.INFINITE
+        var remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs.toLong())
+        eventLock.withLock {
+            while (true) {
+                for (i in 0 until count) {
+                    val event = simulated[i]!!
+                    if (event.signaled) {
+                        // auto-reset
+                        event.signaled = false
+                        return WinBase.WAIT_OBJECT_0 + i
+                    }
+                }
+                if (infinite) {
+                    eventSignaled.await()
+                } else {
+                    if (remaining <= 0) return WinError.WAIT_TIMEOUT
+                    remaining = eventSignaled.awaitNanos(remaining)
+                }
+            }
+        }
+    }
+}
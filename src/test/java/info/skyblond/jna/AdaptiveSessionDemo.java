@@ -0,0 +1,112 @@
+package info.skyblond.jna;
+
+import com.sun.jna.platform.win32.WinBase;
+import info.skyblond.jna.wintun.AdaptiveSession;
+import info.skyblond.jna.wintun.PacketLease;
+import info.skyblond.jna.wintun.WintunAdapter;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSimulator;
+
+import java.io.EOFException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static info.skyblond.jna.Checks.check;
+
+/**
+ * Runs an {@link AdaptiveSession} on top of {@link WintunSimulator}: a steady stream
+ * must leave the ring as it is, a burst must grow it while traffic keeps coming,
+ * without reordering, and losing only what came in the gap between the two
+ * sessions, and closing must not wait for a blocked receive. No driver needed.
+ */
+public class AdaptiveSessionDemo {
+
+    private static final int PACKET_SIZE = 200;
+    private static final int PACKETS_PER_SECOND = 5_000;
+
+    public static void main(String[] args) throws Exception {
+        WintunSimulator simulator = new WintunSimulator();
+        try (WintunAdapter adapter = new WintunAdapter("adaptive", "Wintun", null, simulator)) {
+            WintunSimulator.SimulatedAdapter os = simulator.adapter("adaptive");
+            AdaptiveSession.Policy policy = new AdaptiveSession.Policy(
+                    WintunLib.WINTUN_MIN_RING_CAPACITY, WintunLib.WINTUN_MIN_RING_CAPACITY * 4,
+                    0.5, 0.125, 30_000, 200, 1_000);
+            AdaptiveSession session = new AdaptiveSession(adapter, WintunLib.WINTUN_MIN_RING_CAPACITY, policy);
+
+            AtomicLong received = new AtomicLong();
+            AtomicLong last = new AtomicLong(-1);
+            AtomicLong pauseMillis = new AtomicLong();
+            Thread receiver = new Thread(() -> {
+                try {
+                    while (true) {
+                        long pause = pauseMillis.getAndSet(0);
+                        if (pause > 0) {
+                            Thread.sleep(pause);
+                        }
+                        PacketLease lease = session.receive(WinBase.INFINITE);
+                        if (lease == null) {
+                            continue;
+                        }
+                        try (PacketLease ignored = lease) {
+                            long sequence = lease.getBuffer().getLong(24);
+                            check(sequence > last.get(), sequence + " after " + last.get());
+                            last.set(sequence);
+                            received.incrementAndGet();
+                        }
+                    }
+                } catch (EOFException ignored) {
+                } catch (Exception e) {
+                    e.printStackTrace(System.err);
+                }
+            });
+            receiver.start();
+            os.startInjecting(PACKETS_PER_SECOND, (sequence, packet) -> {
+                packet.put(0, (byte) 0x45);
+                packet.putLong(24, sequence);
+                packet.position(PACKET_SIZE);
+            });
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+            System.out.printf("Steady: %d packets, capacity %d%n", received.get(), session.getCapacity());
+            check(received.get() > 0, "nothing received");
+            check(session.getResizeCount() == 0, "grown by a steady stream");
+
+            // let about 100KB pile up, most of the ring
+            pauseMillis.set(100);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (session.getResizeCount() == 0) {
+                check(System.nanoTime() < deadline, "not grown by a burst");
+                Thread.sleep(1);
+            }
+            long afterResize = received.get();
+            Thread.sleep(200);
+            System.out.printf("Burst: capacity %d, %d packets after the handover%n",
+                    session.getCapacity(), received.get() - afterResize);
+            check(session.getCapacity() == WintunLib.WINTUN_MIN_RING_CAPACITY * 2, "capacity");
+            check(received.get() > afterResize, "nothing received after the handover");
+
+            os.stopTraffic();
+            deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            long before;
+            do {
+                before = received.get();
+                Thread.sleep(200);
+            } while (received.get() != before && System.nanoTime() < deadline);
+            // what was queued in the old ring is carried over, only the ones
+            // after it was drained, and before the new session started, are lost
+            long lost = os.getInjectedCount() - received.get();
+            System.out.printf("Injected %d, received %d, lost in the handover %d, dropped %d%n",
+                    os.getInjectedCount(), received.get(), lost, os.getDroppedCount());
+            check(lost >= 0 && lost < PACKETS_PER_SECOND / 10, "queued packets lost in the handover");
+
+            // the receiver is blocked in a wait without timeout now
+            long start = System.nanoTime();
+            session.close();
+            session.close();
+            receiver.join(TimeUnit.SECONDS.toMillis(1));
+            check(!receiver.isAlive(), "receiver still waiting after close");
+            System.out.printf("Closed in %dus%n", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+        System.out.println("AdaptiveSession OK");
+    }
+}
@@ -0,0 +1,19 @@
+package info.skyblond.jna;
+
+/**
+ * Assertions for the demos, which run as plain mains without a test framework.
+ */
+public final class Checks {
+
+    private Checks() {
+    }
+
+    /**
+     * @throws IllegalStateException with {@code message} if {@code condition} doesn't hold
+     */
+    public static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package info.skyblond.jna;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.WString;
+import com.sun.jna.platform.win32.Guid;
+import com.sun.jna.ptr.IntByReference;
+import info.skyblond.jna.wintun.WintunDataPlane;
+import info.skyblond.jna.wintun.WintunLib;
+
+/**
+ * Measures the per-call cost of the proxy and the direct-mapped binding,
+ * by polling the empty receive ring of a fresh session.
+ * <p>
+ * Note: You need run this as admin to create tun devices.
+ */
+public class DataPlaneBenchmark {
+
+    private static final int CALLS = 10_000_000;
+
+    public static void main(String[] args) {
+        WintunLib lib = WintunLib.getINSTANCE();
+        WintunDataPlane direct = WintunDataPlane.of(lib);
+        WintunDataPlane proxy = WintunDataPlane.proxy(lib);
+        System.out.printf("Selected binding: %s%n", direct.getClass().getSimpleName());
+
+        Pointer adapter = lib.WintunCreateAdapter(new WString("Wintun Benchmark"), new WString("Wintun"), Guid.GUID.newGuid());
+        if (adapter == null) {
+            throw new IllegalStateException("Failed to create adapter, run as admin");
+        }
+        try {
+            Pointer session = lib.WintunStartSession(adapter, WintunLib.WINTUN_MIN_RING_CAPACITY);
+            if (session == null) {
+                throw new IllegalStateException("Failed to start session");
+            }
+            try {
+                long handle = Pointer.nativeValue(session);
+                IntByReference packetSize = new IntByReference();
+                for (int round = 0; round < 3; round++) {
+                    System.out.printf("round %d: proxy %.1f ns/call, direct %.1f ns/call%n", round,
+                            measure(proxy, handle, packetSize), measure(direct, handle, packetSize));
+                }
+            } finally {
+                lib.WintunEndSession(session);
+            }
+        } finally {
+            lib.WintunCloseAdapter(adapter);
+        }
+    }
+
+    private static double measure(WintunDataPlane dataPlane, long handle, IntByReference packetSize) {
+        long received = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < CALLS; i++) {
+            long packet = dataPlane.receivePacket(handle, packetSize);
+            if (packet != 0) {
+                dataPlane.releaseReceivePacket(handle, packet);
+                received++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (received > 0) {
+            System.out.printf("(%d packets arrived meanwhile)%n", received);
+        }
+        return (double) elapsed / CALLS;
+    }
+
+}
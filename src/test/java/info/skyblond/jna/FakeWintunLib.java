@@ -0,0 +1,163 @@
+package info.skyblond.jna;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.WString;
+import com.sun.jna.platform.win32.Guid;
+import com.sun.jna.platform.win32.WinError;
+import com.sun.jna.platform.win32.WinNT;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
+import info.skyblond.jna.wintun.WintunLib;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Pure-Java stand-in for wintun.dll, so the session code runs without the driver.
+ * Packets queued with {@link #inject(byte[])} are handed out by WintunReceivePacket,
+ * packets committed with WintunSendPacket end up in {@link #getSent()}.
+ */
+public class FakeWintunLib implements WintunLib {
+
+    private final Queue<byte[]> incoming = new ArrayDeque<>();
+    private final Map<Long, Memory> received = new HashMap<>();
+    private final Map<Long, Memory> allocated = new HashMap<>();
+    private final List<byte[]> sent = new ArrayList<>();
+    private int releasedCount;
+    private int sendLimit;
+
+    public final Pointer session = new Memory(8);
+
+    public synchronized void inject(byte[] packet) {
+        incoming.add(packet);
+    }
+
+    public synchronized int getOutstandingCount() {
+        return received.size();
+    }
+
+    public synchronized int getReleasedCount() {
+        return releasedCount;
+    }
+
+    public synchronized List<byte[]> getSent() {
+        return new ArrayList<>(sent);
+    }
+
+    /**
+     * Makes WintunAllocateSendPacket fail with ERROR_BUFFER_OVERFLOW once this many
+     * sent packets are waiting, like a ring the OS is slow to drain. 0 means no limit.
+     */
+    public synchronized void setSendLimit(int sendLimit) {
+        this.sendLimit = sendLimit;
+    }
+
+    /**
+     * Hands out the sent packets and forgets them, freeing room under the send limit.
+     */
+    public synchronized List<byte[]> drainSent() {
+        List<byte[]> drained = new ArrayList<>(sent);
+        sent.clear();
+        return drained;
+    }
+
+    @Nullable
+    @Override
+    public synchronized Pointer WintunReceivePacket(@NotNull Pointer session, @NotNull IntByReference packetSize) {
+        byte[] packet = incoming.poll();
+        if (packet == null) {
+            Native.setLastError(WinError.ERROR_NO_MORE_ITEMS);
+            return null;
+        }
+        Memory memory = new Memory(Math.max(packet.length, 1));
+        memory.write(0, packet, 0, packet.length);
+        received.put(Pointer.nativeValue(memory), memory);
+        packetSize.setValue(packet.length);
+        return memory;
+    }
+
+    @Override
+    public synchronized void WintunReleaseReceivePacket(@NotNull Pointer session, @NotNull Pointer packet) {
+        if (received.remove(Pointer.nativeValue(packet)) == null) {
+            throw new IllegalStateException("Release unknown packet: " + packet);
+        }
+        releasedCount++;
+    }
+
+    @Nullable
+    @Override
+    public synchronized Pointer WintunAllocateSendPacket(@NotNull Pointer session, int packetSize) {
+        if (sendLimit > 0 && sent.size() + allocated.size() >= sendLimit) {
+            Native.setLastError(WinError.ERROR_BUFFER_OVERFLOW);
+            return null;
+        }
+        Memory memory = new Memory(Math.max(packetSize, 1));
+        allocated.put(Pointer.nativeValue(memory), memory);
+        return memory;
+    }
+
+    @Override
+    public synchronized void WintunSendPacket(@NotNull Pointer session, @NotNull Pointer packet) {
+        Memory memory = allocated.remove(Pointer.nativeValue(packet));
+        if (memory == null) {
+            throw new IllegalStateException("Send unknown packet: " + packet);
+        }
+        sent.add(memory.getByteArray(0, (int) memory.size()));
+    }
+
+    @NotNull
+    @Override
+    public WinNT.HANDLE WintunGetReadWaitEvent(@NotNull Pointer session) {
+        return new WinNT.HANDLE(session);
+    }
+
+    @Nullable
+    @Override
+    public Pointer WintunStartSession(@NotNull Pointer adapter, int capacity) {
+        return session;
+    }
+
+    @Override
+    public void WintunEndSession(@NotNull Pointer session) {
+    }
+
+    @Nullable
+    @Override
+    public Pointer WintunCreateAdapter(@NotNull WString name, @NotNull WString tunnelType, @Nullable Guid.GUID requestedGUID) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Nullable
+    @Override
+    public Pointer WintunOpenAdapter(@NotNull WString name) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void WintunCloseAdapter(@NotNull Pointer adapter) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean WintunDeleteDriver() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void WintunGetAdapterLUID(@NotNull Pointer adapter, @NotNull LongByReference liud) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long WintunGetRunningDriverVersion() {
+        return 0;
+    }
+}
@@ -0,0 +1,123 @@
+package info.skyblond.jna;
+
+import info.skyblond.jna.wintun.IoStatus;
+import info.skyblond.jna.wintun.MetricsRegistry;
+import info.skyblond.jna.wintun.PrometheusExporter;
+import info.skyblond.jna.wintun.ReceiveWaitStrategy;
+import info.skyblond.jna.wintun.SessionMetrics;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+import info.skyblond.vpn.TunnelMetrics;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static info.skyblond.jna.Checks.check;
+
+/**
+ * Drives a session over {@link FakeWintunLib}, then reads its metrics back
+ * over JMX and from the Prometheus endpoint. Also prints what recording costs
+ * per packet. No driver needed.
+ */
+public class MetricsDemo {
+
+    public static void main(String[] args) throws Exception {
+        FakeWintunLib lib = new FakeWintunLib();
+        lib.setSendLimit(3);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        MetricsRegistry registry = new MetricsRegistry(server);
+        Map<String, String> labels = new HashMap<>();
+        labels.put("adapter", "demo");
+        labels.put("session", "1");
+        try (WintunSession session = new WintunSession(lib, lib.session, WintunLib.WINTUN_MIN_RING_CAPACITY);
+             AutoCloseable registration = registry.register("Session", session.getMetrics(), labels);
+             PrometheusExporter exporter = new PrometheusExporter(registry, new java.net.InetSocketAddress("127.0.0.1", 0))) {
+            session.setWaitStrategy(ReceiveWaitStrategy.busySpin());
+            for (int i = 0; i < 5; i++) {
+                lib.inject(new byte[100 + i]);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(WintunLib.WINTUN_MAX_IP_PACKET_SIZE);
+            for (int i = 0; i < 5; i++) {
+                buffer.clear();
+                check(session.readPacket(buffer, 0) == IoStatus.OK, "read failed");
+                buffer.flip();
+                session.writePacket(buffer);
+            }
+            check(session.readPacket(buffer, 0) == IoStatus.EMPTY, "ring not empty");
+            SessionMetrics metrics = session.getMetrics();
+            check(metrics.getPacketsIn() == 5, "packets in " + metrics.getPacketsIn());
+            check(metrics.getBytesIn() == 510, "bytes in " + metrics.getBytesIn());
+            check(metrics.getPacketsOut() == 3, "packets out " + metrics.getPacketsOut());
+            check(metrics.getSendOverflows().sum() == 2, "overflows " + metrics.getSendOverflows().sum());
+            check(metrics.getEmptyPolls().sum() == 1, "empty polls " + metrics.getEmptyPolls().sum());
+            metrics.getEventWaitNanos().record(1_500_000);
+
+            ObjectName name = new ObjectName("info.skyblond.wintun:type=Session,adapter=demo,session=1");
+            check(((Long) server.getAttribute(name, "packets_in")) == 5, "JMX packets_in");
+            check(((Long) server.getAttribute(name, "packet_size_in_bytes_p50")) == 127, "JMX p50");
+            check(Math.abs((Double) server.getAttribute(name, "event_wait_seconds_sum") - 0.0015) < 1e-12, "JMX seconds");
+
+            // same labels from another registry on the same server
+            try (AutoCloseable other = new MetricsRegistry(server).register("Session", new SessionMetrics(), labels)) {
+                check(server.isRegistered(new ObjectName("info.skyblond.wintun:type=Session,adapter=demo,session=1,id=2")),
+                        "colliding MBean not registered");
+            }
+
+            String text = fetch("http://127.0.0.1:" + exporter.getAddress().getPort() + "/metrics");
+            check(text.contains("# TYPE wintun_session_packets_in_total counter"), text);
+            check(text.contains("wintun_session_packets_in_total{") && text.contains("} 5\n"), text);
+            check(text.contains("wintun_session_packet_size_in_bytes_bucket{"), text);
+            check(text.contains("le=\"+Inf\"} 5"), text);
+            check(text.contains("# TYPE wintun_session_event_wait_seconds histogram"), text);
+            check(text.contains("wintun_session_event_wait_seconds_sum{") && text.contains("} 0.0015"), text);
+            check(text.contains("wintun_session_send_overflows_total{"), text);
+
+            registration.close();
+            check(!server.isRegistered(name), "MBean still registered");
+
+            try (AutoCloseable tunnel = registry.register("Tunnel", new TunnelMetrics(),
+                    Collections.singletonMap("server", "/10.0.0.1:443"))) {
+                check(server.queryNames(new ObjectName("info.skyblond.wintun:type=Tunnel,*"), null).size() == 1,
+                        "tunnel MBean not registered");
+            }
+            System.out.println("Metrics OK");
+        }
+        overhead();
+    }
+
+    private static void overhead() {
+        SessionMetrics metrics = new SessionMetrics();
+        int n = 20_000_000;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                int size = 40 + (i & 1023);
+                metrics.getPacketSizeIn().record(size);
+            }
+            System.out.printf("round %d: %.2f ns per recorded packet%n", round, (System.nanoTime() - start) / (double) n);
+        }
+    }
+
+    private static String fetch(String url) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try (InputStream in = connection.getInputStream(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
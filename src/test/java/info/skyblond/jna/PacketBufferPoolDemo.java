@@ -0,0 +1,116 @@
+package info.skyblond.jna;
+
+import info.skyblond.jna.wintun.IoStatus;
+import info.skyblond.jna.wintun.PacketBuffer;
+import info.skyblond.jna.wintun.PacketBufferPool;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import static info.skyblond.jna.Checks.check;
+
+/**
+ * Exercises {@link PacketBufferPool}: size classes, reference counting, pooled
+ * receive and send through {@link FakeWintunLib}, allocation-free reuse and
+ * leak detection and stale releases in debug mode. No driver needed.
+ */
+public class PacketBufferPoolDemo {
+
+    public static void main(String[] args) throws Exception {
+        sizeClasses();
+        sessionRoundTrip();
+        steadyState();
+        leakDetection();
+    }
+
+    private static void sizeClasses() {
+        PacketBufferPool pool = new PacketBufferPool();
+        int[][] cases = {{0, 128}, {128, 128}, {129, 256}, {1500, 2048}, {WintunLib.WINTUN_MAX_IP_PACKET_SIZE, 65536}};
+        for (int[] c : cases) {
+            PacketBuffer buffer = pool.acquire(c[0]);
+            check(buffer.getSize() == c[0], "size " + buffer.getSize());
+            check(buffer.getBuffer().capacity() == c[1], c[0] + " got class " + buffer.getBuffer().capacity());
+            check(buffer.getBuffer().isDirect(), "not direct");
+            buffer.release();
+        }
+        PacketBuffer buffer = pool.acquire(100).retain();
+        check(!buffer.release(), "released with a reference left");
+        check(buffer.release(), "not released on the last reference");
+        try {
+            buffer.release();
+            throw new IllegalStateException("double release not detected");
+        } catch (IllegalStateException expected) {
+            check(expected.getMessage().contains("already released"), expected.getMessage());
+        }
+        for (PacketBufferPool.SizeClassStats stats : pool.stats()) {
+            check(stats.getInUse() == 0, stats.toString());
+        }
+        System.out.println("PacketBufferPool size classes OK");
+    }
+
+    private static void sessionRoundTrip() throws Exception {
+        FakeWintunLib lib = new FakeWintunLib();
+        PacketBufferPool pool = new PacketBufferPool();
+        byte[] packet = new byte[1400];
+        Arrays.fill(packet, (byte) 0x45);
+        lib.inject(packet);
+        try (WintunSession session = new WintunSession(lib, lib.session, WintunLib.WINTUN_MIN_RING_CAPACITY)) {
+            PacketBuffer received = session.receive(pool, 0);
+            check(received != null, "nothing received");
+            check(lib.getOutstandingCount() == 0, "ring slot not released");
+            check(Arrays.equals(received.toByteArray(), packet), "content differs");
+            check(session.writePacket(received) == IoStatus.OK, "write failed");
+            check(received.getBuffer().position() == 0, "buffer moved");
+            received.release();
+            check(Arrays.equals(lib.getSent().get(0), packet), "sent content differs");
+            check(session.receive(pool, 0) == null, "phantom packet");
+        }
+        System.out.println("PacketBufferPool session round trip OK");
+    }
+
+    private static void steadyState() {
+        PacketBufferPool pool = new PacketBufferPool();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        PacketBuffer[] held = new PacketBuffer[64];
+        for (int round = 0; round < 3; round++) {
+            long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < 1_000_000; i++) {
+                int slot = i & 63;
+                if (held[slot] != null) {
+                    held[slot].release();
+                }
+                held[slot] = pool.acquire(40 + (int) ((i * 7919L) % 1460));
+            }
+            long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+            System.out.printf("round %d: %.3f bytes allocated per packet, %d bytes pooled%n",
+                    round, allocated / 1e6, pool.getAllocatedBytes());
+        }
+    }
+
+    private static void leakDetection() throws Exception {
+        PacketBufferPool pool = new PacketBufferPool(256 * 1024, true);
+        pool.acquire(100);
+        for (int i = 0; i < 50 && pool.checkLeaks() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        check(pool.checkLeaks() == 1, "leak not detected");
+        check(pool.stats().get(0).getInUse() == 0, "leaked buffer not reclaimed");
+
+        // the memory went to someone else, who must keep it
+        PacketBuffer stale = pool.acquire(100);
+        stale.release();
+        PacketBuffer owner = pool.acquire(100);
+        try {
+            stale.release();
+            throw new IllegalStateException("stale release not detected");
+        } catch (IllegalStateException expected) {
+            check(expected.getMessage().contains("already released"), expected.getMessage());
+        }
+        check(owner.getReferenceCount() == 1, "stale release dropped the new owner's reference");
+        owner.release();
+        System.out.println("PacketBufferPool leak detection OK");
+    }
+}
@@ -0,0 +1,39 @@
+package info.skyblond.jna;
+
+import info.skyblond.jna.wintun.PacketLease;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+
+import java.nio.ByteBuffer;
+
+import static info.skyblond.jna.Checks.check;
+
+/**
+ * Runs the leased receive path against {@link FakeWintunLib}, no driver needed.
+ */
+public class PacketLeaseDemo {
+
+    public static void main(String[] args) throws Exception {
+        FakeWintunLib lib = new FakeWintunLib();
+        try (WintunSession session = new WintunSession(lib, lib.session, WintunLib.WINTUN_MIN_RING_CAPACITY)) {
+            lib.inject(new byte[]{0x45, 1, 2, 3});
+            lib.inject(new byte[]{0x60, 4, 5});
+
+            try (PacketLease lease = session.receive(0)) {
+                check(lease != null, "packet expected");
+                ByteBuffer buffer = lease.getBuffer();
+                check(buffer.isDirect() && buffer.remaining() == 4, "direct view of 4 bytes expected");
+                check(buffer.get(0) == 0x45 && buffer.get(3) == 3, "content mismatch");
+                check(lib.getOutstandingCount() == 1, "slot released before close");
+            }
+            check(lib.getOutstandingCount() == 0 && lib.getReleasedCount() == 1, "slot not released on close");
+
+            byte[] packet = session.readPacket(0);
+            check(packet != null && packet.length == 3 && packet[2] == 5, "readPacket content mismatch");
+            check(lib.getOutstandingCount() == 0, "readPacket leaked a slot");
+
+            check(session.receive(0) == null, "empty ring expected");
+            System.out.println("PacketLease OK");
+        }
+    }
+}
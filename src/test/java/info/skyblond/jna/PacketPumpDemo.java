@@ -0,0 +1,73 @@
+package info.skyblond.jna;
+
+import info.skyblond.jna.wintun.PacketPump;
+import info.skyblond.jna.wintun.ReceiveWaitStrategy;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pumps UDP packets of several flows through {@link FakeWintunLib}
+ * and checks each flow is handled in order, no driver needed.
+ */
+public class PacketPumpDemo {
+
+    private static final int FLOWS = 16;
+    private static final int PACKETS_PER_FLOW = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        FakeWintunLib lib = new FakeWintunLib();
+        Map<Integer, Integer> lastSeq = new ConcurrentHashMap<>();
+        Map<Integer, String> workerOfFlow = new ConcurrentHashMap<>();
+        try (WintunSession session = new WintunSession(lib, lib.session, WintunLib.WINTUN_MIN_RING_CAPACITY)) {
+            // the fake has no read event to wait on
+            session.setWaitStrategy(ReceiveWaitStrategy.busySpin());
+            for (int seq = 0; seq < PACKETS_PER_FLOW; seq++) {
+                for (int flow = 0; flow < FLOWS; flow++) {
+                    lib.inject(udpPacket(flow, seq));
+                }
+            }
+            PacketPump pump = new PacketPump(session, 4, packet -> {
+                int flow = packet[21] & 0xff;
+                int seq = ((packet[28] & 0xff) << 8) | (packet[29] & 0xff);
+                Integer last = lastSeq.put(flow, seq);
+                if (last != null && last != seq - 1) {
+                    throw new IllegalStateException("flow " + flow + " out of order: " + last + " -> " + seq);
+                }
+                String worker = workerOfFlow.putIfAbsent(flow, Thread.currentThread().getName());
+                if (worker != null && !worker.equals(Thread.currentThread().getName())) {
+                    throw new IllegalStateException("flow " + flow + " moved between workers");
+                }
+            }, 256, PacketPump.OverflowPolicy.BLOCK);
+            pump.start();
+            while (pump.getHandledCount() < (long) FLOWS * PACKETS_PER_FLOW && pump.getFailedCount() == 0) {
+                Thread.sleep(10);
+            }
+            pump.close();
+            if (pump.getFailedCount() != 0) {
+                throw new IllegalStateException("handler failed");
+            }
+            System.out.printf("PacketPump OK: %d packets on %d workers%n", pump.getHandledCount(),
+                    workerOfFlow.values().stream().distinct().count());
+        }
+    }
+
+    private static byte[] udpPacket(int flow, int seq) {
+        byte[] packet = new byte[30];
+        packet[0] = 0x45;
+        packet[9] = 17;
+        packet[12] = 10;
+        packet[15] = 1;
+        packet[16] = 10;
+        packet[19] = 2;
+        // source port carries the flow
+        packet[21] = (byte) flow;
+        packet[23] = 53;
+        packet[28] = (byte) (seq >> 8);
+        packet[29] = (byte) seq;
+        return packet;
+    }
+
+}
@@ -0,0 +1,89 @@
+package info.skyblond.jna;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.WinError;
+import com.sun.jna.ptr.IntByReference;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+
+/**
+ * Compares {@link WintunSession#readPacket(int)} with {@link WintunSession#receiveBatch}
+ * on a simulated ring that delivers bursts of packets, no driver needed.
+ */
+public class ReceiveBatchBenchmark {
+
+    private static final int PACKET_SIZE = 1400;
+    private static final int BURST = 64;
+    private static final long PACKETS = 20_000_000L;
+
+    /**
+     * Hands out the same slot {@link #BURST} times, then reports an empty ring once.
+     */
+    private static class BurstWintunLib extends FakeWintunLib {
+        private final Memory slot = new Memory(PACKET_SIZE);
+        private int left = BURST;
+
+        @Override
+        public Pointer WintunReceivePacket(Pointer session, IntByReference packetSize) {
+            if (left == 0) {
+                left = BURST;
+                Native.setLastError(WinError.ERROR_NO_MORE_ITEMS);
+                return null;
+            }
+            left--;
+            packetSize.setValue(PACKET_SIZE);
+            return slot;
+        }
+
+        @Override
+        public void WintunReleaseReceivePacket(Pointer session, Pointer packet) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int round = 0; round < 3; round++) {
+            System.out.printf("round %d: readPacket %.1f Mpps, receiveBatch %.1f Mpps%n", round,
+                    single(), batch());
+        }
+    }
+
+    private static double single() throws Exception {
+        BurstWintunLib lib = new BurstWintunLib();
+        try (WintunSession session = new WintunSession(lib, lib.session, WintunLib.WINTUN_MIN_RING_CAPACITY)) {
+            long sum = 0, packets = 0;
+            long start = System.nanoTime();
+            while (packets < PACKETS) {
+                byte[] packet = session.readPacket(0);
+                if (packet != null) {
+                    sum += packet[0];
+                    packets++;
+                }
+            }
+            return rate(packets, start, sum);
+        }
+    }
+
+    private static double batch() throws Exception {
+        BurstWintunLib lib = new BurstWintunLib();
+        try (WintunSession session = new WintunSession(lib, lib.session, WintunLib.WINTUN_MIN_RING_CAPACITY)) {
+            long[] sum = new long[1];
+            long packets = 0;
+            long start = System.nanoTime();
+            while (packets < PACKETS) {
+                packets += session.receiveBatch(BURST, packet -> sum[0] += packet.get(0), 0);
+            }
+            return rate(packets, start, sum[0]);
+        }
+    }
+
+    private static double rate(long packets, long start, long sum) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (sum == Long.MIN_VALUE) {
+            System.out.println(sum);
+        }
+        return packets / seconds / 1e6;
+    }
+
+}
@@ -0,0 +1,117 @@
+package info.skyblond.jna;
+
+import info.skyblond.jna.wintun.PacketBufferPool;
+import info.skyblond.jna.wintun.SendBackoff;
+import info.skyblond.jna.wintun.SendQueue;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+
+import java.util.List;
+
+import static info.skyblond.jna.Checks.check;
+
+/**
+ * Pushes packets through a {@link SendQueue} while {@link FakeWintunLib} reports
+ * a full ring, and checks nothing is lost or reordered with the PARK policy,
+ * that DROP_TAIL drops instead of blocking, and that offers racing with close
+ * leave no buffer behind. No driver needed.
+ */
+public class SendQueueDemo {
+
+    private static final int PACKETS = 20_000;
+
+    public static void main(String[] args) throws Exception {
+        park();
+        dropTail();
+        closeRace();
+    }
+
+    private static void park() throws Exception {
+        FakeWintunLib lib = new FakeWintunLib();
+        lib.setSendLimit(64);
+        try (WintunSession session = new WintunSession(lib, lib.session, WintunLib.WINTUN_MIN_RING_CAPACITY);
+             SendQueue queue = new SendQueue(session, 128, SendQueue.Policy.PARK)) {
+            Thread drainer = new Thread(() -> {
+                int next = 0;
+                while (next < PACKETS) {
+                    for (byte[] packet : lib.drainSent()) {
+                        int seq = ((packet[0] & 0xff) << 8 | (packet[1] & 0xff)) << 8 | (packet[2] & 0xff);
+                        check(seq == next, "out of order: expect " + next + ", got " + seq);
+                        next++;
+                    }
+                    Thread.yield();
+                }
+            });
+            drainer.start();
+            byte[] packet = new byte[40];
+            for (int seq = 0; seq < PACKETS; seq++) {
+                packet[0] = (byte) (seq >> 16);
+                packet[1] = (byte) (seq >> 8);
+                packet[2] = (byte) seq;
+                check(queue.offer(packet, 0, packet.length), "PARK dropped a packet");
+            }
+            drainer.join();
+            check(queue.getSentCount() == PACKETS, "sent " + queue.getSentCount());
+            check(queue.getDroppedCount() == 0, "dropped " + queue.getDroppedCount());
+            System.out.printf("SendQueue PARK OK: %d packets, ring full %d times%n",
+                    queue.getSentCount(), queue.getRingFullCount());
+        }
+    }
+
+    private static void dropTail() throws Exception {
+        FakeWintunLib lib = new FakeWintunLib();
+        lib.setSendLimit(8);
+        try (WintunSession session = new WintunSession(lib, lib.session, WintunLib.WINTUN_MIN_RING_CAPACITY);
+             SendQueue queue = new SendQueue(session, 16, SendQueue.Policy.DROP_TAIL)) {
+            int accepted = 0;
+            for (int i = 0; i < 100; i++) {
+                if (queue.offer(new byte[40])) {
+                    accepted++;
+                }
+            }
+            // nobody drains, so at most the ring, the queue and the one in hand get through
+            check(accepted <= 8 + 16 + 1, "accepted " + accepted);
+            check(queue.getDroppedCount() == 100 - accepted, "dropped " + queue.getDroppedCount());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (queue.getSentCount() < 8 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            List<byte[]> sent = lib.drainSent();
+            check(sent.size() == 8, "sent " + sent.size());
+            System.out.printf("SendQueue DROP_TAIL OK: %d accepted, %d dropped%n",
+                    accepted, queue.getDroppedCount());
+        }
+    }
+
+    private static void closeRace() throws Exception {
+        FakeWintunLib lib = new FakeWintunLib();
+        lib.setSendLimit(0);
+        PacketBufferPool pool = new PacketBufferPool();
+        try (WintunSession session = new WintunSession(lib, lib.session, WintunLib.WINTUN_MIN_RING_CAPACITY)) {
+            for (int round = 0; round < 200; round++) {
+                SendQueue queue = new SendQueue(session, 16, SendQueue.Policy.DROP_TAIL,
+                        SendBackoff.DEFAULT_MAX_NANOS, pool);
+                Thread[] offers = new Thread[4];
+                for (int i = 0; i < offers.length; i++) {
+                    offers[i] = new Thread(() -> {
+                        try {
+                            while (!queue.isClosed()) {
+                                queue.offer(new byte[40]);
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace(System.err);
+                        }
+                    });
+                    offers[i].start();
+                }
+                queue.close();
+                for (Thread offer : offers) {
+                    offer.join();
+                }
+            }
+        }
+        long inUse = pool.stats().stream().mapToLong(PacketBufferPool.SizeClassStats::getInUse).sum();
+        check(inUse == 0, inUse + " buffers left in use by closed queues");
+        System.out.println("SendQueue close race OK");
+    }
+}
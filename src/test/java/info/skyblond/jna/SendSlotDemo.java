@@ -0,0 +1,57 @@
+package info.skyblond.jna;
+
+import info.skyblond.jna.wintun.SendSlot;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static info.skyblond.jna.Checks.check;
+
+/**
+ * Runs the send paths against {@link FakeWintunLib}, no driver needed.
+ */
+public class SendSlotDemo {
+
+    public static void main(String[] args) throws Exception {
+        FakeWintunLib lib = new FakeWintunLib();
+        try (WintunSession session = new WintunSession(lib, lib.session, WintunLib.WINTUN_MIN_RING_CAPACITY)) {
+            // a slice must allocate exactly its own length
+            session.writePacket(new byte[]{9, 0x45, 1, 2, 9}, 1, 3);
+
+            try (SendSlot slot = session.allocateSend(2)) {
+                slot.getBuffer().put((byte) 0x60).put((byte) 7);
+                slot.send();
+            }
+
+            try (SendSlot ignored = session.allocateSend(4)) {
+                // never sent: closed as a discarded packet
+                ignored.getBuffer().put(0, (byte) 0x45);
+            }
+
+            int sent = session.sendBatch(new int[]{1, 2, 3}, 3, (index, packet) -> {
+                while (packet.hasRemaining()) {
+                    packet.put((byte) index);
+                }
+            });
+            check(sent == 3, "batch not fully sent");
+
+            session.reserveSend(5).put(0, (byte) 0x45);
+            session.commitSend(true);
+
+            // discarded slots go through the ring but are not counted as sent
+            check(session.getMetrics().getPacketsOut() == 5, "5 packets counted, got " + session.getMetrics().getPacketsOut());
+            check(session.getMetrics().getBytesOut() == 11, "11 bytes counted, got " + session.getMetrics().getBytesOut());
+
+            List<byte[]> packets = lib.getSent();
+            check(packets.size() == 7, "7 packets expected, got " + packets.size());
+            check(Arrays.equals(packets.get(0), new byte[]{0x45, 1, 2}), "slice mismatch");
+            check(Arrays.equals(packets.get(1), new byte[]{0x60, 7}), "slot mismatch");
+            check(packets.get(2).length == 4 && packets.get(2)[0] == 0, "discarded slot must be invalid");
+            check(Arrays.equals(packets.get(5), new byte[]{2, 2, 2}), "batch order mismatch");
+            check(packets.get(6).length == 5 && packets.get(6)[0] == 0, "discarded reservation must be invalid");
+            System.out.println("SendSlot OK");
+        }
+    }
+}
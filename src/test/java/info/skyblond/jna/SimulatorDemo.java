@@ -0,0 +1,153 @@
+package info.skyblond.jna;
+
+import info.skyblond.jna.wintun.IoStatus;
+import info.skyblond.jna.wintun.NativeException;
+import info.skyblond.jna.wintun.ReceiveWaitStrategy;
+import info.skyblond.jna.wintun.SessionPoller;
+import info.skyblond.jna.wintun.WintunAdapter;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+import info.skyblond.jna.wintun.WintunSimulator;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static info.skyblond.jna.Checks.check;
+
+/**
+ * Runs a {@link WintunAdapter} on top of {@link WintunSimulator}: checks the ring
+ * rules, then echoes traffic injected at a fixed rate through a session waiting
+ * on the read event, and prints the throughput. Runs anywhere, no driver needed.
+ */
+public class SimulatorDemo {
+
+    public static void main(String[] args) throws Exception {
+        WintunSimulator simulator = new WintunSimulator();
+        rings(simulator);
+        echo(simulator, 200_000);
+        echo(simulator, 0);
+        poller(simulator);
+    }
+
+    private static void rings(WintunSimulator simulator) throws Exception {
+        try (WintunAdapter adapter = new WintunAdapter("rings", "Wintun", null, simulator);
+             WintunSession session = adapter.newSession(WintunLib.WINTUN_MIN_RING_CAPACITY)) {
+            WintunSimulator.SimulatedAdapter os = simulator.adapter("rings");
+            check(os != null, "adapter not found");
+            try {
+                adapter.newSession(WintunLib.WINTUN_MIN_RING_CAPACITY);
+                check(false, "second session started");
+            } catch (NativeException expected) {
+                // one session per adapter
+            }
+
+            // a full receive ring drops what the OS injects
+            byte[] packet = new byte[1500];
+            int injected = 0;
+            while (os.inject(packet)) {
+                injected++;
+            }
+            // 4 bytes of header each, and a ring is never filled up to the last 4 bytes
+            check(injected == (WintunLib.WINTUN_MIN_RING_CAPACITY - 4) / 1504, "injected " + injected);
+            check(os.getDroppedCount() == 1, "dropped " + os.getDroppedCount());
+            ByteBuffer buffer = ByteBuffer.allocate(WintunLib.WINTUN_MAX_IP_PACKET_SIZE);
+            for (int i = 0; i < injected; i++) {
+                buffer.clear();
+                check(session.readPacket(buffer, 0) == IoStatus.OK, "read " + i);
+            }
+            check(session.readPacket(buffer, 0) == IoStatus.EMPTY, "ring not empty");
+
+            // a full send ring refuses to allocate until the OS consumes
+            int sent = 0;
+            while (session.writePacket(ByteBuffer.wrap(packet)) == IoStatus.OK) {
+                sent++;
+            }
+            check(sent > 0 && os.consume() != null, "nothing sent");
+            check(session.writePacket(ByteBuffer.wrap(packet)) == IoStatus.OK, "no room after consume");
+            int consumed = 1;
+            while (os.consume() != null) {
+                consumed++;
+            }
+            check(consumed == sent + 1, "consumed " + consumed + ", sent " + sent);
+
+            // closing the adapter ends reads
+            os.inject(packet);
+            adapter.close();
+            buffer.clear();
+            check(session.readPacket(buffer, 0) == IoStatus.EOF, "no EOF after close");
+        }
+        System.out.println("Rings OK");
+    }
+
+    private static void echo(WintunSimulator simulator, long packetsPerSecond) throws Exception {
+        String name = "echo-" + packetsPerSecond;
+        try (WintunAdapter adapter = new WintunAdapter(name, "Wintun", null, simulator);
+             WintunSession session = adapter.newSession(WintunLib.WINTUN_MIN_RING_CAPACITY * 8)) {
+            session.setWaitStrategy(ReceiveWaitStrategy.eventWait());
+            WintunSimulator.SimulatedAdapter os = simulator.adapter(name);
+            // the OS side drops what doesn't fit, so there are gaps, but never reordering
+            AtomicLong last = new AtomicLong(-1);
+            os.startConsuming(0, packet -> {
+                long seq = packet.getLong(0);
+                check(seq > last.getAndSet(seq), "out of order: " + seq);
+            });
+            os.startInjecting(packetsPerSecond, (sequence, packet) -> {
+                packet.putLong(sequence);
+                packet.position(64 + (int) (sequence % 1400));
+            });
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WintunLib.WINTUN_MAX_IP_PACKET_SIZE);
+            long start = System.nanoTime();
+            long echoed = 0;
+            long bytes = 0;
+            while (System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1)) {
+                buffer.clear();
+                IoStatus status = session.readPacket(buffer, 100);
+                if (status == IoStatus.EMPTY) {
+                    continue;
+                }
+                check(status == IoStatus.OK, "read " + status);
+                buffer.flip();
+                bytes += buffer.remaining();
+                while (session.writePacket(buffer) == IoStatus.OVERFLOW) {
+                    Thread.yield();
+                }
+                echoed++;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            os.stopTraffic();
+            System.out.printf("Echo at %s: %.0f packets/s, %.1f MB/s, %d dropped by the ring, %d event waits%n",
+                    packetsPerSecond == 0 ? "full speed" : packetsPerSecond + " packets/s",
+                    echoed / seconds, bytes / seconds / 1e6, os.getDroppedCount(),
+                    session.getMetrics().getEventWaits().sum());
+            check(echoed > 0, "nothing echoed");
+        }
+    }
+
+    private static void poller(WintunSimulator simulator) throws Exception {
+        BlockingQueue<SessionPoller.PollKey> ready = new LinkedBlockingQueue<>();
+        BlockingQueue<SessionPoller.PollKey> failed = new LinkedBlockingQueue<>();
+        try (WintunAdapter adapter = new WintunAdapter("poller", "Wintun", null, simulator);
+             WintunSession session = adapter.newSession(WintunLib.WINTUN_MIN_RING_CAPACITY);
+             WintunAdapter brokenAdapter = new WintunAdapter("poller-broken", "Wintun", null, simulator);
+             WintunSession broken = brokenAdapter.newSession(WintunLib.WINTUN_MIN_RING_CAPACITY);
+             SessionPoller poller = new SessionPoller((key, cause) -> failed.add(key))) {
+            SessionPoller.PollKey key = poller.register(session, ready::add);
+            SessionPoller.PollKey brokenKey = poller.register(broken, ready::add);
+            simulator.adapter("poller").inject(new byte[60]);
+            check(ready.poll(1, TimeUnit.SECONDS) == key, "poller not notified");
+
+            // one bad handle must not take the shard down, it shows on the next wait
+            simulator.adapter("poller-broken").closeReadEvent();
+            session.readPacket(0);
+            key.arm();
+            check(failed.poll(1, TimeUnit.SECONDS) == brokenKey, "failed session not reported");
+            check(brokenKey.isCancelled(), "failed session still registered");
+            simulator.adapter("poller").inject(new byte[60]);
+            check(ready.poll(1, TimeUnit.SECONDS) == key, "poller stopped after a session failed");
+        }
+        System.out.println("Poller OK");
+    }
+}
@@ -0,0 +1,59 @@
+package info.skyblond.jna;
+
+import com.sun.jna.platform.win32.WinBase;
+import info.skyblond.jna.wintun.ReceiveWaitStrategy;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+
+import static info.skyblond.jna.Checks.check;
+
+/**
+ * Runs the spinning receive path against {@link FakeWintunLib}, no driver needed.
+ * Event waits need the real read event, see {@link WintunDemo}.
+ */
+public class WaitStrategyDemo {
+
+    public static void main(String[] args) throws Exception {
+        FakeWintunLib lib = new FakeWintunLib();
+        try (WintunSession session = new WintunSession(lib, lib.session, WintunLib.WINTUN_MIN_RING_CAPACITY)) {
+            ReceiveWaitStrategy strategy = ReceiveWaitStrategy.busySpin();
+            session.setWaitStrategy(strategy);
+
+            long start = System.nanoTime();
+            check(session.readPacket(50) == null, "empty ring expected");
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            check(elapsedMs >= 50 && elapsedMs < 500, "timeout not honored: " + elapsedMs + "ms");
+
+            lib.inject(new byte[]{0x45});
+            check(session.readPacket(0) != null, "ready packet expected");
+
+            Thread producer = new Thread(() -> {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ignored) {
+                }
+                lib.inject(new byte[]{0x45, 1});
+            });
+            producer.start();
+            byte[] packet = session.readPacket(1000);
+            producer.join();
+            check(packet != null && packet.length == 2, "spun packet expected");
+
+            Thread waker = new Thread(() -> {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ignored) {
+                }
+                session.wakeup();
+            });
+            waker.start();
+            check(session.readPacket(WinBase.INFINITE) == null, "wakeup must end an infinite wait");
+            waker.join();
+
+            check(strategy.getReadyHitCount() == 1, "1 ready hit expected");
+            check(strategy.getSpinHitCount() == 1, "1 spin hit expected");
+            check(strategy.getWakeHitCount() == 0, "busy spin never wakes");
+            System.out.println("WaitStrategy OK");
+        }
+    }
+}
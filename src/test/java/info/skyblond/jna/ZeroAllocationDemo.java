@@ -0,0 +1,86 @@
+package info.skyblond.jna;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.WinError;
+import com.sun.jna.ptr.IntByReference;
+import info.skyblond.jna.wintun.IoStatus;
+import info.skyblond.jna.wintun.WintunDataPlane;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that the status-code read and write calls allocate nothing per packet,
+ * using a fake that implements {@link WintunDataPlane} itself, like the direct binding.
+ */
+public class ZeroAllocationDemo {
+
+    private static final int PACKET_SIZE = 1400;
+    private static final int PACKETS = 1_000_000;
+
+    /**
+     * A packet is ready every other poll, sends go into one reused slot.
+     */
+    private static class AlternatingWintunLib extends FakeWintunLib implements WintunDataPlane {
+        private final Memory slot = new Memory(WintunLib.WINTUN_MAX_IP_PACKET_SIZE);
+        private boolean ready;
+
+        @Override
+        public long receivePacket(long session, @NotNull IntByReference packetSize) {
+            ready = !ready;
+            if (!ready) {
+                Native.setLastError(WinError.ERROR_NO_MORE_ITEMS);
+                return 0;
+            }
+            packetSize.setValue(PACKET_SIZE);
+            return Pointer.nativeValue(slot);
+        }
+
+        @Override
+        public void releaseReceivePacket(long session, long packet) {
+        }
+
+        @Override
+        public long allocateSendPacket(long session, int packetSize) {
+            return Pointer.nativeValue(slot);
+        }
+
+        @Override
+        public void sendPacket(long session, long packet) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        AlternatingWintunLib lib = new AlternatingWintunLib();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        try (WintunSession session = new WintunSession(lib, lib.session, WintunLib.WINTUN_MIN_RING_CAPACITY)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WintunLib.WINTUN_MAX_IP_PACKET_SIZE);
+            for (int round = 0; round < 3; round++) {
+                long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                int ok = 0, empty = 0;
+                for (int i = 0; i < PACKETS; i++) {
+                    buffer.clear();
+                    IoStatus status = session.readPacket(buffer, 0);
+                    if (status == IoStatus.OK) {
+                        ok++;
+                        buffer.flip();
+                        if (session.writePacket(buffer) != IoStatus.OK) {
+                            throw new IllegalStateException("write failed");
+                        }
+                    } else if (status == IoStatus.EMPTY) {
+                        empty++;
+                    }
+                }
+                long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+                System.out.printf("round %d: %d packets, %d empty polls, %.3f bytes allocated per packet%n",
+                        round, ok, empty, (double) allocated / ok);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.ReceiveWaitStrategy;
+import info.skyblond.jna.wintun.WintunAdapter;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+import info.skyblond.jna.wintun.WintunSimulator;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static info.skyblond.jna.Checks.check;
+
+/**
+ * Runs {@link CompressingTransport} over {@link EchoServer} with a simulated adapter,
+ * on a mix of text, random, TLS and small packets: every packet must come back
+ * as it was sent, only the text ones compressed, and the transport must refuse
+ * packets once closed. Prints the ratio and the CPU cost per packet. No driver needed.
+ */
+public class CompressionDemo {
+
+    private static final int FLOWS = 16;
+
+    public static void main(String[] args) throws Exception {
+        WintunSimulator simulator = new WintunSimulator();
+        try (EchoServer server = new EchoServer()) {
+            WintunVpn vpn = new WintunVpn(server.getAddress());
+            TunnelMetrics metrics = vpn.getMetrics();
+            TunnelTransport.Factory factory = CompressingTransport.factory(
+                    ChannelTransport.factory(ChannelTransport.Mode.BLOCKING));
+            try (WintunAdapter adapter = new WintunAdapter("compress", "Wintun", null, simulator);
+                 WintunSession session = adapter.newSession(WintunLib.WINTUN_MIN_RING_CAPACITY * 64);
+                 TunnelTransport transport = factory.connect(server.getAddress(), 1000, WintunVpn.DEFAULT_CODEC, metrics)) {
+                check((transport.handshakeFlags() & CompressingTransport.HANDSHAKE_FLAG) != 0, "handshake flag");
+                session.setWaitStrategy(ReceiveWaitStrategy.spinYieldPark());
+                transport.writeRaw(new byte[]{(byte) (0x3 | transport.handshakeFlags())});
+                WintunSimulator.SimulatedAdapter os = simulator.adapter("compress");
+                ByteBuffer expected = ByteBuffer.allocate(WintunLib.WINTUN_MAX_IP_PACKET_SIZE);
+                long[] checked = {0};
+                os.startConsuming(0, packet -> {
+                    long sequence = packet.getLong(24);
+                    expected.clear();
+                    packet(sequence, expected);
+                    expected.flip();
+                    check(packet.equals(expected), "packet " + sequence + " changed on the way");
+                    checked[0]++;
+                });
+                os.startInjecting(50_000, CompressionDemo::packet);
+                Thread down = new Thread(() -> {
+                    try {
+                        while (transport.readFramesInto(session, WintunLib.WINTUN_MAX_IP_PACKET_SIZE)) {
+                        }
+                    } catch (Exception ignored) {
+                        // closed at the end
+                    }
+                });
+                down.start();
+                Thread up = new Thread(() -> {
+                    try {
+                        vpn.forwardUp(session, transport);
+                    } catch (Exception e) {
+                        e.printStackTrace(System.err);
+                    }
+                });
+                up.start();
+                Thread.sleep(TimeUnit.SECONDS.toMillis(2));
+                vpn.stop();
+                session.wakeup();
+                up.join();
+                os.stopTraffic();
+                transport.close();
+                down.join();
+
+                long compressed = metrics.compressedUp.sum();
+                System.out.printf("%d packets back, %d compressed, %d skipped, %d decompressed, %d failed%n",
+                        checked[0], compressed, metrics.compressionSkipped.sum(),
+                        metrics.decompressedDown.sum(), metrics.decompressFailures.sum());
+                double ratio = metrics.compressionBytesOut.sum() / (double) metrics.compressionBytesIn.sum();
+                System.out.printf("Ratio %.3f, %.0f ns per packet to compress, %.0f ns to decompress%n", ratio,
+                        metrics.compressNanos.getSumOfValues() / (double) metrics.compressNanos.getCount(),
+                        metrics.decompressNanos.getSumOfValues() / (double) metrics.decompressNanos.getCount());
+                check(checked[0] > 0, "nothing came back");
+                check(compressed > 0, "nothing compressed");
+                // a quarter of the packets are text
+                check(compressed <= metrics.framesUp.sum() / 4 + 1, "compressed what should be skipped");
+                check(metrics.decompressFailures.sum() == 0, "decompress failures");
+                check(metrics.compressNanos.getCount() == compressed, "compress time recorded for skipped packets");
+                check(ratio < 0.5, "ratio " + ratio);
+
+                ByteBuffer late = ByteBuffer.allocate(800);
+                packet(0, late);
+                late.flip();
+                boolean refused = false;
+                try {
+                    transport.writeFrame(late);
+                } catch (ClosedChannelException e) {
+                    refused = true;
+                }
+                check(refused, "packet compressed after close");
+            }
+        }
+        System.out.println("Compression OK");
+    }
+
+    /**
+     * Text to port 80, random bytes, text to port 443, then a small text packet, in turn.
+     */
+    private static void packet(long sequence, ByteBuffer packet) {
+        int kind = (int) (sequence % 4);
+        int flow = (int) (sequence / 4 % FLOWS);
+        int size = kind == 3 ? 100 : 800;
+        packet.put(0, (byte) 0x45);
+        packet.put(9, (byte) 6);
+        packet.putInt(12, 0x0a010a01);
+        packet.putInt(16, 0x0a000001);
+        packet.putShort(20, (short) (40000 + flow));
+        packet.putShort(22, (short) (kind == 2 ? 443 : kind == 1 ? 9000 : 80));
+        packet.putLong(24, sequence);
+        if (kind == 1) {
+            long x = sequence * 0x9E3779B97F4A7C15L + 1;
+            for (int i = 40; i < size; i++) {
+                x ^= x << 13;
+                x ^= x >>> 7;
+                x ^= x << 17;
+                packet.put(i, (byte) x);
+            }
+        } else {
+            byte[] text = ("GET /flow/" + flow + "/item?id=" + sequence + " HTTP/1.1\r\nHost: example.com\r\n"
+                    + "Accept: text/html,application/xhtml+xml\r\nUser-Agent: Mozilla/5.0\r\n"
+                    + "Accept-Language: en-US,en;q=0.9\r\nConnection: keep-alive\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            for (int i = 40; i < size; i++) {
+                packet.put(i, text[(i - 40) % text.length]);
+            }
+        }
+        packet.position(size);
+    }
+}
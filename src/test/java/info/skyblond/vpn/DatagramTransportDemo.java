@@ -0,0 +1,125 @@
+package info.skyblond.vpn;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static info.skyblond.jna.Checks.check;
+
+/**
+ * Checks {@link DatagramTransport} against a peer sending crafted datagrams:
+ * the handshake is sent again until the peer answers, frames come out decoded,
+ * gaps and late datagrams are counted, duplicates are not, a truncated datagram
+ * is dropped, and an idle transport sends keepalives. No driver needed.
+ */
+public class DatagramTransportDemo {
+
+    private static final long KEEPALIVE_MILLIS = 50;
+
+    public static void main(String[] args) throws Exception {
+        try (DatagramChannel server = DatagramChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            TunnelMetrics metrics = new TunnelMetrics();
+            try (TunnelTransport transport = DatagramTransport.factory(KEEPALIVE_MILLIS)
+                    .connect((InetSocketAddress) server.getLocalAddress(), 1000, WintunVpn.DEFAULT_CODEC, metrics)) {
+                transport.writeRaw(new byte[]{0x3});
+                ByteBuffer buffer = ByteBuffer.allocate(65535);
+                InetSocketAddress client = (InetSocketAddress) server.receive(buffer);
+                check(buffer.position() == 1 && buffer.get(0) == 0x3, "handshake");
+
+                // no answer yet, the downstream thread sends it again while it waits
+                List<String> frames = new ArrayList<>();
+                TunnelTransport.FrameHandler collect = packet -> {
+                    byte[] bytes = new byte[packet.remaining()];
+                    packet.get(bytes);
+                    frames.add(new String(bytes, "UTF-8"));
+                };
+                Thread first = new Thread(() -> {
+                    try {
+                        transport.readFrames(collect);
+                    } catch (Exception e) {
+                        e.printStackTrace(System.err);
+                    }
+                });
+                first.start();
+                long start = System.nanoTime();
+                do {
+                    buffer.clear();
+                    server.receive(buffer);
+                    // keepalives go meanwhile
+                } while (buffer.position() == 4);
+                System.out.printf("Handshake again after %d ms%n", (System.nanoTime() - start) / 1_000_000);
+                check(buffer.position() == 1 && buffer.get(0) == 0x3, "handshake not sent again");
+
+                // 2 is late, 4 never comes, 1 and 2 twice
+                int[] sequences = {0, 1, 3, 2, 5, 1, 2};
+                for (int sequence : sequences) {
+                    server.send(datagram(sequence, "a" + sequence, "b" + sequence), client);
+                }
+                server.send(ByteBuffer.wrap(new byte[]{0, 0, 0, 6, 0, 9, 1}), client);
+
+                first.join();
+                while (frames.size() < 2 * sequences.length || metrics.datagramsMalformed.sum() == 0) {
+                    transport.readFrames(collect);
+                }
+                System.out.println("Frames: " + frames);
+                check(frames.size() == 2 * sequences.length, "frames " + frames);
+                for (int i = 0; i < sequences.length; i++) {
+                    check(frames.get(2 * i).equals("a" + sequences[i]), "frame " + frames.get(2 * i));
+                    check(frames.get(2 * i + 1).equals("b" + sequences[i]), "frame " + frames.get(2 * i + 1));
+                }
+                System.out.printf("Lost %d, reordered %d, malformed %d%n", metrics.datagramsLost.sum(),
+                        metrics.datagramsReordered.sum(), metrics.datagramsMalformed.sum());
+                check(metrics.datagramsLost.sum() == 1, "lost");
+                check(metrics.datagramsReordered.sum() == 1, "reordered");
+                check(metrics.datagramsMalformed.sum() == 1, "malformed");
+
+                // nothing to send, the downstream thread sends keepalives while it waits,
+                // without the ones from before
+                server.configureBlocking(false);
+                do {
+                    buffer.clear();
+                } while (server.receive(buffer) != null);
+                server.configureBlocking(true);
+                Thread down = new Thread(() -> {
+                    try {
+                        while (transport.readFrames(packet -> {
+                        })) {
+                        }
+                    } catch (Exception ignored) {
+                        // closed at the end
+                    }
+                });
+                down.start();
+                start = System.nanoTime();
+                for (int i = 0; i < 3; i++) {
+                    buffer.clear();
+                    server.receive(buffer);
+                    check(buffer.position() == 4, "keepalive of " + buffer.position() + " bytes");
+                }
+                long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+                System.out.printf("3 keepalives in %d ms%n", elapsedMillis);
+                check(elapsedMillis >= 2 * KEEPALIVE_MILLIS, "keepalives too often");
+                transport.close();
+                down.join();
+                check(metrics.keepalives.sum() >= 3, "keepalives not counted");
+            }
+        }
+        System.out.println("DatagramTransport OK");
+    }
+
+    private static ByteBuffer datagram(int sequence, String... payloads) throws Exception {
+        ByteBuffer datagram = ByteBuffer.allocate(1472);
+        datagram.putInt(sequence);
+        for (String payload : payloads) {
+            byte[] bytes = payload.getBytes("UTF-8");
+            WintunVpn.DEFAULT_CODEC.encode(bytes, 0, bytes.length);
+            datagram.putShort((short) bytes.length).put(bytes);
+        }
+        datagram.flip();
+        return datagram;
+    }
+}
@@ -0,0 +1,164 @@
+package info.skyblond.vpn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Stands in for the VPN server on loopback: reads the handshake, then sends
+ * every byte back, so upstream frames come back as downstream frames.
+ * <p>
+ * Frames are told apart by their 2-byte length header, only to know where one
+ * ends when asked to {@link #stallConnection()}.
+ */
+public class EchoServer implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final Queue<Socket> sockets = new ConcurrentLinkedQueue<>();
+    private volatile Socket stalled;
+    private volatile boolean rejecting;
+
+    public EchoServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * @param port 0 for any, or the one of a server closed before, to stand in for it coming back
+     */
+    public EchoServer(int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 50);
+        acceptor = new Thread(this::accept, "echo-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (rejecting) {
+                    socket.close();
+                    continue;
+                }
+                sockets.add(socket);
+                Thread echo = new Thread(() -> echo(socket), "echo-" + socket.getPort());
+                echo.setDaemon(true);
+                echo.start();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void echo(Socket socket) {
+        try (Socket ignored = socket;
+             InputStream input = socket.getInputStream();
+             OutputStream output = socket.getOutputStream()) {
+            DataInputStream handshake = new DataInputStream(input);
+            int osType = handshake.readUnsignedByte();
+            if ((osType & 0x80) != 0) {
+                handshake.readUTF();
+            }
+            byte[] buffer = new byte[256 * 1024];
+            // stream offsets of buffer[0] and of the next frame header
+            long offset = 0;
+            long nextFrame = 0;
+            // last byte of the previous read, for a header split across reads
+            int previousLast = 0;
+            ByteArrayOutputStream held = null;
+            int n;
+            while ((n = input.read(buffer)) > 0) {
+                int written = 0;
+                while (nextFrame + 1 < offset + n) {
+                    int at = (int) (nextFrame - offset);
+                    int high = at < 0 ? previousLast : buffer[at] & 0xff;
+                    int length = high << 8 | buffer[at + 1] & 0xff;
+                    if (held == null && length > 0 && at + 2 < n && stalled == socket) {
+                        // the header and one byte of the payload, the rest waits
+                        output.write(buffer, 0, at + 3);
+                        written = at + 3;
+                        held = new ByteArrayOutputStream();
+                    }
+                    nextFrame += 2 + length;
+                }
+                if (held != null) {
+                    // keep reading while stalled, so the client can still write
+                    held.write(buffer, written, n - written);
+                    if (stalled != socket) {
+                        held.writeTo(output);
+                        held = null;
+                    }
+                } else {
+                    output.write(buffer, 0, n);
+                }
+                previousLast = buffer[n - 1] & 0xff;
+                offset += n;
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Stop echoing on the newest connection still open, in the middle of a frame,
+     * without closing it, like a slow path. What comes in meanwhile is held until
+     * {@link #resumeConnection()}.
+     */
+    public void stallConnection() {
+        Socket newest = null;
+        for (Socket socket : sockets) {
+            newest = socket;
+        }
+        stalled = newest;
+    }
+
+    /**
+     * Send what a stalled connection held back, once the client writes to it again.
+     */
+    public void resumeConnection() {
+        stalled = null;
+    }
+
+    /**
+     * Close the oldest connection still open, like a server or path failing.
+     */
+    public void dropConnection() throws IOException {
+        Socket socket = sockets.poll();
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Accept new connections only to close them at once, like a server that is
+     * up but overloaded or misconfigured, or go back to echoing.
+     */
+    public void setRejecting(boolean rejecting) {
+        this.rejecting = rejecting;
+    }
+
+    /**
+     * Stop accepting, and close the connections still open.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        Socket socket;
+        while ((socket = sockets.poll()) != null) {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.ReceiveWaitStrategy;
+import info.skyblond.jna.wintun.WintunAdapter;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+import info.skyblond.jna.wintun.WintunSimulator;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.util.concurrent.TimeUnit;
+
+import static info.skyblond.jna.Checks.check;
+
+/**
+ * Runs {@link EncryptingTransport} over {@link EchoServer} with a simulated adapter:
+ * with the echo, the send key is also the receive key, every packet must come back
+ * whole and in order. With another receive key, nothing must. No driver needed.
+ */
+public class EncryptionDemo {
+
+    private static final int PACKET_SIZE = 1400;
+    private static final int WORKERS = 4;
+
+    public static void main(String[] args) throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        SecretKey key = generator.generateKey();
+
+        TunnelMetrics metrics = run(key, key);
+        System.out.printf("Same key: %d packets back, %d failed%n",
+                metrics.framesDown.sum(), metrics.cryptoFailures.sum());
+        check(metrics.framesDown.sum() > 0, "nothing came back");
+        check(metrics.cryptoFailures.sum() == 0, "failures with the right key");
+
+        metrics = run(key, generator.generateKey());
+        System.out.printf("Wrong key: %d frames back, %d failed%n",
+                metrics.framesDown.sum(), metrics.cryptoFailures.sum());
+        check(metrics.cryptoFailures.sum() > 0, "wrong key not noticed");
+        System.out.println("Encryption OK");
+    }
+
+    private static TunnelMetrics run(SecretKey sendKey, SecretKey receiveKey) throws Exception {
+        WintunSimulator simulator = new WintunSimulator();
+        try (EchoServer server = new EchoServer()) {
+            WintunVpn vpn = new WintunVpn(server.getAddress());
+            TunnelMetrics metrics = vpn.getMetrics();
+            TunnelTransport.Factory factory = EncryptingTransport.factory(
+                    ChannelTransport.factory(ChannelTransport.Mode.BLOCKING), sendKey, receiveKey, WORKERS);
+            try (WintunAdapter adapter = new WintunAdapter("encrypt", "Wintun", null, simulator);
+                 WintunSession session = adapter.newSession(WintunLib.WINTUN_MIN_RING_CAPACITY * 64);
+                 TunnelTransport transport = factory.connect(server.getAddress(), 1000, WintunVpn.DEFAULT_CODEC, metrics)) {
+                session.setWaitStrategy(ReceiveWaitStrategy.spinYieldPark());
+                transport.writeRaw(new byte[]{(byte) (0x3 | transport.handshakeFlags())});
+                WintunSimulator.SimulatedAdapter os = simulator.adapter("encrypt");
+                long[] expected = {0};
+                os.startConsuming(0, packet -> {
+                    check(packet.remaining() == PACKET_SIZE, "size " + packet.remaining());
+                    long seq = packet.getLong(0);
+                    check(seq >= expected[0], "out of order: " + seq);
+                    for (int i = 8; i < PACKET_SIZE; i++) {
+                        check(packet.get(i) == (byte) (seq + i), "packet " + seq + " changed on the way");
+                    }
+                    expected[0] = seq + 1;
+                });
+                os.startInjecting(0, (sequence, packet) -> {
+                    packet.putLong(sequence);
+                    for (int i = 8; i < PACKET_SIZE; i++) {
+                        packet.put((byte) (sequence + i));
+                    }
+                });
+                Thread down = new Thread(() -> {
+                    try {
+                        while (transport.readFramesInto(session, WintunLib.WINTUN_MAX_IP_PACKET_SIZE)) {
+                        }
+                    } catch (Exception ignored) {
+                        // closed at the end
+                    }
+                });
+                down.start();
+                Thread up = new Thread(() -> {
+                    try {
+                        vpn.forwardUp(session, transport);
+                    } catch (Exception e) {
+                        e.printStackTrace(System.err);
+                    }
+                });
+                up.start();
+                Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+                vpn.stop();
+                session.wakeup();
+                up.join();
+                os.stopTraffic();
+                transport.close();
+                down.join();
+            }
+            return metrics;
+        }
+    }
+}
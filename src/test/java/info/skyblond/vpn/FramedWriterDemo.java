@@ -0,0 +1,113 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.ReceiveWaitStrategy;
+import info.skyblond.jna.wintun.WintunAdapter;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+import info.skyblond.jna.wintun.WintunSimulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static info.skyblond.jna.Checks.check;
+
+/**
+ * Runs the upstream loop of {@link WintunVpn} over {@link WintunSimulator}:
+ * a burst must leave in few writes and come out as the same frames,
+ * and a lone packet must be written right away. No driver needed.
+ */
+public class FramedWriterDemo {
+
+    private static final int BURST = 5000;
+
+    public static void main(String[] args) throws Exception {
+        WintunSimulator simulator = new WintunSimulator();
+        WintunVpn vpn = new WintunVpn(new InetSocketAddress("127.0.0.1", 1));
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        AtomicInteger writes = new AtomicInteger();
+        OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) {
+                throw new UnsupportedOperationException("single byte write");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writes.incrementAndGet();
+                written.write(b, off, len);
+            }
+        };
+        try (WintunAdapter adapter = new WintunAdapter("framed", "Wintun", null, simulator);
+             WintunSession session = adapter.newSession(WintunLib.WINTUN_MIN_RING_CAPACITY * 32)) {
+            session.setWaitStrategy(ReceiveWaitStrategy.eventWait());
+            WintunSimulator.SimulatedAdapter os = simulator.adapter("framed");
+            // all in the ring before the loop starts, like a burst under load
+            for (int seq = 0; seq < BURST; seq++) {
+                check(os.inject(packet(seq)), "ring full");
+            }
+            TunnelTransport transport = new StreamTransport(() -> {
+            }, new ByteArrayInputStream(new byte[0]), output, WintunVpn.DEFAULT_CODEC, vpn.getMetrics());
+            Thread loop = new Thread(() -> {
+                try {
+                    vpn.forwardUp(session, transport);
+                } catch (Exception e) {
+                    e.printStackTrace(System.err);
+                }
+            });
+            loop.start();
+            waitForFrames(vpn, BURST);
+            int burstWrites = writes.get();
+            System.out.printf("Burst: %d frames in %d writes%n", BURST, burstWrites);
+            check(burstWrites < BURST / 10, "not coalesced: " + burstWrites + " writes");
+
+            DataInputStream frames = new DataInputStream(new ByteArrayInputStream(written.toByteArray()));
+            for (int seq = 0; seq < BURST; seq++) {
+                byte[] expected = packet(seq);
+                int length = frames.readUnsignedShort();
+                check(length == expected.length, "length of " + seq);
+                byte[] frame = new byte[length];
+                frames.readFully(frame);
+                WintunVpn.DEFAULT_CODEC.decode(frame, 0, length);
+                check(java.util.Arrays.equals(frame, expected), "frame " + seq);
+            }
+
+            long start = System.nanoTime();
+            os.inject(packet(BURST));
+            while (writes.get() == burstWrites) {
+                check(System.nanoTime() - start < 5_000_000_000L, "lone packet not written");
+                Thread.yield();
+            }
+            System.out.printf("Lone packet written after %d us%n", (System.nanoTime() - start) / 1000);
+            waitForFrames(vpn, BURST + 1);
+            check(writes.get() == burstWrites + 1, "lone packet not written on its own");
+
+            // the loop wasn't started by the vpn, so it doesn't know the session
+            vpn.stop();
+            session.wakeup();
+            loop.join();
+        }
+        System.out.println("FramedWriter OK");
+    }
+
+    private static byte[] packet(int seq) {
+        byte[] packet = new byte[40 + seq % 1400];
+        packet[0] = (byte) (seq >> 8);
+        packet[1] = (byte) seq;
+        packet[packet.length - 1] = (byte) 0x45;
+        return packet;
+    }
+
+    private static void waitForFrames(WintunVpn vpn, long frames) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (vpn.getMetrics().framesUp.sum() < frames || vpn.getMetrics().framesPerFlush.getCount() == 0) {
+            check(System.nanoTime() < deadline, "timed out at " + vpn.getMetrics().framesUp.sum() + " frames");
+            Thread.sleep(1);
+        }
+        // the flush follows the last frame
+        Thread.sleep(20);
+    }
+}
@@ -0,0 +1,51 @@
+package info.skyblond.vpn;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static info.skyblond.jna.Checks.check;
+
+/**
+ * Checks {@link XorCodec} gives the same bytes as the per-byte loop the tunnel
+ * used before, on arrays, heap and direct buffers, at every length and offset.
+ */
+public class PayloadCodecDemo {
+
+    public static void main(String[] args) {
+        PayloadCodec codec = WintunVpn.DEFAULT_CODEC;
+        Random random = new Random(42);
+        for (int length = 0; length < 100; length++) {
+            for (int offset = 0; offset < 9; offset++) {
+                byte[] original = new byte[offset + length + 3];
+                random.nextBytes(original);
+                byte[] expected = original.clone();
+                for (int i = offset; i < offset + length; i++) {
+                    expected[i] ^= 0xe;
+                }
+
+                byte[] array = original.clone();
+                codec.encode(array, offset, length);
+                check(Arrays.equals(array, expected), "array " + length + "@" + offset);
+
+                ByteBuffer heap = ByteBuffer.wrap(original.clone(), offset, length);
+                codec.encode(heap);
+                check(Arrays.equals(heap.array(), expected), "heap " + length + "@" + offset);
+                check(heap.position() == offset && heap.limit() == offset + length, "heap moved");
+
+                ByteBuffer direct = ByteBuffer.allocateDirect(original.length);
+                direct.put(original).position(offset).limit(offset + length);
+                codec.encode(direct);
+                check(direct.position() == offset && direct.limit() == offset + length, "direct moved");
+                byte[] actual = new byte[original.length];
+                direct.clear();
+                direct.get(actual);
+                check(Arrays.equals(actual, expected), "direct " + length + "@" + offset);
+
+                codec.decode(array, offset, length);
+                check(Arrays.equals(array, original), "decode " + length + "@" + offset);
+            }
+        }
+        System.out.println("PayloadCodec OK");
+    }
+}
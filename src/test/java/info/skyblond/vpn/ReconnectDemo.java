@@ -0,0 +1,109 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.WintunAdapter;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+import info.skyblond.jna.wintun.WintunSimulator;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static info.skyblond.jna.Checks.check;
+
+/**
+ * Runs {@link WintunVpn#supervise} over {@link EchoServer} with a simulated adapter:
+ * losing the connection, then the whole server for a while, must bring the tunnel
+ * back on the same session, with the packets from meanwhile sent first, and a server
+ * that drops every connection right away must be retried with a backoff, not in a
+ * loop. None of it counts as an error. No driver needed.
+ */
+public class ReconnectDemo {
+
+    private static final int PACKET_SIZE = 200;
+    private static final long OUTAGE_MILLIS = 500;
+
+    public static void main(String[] args) throws Exception {
+        WintunSimulator simulator = new WintunSimulator();
+        EchoServer server = new EchoServer();
+        InetSocketAddress address = server.getAddress();
+        WintunVpn vpn = new WintunVpn(address);
+        TunnelMetrics metrics = vpn.getMetrics();
+        try (WintunAdapter adapter = new WintunAdapter("reconnect", "Wintun", null, simulator);
+             WintunSession session = adapter.newSession(WintunLib.WINTUN_MIN_RING_CAPACITY * 64)) {
+            WintunSimulator.SimulatedAdapter os = simulator.adapter("reconnect");
+            os.startConsuming(0, packet -> check(packet.remaining() == PACKET_SIZE, "size " + packet.remaining()));
+            os.startInjecting(0, (sequence, packet) -> {
+                packet.put(0, (byte) 0x45);
+                packet.put(9, (byte) 17);
+                packet.putInt(12, 0x0a010a01);
+                packet.putInt(16, 0x0a000001);
+                packet.putLong(24, sequence);
+                packet.position(PACKET_SIZE);
+            });
+            int[] configured = new int[1];
+            Thread tunnel = new Thread(() -> {
+                try {
+                    vpn.supervise(session, () -> configured[0]++);
+                } catch (Exception e) {
+                    e.printStackTrace(System.err);
+                }
+            });
+            tunnel.start();
+            awaitTraffic(metrics, "first connection");
+
+            server.dropConnection();
+            awaitReconnects(metrics, 1);
+            awaitTraffic(metrics, "after a dropped connection");
+            System.out.printf("Dropped connection back in %dms%n", metrics.recoveryMillis.getSumOfValues());
+
+            server.close();
+            Thread.sleep(OUTAGE_MILLIS);
+            server = new EchoServer(address.getPort());
+            awaitReconnects(metrics, 2);
+            awaitTraffic(metrics, "after the server came back");
+            long recovery = metrics.recoveryMillis.getSumOfValues();
+            System.out.printf("Server back in %dms overall, %d packets replayed, %d dropped%n",
+                    recovery, metrics.reconnectReplayed.sum(), metrics.reconnectDropped.sum());
+            check(recovery >= OUTAGE_MILLIS, "recovered before the server was back");
+            check(metrics.reconnectReplayed.sum() > 0, "nothing replayed");
+            check(configured[0] == 1, "adapter configured " + configured[0] + " times");
+
+            server.setRejecting(true);
+            server.dropConnection();
+            long reconnectsBefore = metrics.reconnects.sum();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+            long rejected = metrics.reconnects.sum() - reconnectsBefore;
+            System.out.printf("Rejecting server: %d connections in 1s%n", rejected);
+            check(rejected > 0 && rejected <= 10, "reconnected " + rejected + " times in 1s");
+            server.setRejecting(false);
+            awaitReconnects(metrics, metrics.reconnects.sum() + 1);
+            awaitTraffic(metrics, "after the server accepted again");
+            // every drop above was planned, none of them is an error
+            check(metrics.errors.sum() == 0, metrics.errors.sum() + " errors from expected disconnects");
+
+            vpn.stop();
+            tunnel.join();
+            os.stopTraffic();
+        } finally {
+            server.close();
+        }
+        System.out.println("Reconnect OK");
+    }
+
+    private static void awaitReconnects(TunnelMetrics metrics, long reconnects) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (metrics.reconnects.sum() < reconnects) {
+            check(System.nanoTime() < deadline, "not reconnected");
+            Thread.sleep(1);
+        }
+    }
+
+    private static void awaitTraffic(TunnelMetrics metrics, String when) throws InterruptedException {
+        long before = metrics.framesDown.sum();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (metrics.framesDown.sum() == before) {
+            check(System.nanoTime() < deadline, "nothing came back " + when);
+            Thread.sleep(1);
+        }
+    }
+}
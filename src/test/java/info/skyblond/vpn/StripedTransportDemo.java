@@ -0,0 +1,115 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.ReceiveWaitStrategy;
+import info.skyblond.jna.wintun.WintunAdapter;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+import info.skyblond.jna.wintun.WintunSimulator;
+
+import java.util.concurrent.TimeUnit;
+
+import static info.skyblond.jna.Checks.check;
+
+/**
+ * Runs {@link StripedTransport} over {@link EchoServer} with a simulated adapter:
+ * packets of many flows must come back in order within each flow, a connection
+ * stalled in the middle of a frame must not hold up the others, and losing a
+ * connection must leave the tunnel running on the others. No driver needed.
+ */
+public class StripedTransportDemo {
+
+    private static final int CONNECTIONS = 4;
+    private static final int FLOWS = 64;
+    private static final int PACKET_SIZE = 200;
+
+    public static void main(String[] args) throws Exception {
+        WintunSimulator simulator = new WintunSimulator();
+        try (EchoServer server = new EchoServer()) {
+            WintunVpn vpn = new WintunVpn(server.getAddress());
+            TunnelMetrics metrics = vpn.getMetrics();
+            TunnelTransport.Factory factory = StripedTransport.factory(
+                    ChannelTransport.factory(ChannelTransport.Mode.BLOCKING), CONNECTIONS);
+            try (WintunAdapter adapter = new WintunAdapter("striped", "Wintun", null, simulator);
+                 WintunSession session = adapter.newSession(WintunLib.WINTUN_MIN_RING_CAPACITY * 64);
+                 StripedTransport transport = (StripedTransport) factory.connect(server.getAddress(), 1000,
+                         WintunVpn.DEFAULT_CODEC, metrics)) {
+                session.setWaitStrategy(ReceiveWaitStrategy.spinYieldPark());
+                transport.writeRaw(new byte[]{0x3});
+                WintunSimulator.SimulatedAdapter os = simulator.adapter("striped");
+                long[] last = new long[FLOWS];
+                java.util.Arrays.fill(last, -1);
+                os.startConsuming(0, packet -> {
+                    check(packet.remaining() == PACKET_SIZE, "size " + packet.remaining());
+                    int flow = packet.getShort(20) & 0xffff;
+                    long seq = packet.getLong(24);
+                    check(seq > last[flow], "flow " + flow + " out of order: " + seq + " after " + last[flow]);
+                    last[flow] = seq;
+                });
+                os.startInjecting(0, (sequence, packet) -> {
+                    int flow = (int) (sequence % FLOWS);
+                    packet.put(0, (byte) 0x45);
+                    packet.put(9, (byte) 17);
+                    packet.putInt(12, 0x0a010a01);
+                    packet.putInt(16, 0x0a000001);
+                    packet.putShort(20, (short) flow);
+                    packet.putShort(22, (short) 53);
+                    packet.putLong(24, sequence);
+                    packet.position(PACKET_SIZE);
+                });
+                Thread down = new Thread(() -> {
+                    try {
+                        transport.readFramesInto(session, WintunLib.WINTUN_MAX_IP_PACKET_SIZE);
+                    } catch (Exception e) {
+                        e.printStackTrace(System.err);
+                    }
+                });
+                down.start();
+                Thread up = new Thread(() -> {
+                    try {
+                        vpn.forwardUp(session, transport);
+                    } catch (Exception e) {
+                        e.printStackTrace(System.err);
+                    }
+                });
+                up.start();
+
+                Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+                long before = metrics.framesDown.sum();
+                System.out.printf("%d connections: %d packets back%n", transport.getLiveConnections(), before);
+                check(before > 0, "nothing came back");
+
+                server.stallConnection();
+                Thread.sleep(100);
+                long stalledAt = os.getConsumedCount();
+                Thread.sleep(500);
+                long whileStalled = os.getConsumedCount() - stalledAt;
+                server.resumeConnection();
+                System.out.printf("1 connection stalled: %d packets back%n", whileStalled);
+                check(transport.getLiveConnections() == CONNECTIONS, "stalled connection closed");
+                check(whileStalled > 0, "tunnel held up by a stalled connection");
+
+                server.dropConnection();
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                while (transport.getLiveConnections() == CONNECTIONS) {
+                    check(System.nanoTime() < deadline, "lost connection not noticed");
+                    Thread.sleep(1);
+                }
+                long dropped = metrics.framesDown.sum();
+                Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+                long after = metrics.framesDown.sum() - dropped;
+                System.out.printf("%d connections: %d packets back%n", transport.getLiveConnections(), after);
+                check(transport.getLiveConnections() == CONNECTIONS - 1, "live connections");
+                check(metrics.connectionsLost.sum() == 1, "connections lost");
+                check(after > 0, "tunnel stalled after losing a connection");
+
+                vpn.stop();
+                session.wakeup();
+                up.join();
+                os.stopTraffic();
+                transport.close();
+                down.join();
+            }
+        }
+        System.out.println("StripedTransport OK");
+    }
+}
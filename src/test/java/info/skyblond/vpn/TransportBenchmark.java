@@ -0,0 +1,107 @@
+package info.skyblond.vpn;
+
+import info.skyblond.jna.wintun.ReceiveWaitStrategy;
+import info.skyblond.jna.wintun.WintunAdapter;
+import info.skyblond.jna.wintun.WintunLib;
+import info.skyblond.jna.wintun.WintunSession;
+import info.skyblond.jna.wintun.WintunSimulator;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static info.skyblond.jna.Checks.check;
+
+/**
+ * Pushes packets from a simulated adapter through each transport to an {@link EchoServer},
+ * or a {@link UdpEchoServer}, on loopback and back into the adapter, and prints the round
+ * trip throughput. Checks the echoed packets come back whole and in order. No driver needed.
+ */
+public class TransportBenchmark {
+
+    private static final int PACKET_SIZE = 1400;
+    private static final long SECONDS = 2;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, TunnelTransport.Factory> factories = new LinkedHashMap<>();
+        factories.put("stream", StreamTransport.FACTORY);
+        factories.put("channel, blocking", ChannelTransport.factory(ChannelTransport.Mode.BLOCKING));
+        factories.put("channel, non-blocking", ChannelTransport.factory(ChannelTransport.Mode.NON_BLOCKING));
+        factories.put("datagram", DatagramTransport.FACTORY);
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        SecretKey key = generator.generateKey();
+        // the echo sends back what was encrypted with the send key
+        factories.put("channel, AES-GCM", EncryptingTransport.factory(
+                ChannelTransport.factory(ChannelTransport.Mode.BLOCKING),
+                key, key, Runtime.getRuntime().availableProcessors()));
+        WintunSimulator simulator = new WintunSimulator();
+        try (EchoServer server = new EchoServer();
+             UdpEchoServer udpServer = new UdpEchoServer()) {
+            for (int round = 0; round < 2; round++) {
+                for (Map.Entry<String, TunnelTransport.Factory> entry : factories.entrySet()) {
+                    TunnelTransport.Factory factory = entry.getValue();
+                    InetSocketAddress address = factory == DatagramTransport.FACTORY ? udpServer.getAddress() : server.getAddress();
+                    run(simulator, address, entry.getKey() + " #" + round, factory);
+                }
+            }
+        }
+    }
+
+    private static void run(WintunSimulator simulator, InetSocketAddress server, String name,
+                            TunnelTransport.Factory factory) throws Exception {
+        WintunVpn vpn = new WintunVpn(server);
+        TunnelMetrics metrics = vpn.getMetrics();
+        try (WintunAdapter adapter = new WintunAdapter(name, "Wintun", null, simulator);
+             WintunSession session = adapter.newSession(WintunLib.WINTUN_MIN_RING_CAPACITY * 64);
+             TunnelTransport transport = factory.connect(server, 1000, WintunVpn.DEFAULT_CODEC, metrics)) {
+            session.setWaitStrategy(ReceiveWaitStrategy.spinYieldPark());
+            transport.writeRaw(new byte[]{0x3});
+            WintunSimulator.SimulatedAdapter os = simulator.adapter(name);
+            long[] expected = {0};
+            os.startConsuming(0, packet -> {
+                check(packet.remaining() == PACKET_SIZE, "size " + packet.remaining());
+                long seq = packet.getLong(0);
+                check(seq >= expected[0], "out of order: " + seq);
+                expected[0] = seq + 1;
+            });
+            os.startInjecting(0, (sequence, packet) -> {
+                packet.putLong(sequence);
+                packet.position(PACKET_SIZE);
+            });
+            Thread down = new Thread(() -> {
+                try {
+                    while (transport.readFramesInto(session, WintunLib.WINTUN_MAX_IP_PACKET_SIZE)) {
+                    }
+                } catch (Exception ignored) {
+                    // closed at the end of the run
+                }
+            });
+            down.start();
+            Thread up = new Thread(() -> {
+                try {
+                    vpn.forwardUp(session, transport);
+                } catch (Exception e) {
+                    e.printStackTrace(System.err);
+                }
+            });
+            up.start();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(SECONDS));
+            vpn.stop();
+            session.wakeup();
+            up.join();
+            os.stopTraffic();
+            transport.close();
+            down.join();
+            long frames = metrics.framesDown.sum();
+            System.out.printf("%-26s %8.0f packets/s %7.1f MB/s, %5.1f frames per flush, %d datagrams lost%n", name,
+                    frames / (double) SECONDS, metrics.bytesDown.sum() / 1e6 / SECONDS,
+                    metrics.framesPerFlush.getSumOfValues() / (double) metrics.framesPerFlush.getCount(),
+                    metrics.datagramsLost.sum());
+            check(frames > 0, "nothing came back");
+        }
+    }
+}
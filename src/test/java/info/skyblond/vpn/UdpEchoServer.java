@@ -0,0 +1,89 @@
+package info.skyblond.vpn;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stands in for the VPN server over UDP on loopback: takes the first datagram of
+ * each peer as its handshake, then sends every datagram with frames back with
+ * its own sequence numbers, so upstream frames come back as downstream frames.
+ * Keepalives are counted, not echoed, and repeated handshakes are ignored.
+ */
+public class UdpEchoServer implements AutoCloseable {
+
+    private static class Peer {
+        final ByteBuffer handshake;
+        final SequenceTracker received;
+        int nextSequence;
+
+        Peer(ByteBuffer handshake, SequenceTracker received) {
+            this.handshake = handshake;
+            this.received = received;
+        }
+    }
+
+    public final LongAdder lost = new LongAdder();
+    public final LongAdder reordered = new LongAdder();
+    public final LongAdder keepalives = new LongAdder();
+
+    private final DatagramChannel channel;
+    private final Map<SocketAddress, Peer> peers = new HashMap<>();
+
+    public UdpEchoServer() throws IOException {
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread echo = new Thread(this::echo, "udp-echo-server");
+        echo.setDaemon(true);
+        echo.start();
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    private void echo() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(65535);
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress address = channel.receive(buffer);
+                buffer.flip();
+                Peer peer = peers.get(address);
+                if (peer == null) {
+                    int osType = buffer.get(0) & 0xff;
+                    if ((osType & 0x7f) == 0x3) {
+                        byte[] handshake = new byte[buffer.remaining()];
+                        buffer.get(handshake);
+                        peers.put(address, new Peer(ByteBuffer.wrap(handshake), new SequenceTracker(lost, reordered)));
+                    }
+                    continue;
+                }
+                if (buffer.equals(peer.handshake)) {
+                    continue;
+                }
+                peer.received.record(buffer.getInt(0));
+                if (buffer.remaining() == 4) {
+                    keepalives.increment();
+                    continue;
+                }
+                buffer.putInt(0, peer.nextSequence++);
+                channel.send(buffer, address);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
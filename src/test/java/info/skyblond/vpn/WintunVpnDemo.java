@@ -6,13 +6,21 @@ public class WintunVpnDemo {
 
     public static void main(String[] args) {
         if(args.length < 2) {
-            System.err.println("WintunVpnDemo host port");
+            System.err.println("WintunVpnDemo host port [tcp|udp] [connections]");
             return;
         }
         String host = args[0];
         int port = Integer.parseInt(args[1]);
         try {
             WintunVpn vpn = new WintunVpn(host, port);
+            TunnelTransport.Factory factory = ChannelTransport.factory(ChannelTransport.Mode.BLOCKING);
+            if (args.length > 2 && "udp".equalsIgnoreCase(args[2])) {
+                factory = DatagramTransport.FACTORY;
+            }
+            if (args.length > 3) {
+                factory = StripedTransport.factory(factory, Integer.parseInt(args[3]));
+            }
+            vpn.setTransportFactory(factory);
             vpn.start();
 
             Scanner scanner = new Scanner(System.in);
@@ -0,0 +1,81 @@
+package info.skyblond.jna
+
+import info.skyblond.jna.wintun.*
+import kotlinx.coroutines.*
+import kotlinx.coroutines.flow.collect
+import kotlinx.coroutines.flow.take
+
+/**
+ * Runs a [CoroutineSession] on top of [WintunSimulator]: packets injected by the
+ * OS side are collected from the flow and sent back, then a failing send must
+ * close [CoroutineSession.outgoing] with the cause and leave the caller's scope
+ * running. No driver needed.
+ * */
+object CoroutineSessionDemo {
+
+    private const val PACKETS = 10_000
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        val simulator = WintunSimulator()
+        WintunAdapter("coroutine", "Wintun", null, simulator).use { adapter ->
+            adapter.newSession(WintunLib.WINTUN_MIN_RING_CAPACITY * 16).use { session ->
+                SessionPoller().use { poller ->
+                    val os = simulator.adapter("coroutine")!!
+                    runBlocking(Dispatchers.Default) {
+                        echo(CoroutineSession(session, poller, this), os)
+                        failedSend(CoroutineSession(session, poller, this))
+                    }
+                }
+            }
+        }
+        println("CoroutineSession OK")
+    }
+
+    private suspend fun echo(coroutineSession: CoroutineSession, os: WintunSimulator.SimulatedAdapter) {
+        coroutineSession.use {
+            val injector = Thread {
+                repeat(PACKETS) {
+                    val packet = ByteArray(100).also { p -> p[0] = 0x45 }
+                    while (!os.inject(packet)) Thread.sleep(1)
+                }
+            }
+            injector.start()
+            coroutineSession.packets().take(PACKETS).collect { lease ->
+                val packet = lease.use { it.toByteArray() }
+                coroutineSession.send(packet)
+            }
+            injector.join()
+            var consumed = 0
+            val deadline = System.nanoTime() + 5_000_000_000L
+            while (consumed < PACKETS && System.nanoTime() < deadline) {
+                if (os.consume() != null) consumed++ else delay(1)
+            }
+            println("Echoed $consumed packets")
+            check(consumed == PACKETS) { "echoed $consumed of $PACKETS" }
+        }
+    }
+
+    private suspend fun failedSend(coroutineSession: CoroutineSession) = coroutineScope {
+        coroutineSession.use {
+            val sibling = launch { delay(Long.MAX_VALUE) }
+            // too big for the ring, the sender throws
+            coroutineSession.send(ByteArray(WintunLib.WINTUN_MAX_IP_PACKET_SIZE + 1))
+            var cause: IllegalArgumentException? = null
+            withTimeoutOrNull(5_000) {
+                try {
+                    while (true) {
+                        coroutineSession.send(ByteArray(100))
+                        delay(1)
+                    }
+                } catch (e: IllegalArgumentException) {
+                    cause = e
+                }
+            }
+            println("Send failed with: $cause")
+            check(cause != null) { "failure not surfaced through outgoing" }
+            check(isActive && sibling.isActive) { "caller's scope cancelled by a failed send" }
+            sibling.cancel()
+        }
+    }
+}
@@ -7,7 +7,6 @@ import org.pcap4j.packet.namednumber.IcmpV6Code
 import org.pcap4j.packet.namednumber.IcmpV6Type
 import org.pcap4j.packet.namednumber.IpNumber
 import org.pcap4j.packet.namednumber.IpVersion
-import java.io.EOFException
 import java.net.Inet6Address
 import kotlin.concurrent.thread
 import kotlin.experimental.and
@@ -101,23 +100,15 @@ object WintunPingDemo {
             }
         }
 
-        val t = thread {
-            try {
-                while (true) {
-                    val result = session.readPacket()
-                    if (result != null) thread { handlePacket(session, result) }
-                }
-            } catch (e: EOFException) {
-                e.printStackTrace()
-            } catch (e: NativeException) {
-                e.printStackTrace()
-            }
-        }
+        // 4 workers, packets of one flow are always handled in order
+        val pump = PacketPump(session, 4, { handlePacket(session, it) })
+        pump.start()
 
-        while (t.isAlive) {
+        while (pump.isRunning) {
             Thread.sleep(1000)
         }
         println("Closing!")
+        pump.close()
         session.close()
         adapter.close()
     }